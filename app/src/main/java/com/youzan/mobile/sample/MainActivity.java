@@ -5,14 +5,14 @@ import android.os.Bundle;
 
 import com.youzan.mobile.rxcacheadapter.cache.ZanLocalCache;
 
-import java.io.File;
-
 public class MainActivity extends AppCompatActivity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        ZanLocalCache.init(getCacheDir().getAbsolutePath() + File.separator + "/http_cache");
+        ZanLocalCache.setDefaultInstance(new ZanLocalCache.Builder(getApplicationContext())
+                .appVersion(BuildConfig.VERSION_CODE)
+                .build());
     }
 }
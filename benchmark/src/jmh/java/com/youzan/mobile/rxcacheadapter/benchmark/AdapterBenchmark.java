@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.benchmark;
+
+import com.youzan.mobile.rxcacheadapter.NetworkStateProvider;
+import com.youzan.mobile.rxcacheadapter.NetworkUtils;
+import com.youzan.mobile.rxcacheadapter.ResponseValidators;
+import com.youzan.mobile.rxcacheadapter.ZanCache;
+import com.youzan.mobile.rxcacheadapter.ZanCacheInterceptor;
+import com.youzan.mobile.rxcacheadapter.ZanRxJavaCallAdapterFactory;
+import com.youzan.mobile.rxcacheadapter.cache.ZanLocalCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.ByteString;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+import retrofit2.http.GET;
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
+import static com.youzan.mobile.rxcacheadapter.ZanCache.Policy.CACHE_BEFORE;
+import static com.youzan.mobile.rxcacheadapter.ZanCache.Policy.NO_CACHE;
+import static com.youzan.mobile.rxcacheadapter.ZanCache.Policy.ONLY_IF_CACHED;
+import static com.youzan.mobile.rxcacheadapter.ZanCache.Policy.REFRESH_CACHE;
+
+/**
+ * A service call end to end: Retrofit, {@link ZanRxJavaCallAdapterFactory},
+ * {@link ZanCacheInterceptor} and a local {@link MockWebServer}, answered from the network or
+ * from the cache. The network state comes from a fixed {@link NetworkStateProvider}.
+ */
+@State(Scope.Benchmark)
+public class AdapterBenchmark {
+    @Param({"10", "100", "1000"})
+    int items;
+
+    interface Service {
+        @GET("v1/items")
+        @ZanCache(policy = NO_CACHE)
+        Observable<Payloads.Page> network();
+
+        @GET("v1/items")
+        @ZanCache(policy = REFRESH_CACHE)
+        Observable<Payloads.Page> refresh();
+
+        @GET("v1/items")
+        @ZanCache(policy = ONLY_IF_CACHED)
+        Observable<Payloads.Page> cached();
+
+        /** Fresh for an hour, so only the cached response is emitted. */
+        @GET("v1/items")
+        @ZanCache(policy = CACHE_BEFORE, maxAge = 3600)
+        Observable<Payloads.Page> fresh();
+    }
+
+    private MockWebServer server;
+    private File cacheDir;
+    private ZanLocalCache cache;
+    private Service service;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final ByteString body = Payloads.json(items);
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse()
+                        .setHeader("Content-Type", Payloads.JSON)
+                        .setBody(new Buffer().write(body));
+            }
+        });
+        server.start();
+
+        cacheDir = Payloads.tempDir();
+        cache = new ZanLocalCache.Builder(cacheDir).build();
+        NetworkStateProvider wifi = new NetworkStateProvider() {
+            @Override public int getState() {
+                return NetworkUtils.NETWORK_WIFI;
+            }
+        };
+        OkHttpClient client = new OkHttpClient.Builder()
+                .addInterceptor(new ZanCacheInterceptor(wifi, cache,
+                        ResponseValidators.httpSuccess(), false))
+                .build();
+        service = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .client(client)
+                .addConverterFactory(GsonConverterFactory.create())
+                .addCallAdapterFactory(new ZanRxJavaCallAdapterFactory.Builder()
+                        .cache(cache)
+                        .cacheScheduler(Schedulers.immediate())
+                        .networkState(wifi)
+                        .build())
+                .build()
+                .create(Service.class);
+        service.refresh().toBlocking().last();
+        cache.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.shutdown();
+        cache.close();
+        Payloads.deleteRecursively(cacheDir);
+    }
+
+    /**
+     * Only the service method call, which apps make on the main thread. It defers the cache
+     * lookup, so its cost must not grow with {@link #items}.
+     */
+    @Benchmark
+    public Observable<Payloads.Page> adapt() {
+        return service.fresh();
+    }
+
+    @Benchmark
+    public Payloads.Page network() {
+        return service.network().toBlocking().last();
+    }
+
+    /** A network call whose response is also stored. */
+    @Benchmark
+    public Payloads.Page refresh() {
+        return service.refresh().toBlocking().last();
+    }
+
+    @Benchmark
+    public Payloads.Page cached() {
+        return service.cached().toBlocking().last();
+    }
+
+    @Benchmark @Threads(4)
+    public Payloads.Page cachedContended() {
+        return service.cached().toBlocking().last();
+    }
+
+    @Benchmark
+    public Payloads.Page fresh() {
+        return service.fresh().toBlocking().last();
+    }
+}
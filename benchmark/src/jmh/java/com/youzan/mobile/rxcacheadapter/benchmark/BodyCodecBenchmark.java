@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.benchmark;
+
+import com.youzan.mobile.rxcacheadapter.cache.BodyCodec;
+import com.youzan.mobile.rxcacheadapter.cache.BodyCodecs;
+import com.youzan.mobile.rxcacheadapter.cache.ZanLocalCache;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.ByteString;
+
+/**
+ * Reads from a 1 MB disk cache that was filled with more JSON list responses than it holds
+ * unencoded, with each body codec. The hits and misses counters give the hit rate the codec buys,
+ * the score the latency of a lookup.
+ */
+@State(Scope.Benchmark)
+public class BodyCodecBenchmark {
+    private static final int CORPUS_SIZE = 200;
+
+    @Param({"none", "gzip", "deflate"})
+    String codec;
+
+    private File cacheDir;
+    private ZanLocalCache cache;
+    private Request[] requests;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BodyCodec bodyCodec = "gzip".equals(codec) ? BodyCodecs.gzip()
+                : "deflate".equals(codec) ? BodyCodecs.deflate()
+                : null;
+        cacheDir = Payloads.tempDir();
+        cache = new ZanLocalCache.Builder(cacheDir)
+                .maxSize(1024 * 1024)
+                .memoryCacheSize(0)
+                .bodyCodec(bodyCodec)
+                .build();
+        Random random = new Random(0);
+        requests = new Request[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            requests[i] = Payloads.request(i);
+            cache.put(Payloads.response(requests[i], Payloads.json(20 + random.nextInt(80))));
+            if (i % 32 == 31) {
+                cache.flush(); // Keeps the write-behind queue from dropping writes.
+            }
+        }
+        cache.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cache.close();
+        Payloads.deleteRecursively(cacheDir);
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Lookups {
+        public long hits;
+        public long misses;
+        int next;
+    }
+
+    @Benchmark
+    public ByteString get(Lookups lookups) throws IOException {
+        Response response = cache.get(requests[lookups.next++ % CORPUS_SIZE]);
+        if (response == null) {
+            lookups.misses++;
+            return null;
+        }
+        lookups.hits++;
+        try {
+            return response.body().source().readByteString();
+        } finally {
+            response.body().close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.benchmark;
+
+import com.youzan.mobile.rxcacheadapter.cache.ZanLocalCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.io.IOException;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.ByteString;
+
+/**
+ * Throughput of {@link ZanLocalCache} reads from each tier and of writes, for several body sizes
+ * and with one or four threads sharing the cache.
+ */
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+    private static final int KEY_COUNT = 64;
+
+    /** Items per body, about 100 bytes each. */
+    @Param({"10", "100", "1000"})
+    int items;
+
+    private File memoryDir;
+    private File diskDir;
+    /** Holds every entry in memory. */
+    private ZanLocalCache memoryCache;
+    /** Reads every entry from disk. */
+    private ZanLocalCache diskCache;
+    private Request[] requests;
+    private ByteString body;
+
+    /** The next key of each thread, so threads don't contend on a counter. */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        Request next(Request[] requests) {
+            return requests[next++ & (requests.length - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        body = Payloads.json(items);
+        requests = new Request[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            requests[i] = Payloads.request(i);
+        }
+        memoryDir = Payloads.tempDir();
+        memoryCache = new ZanLocalCache.Builder(memoryDir)
+                .maxSize(256 * 1024 * 1024)
+                .memoryCacheSize(256 * 1024 * 1024)
+                .build();
+        diskDir = Payloads.tempDir();
+        diskCache = new ZanLocalCache.Builder(diskDir)
+                .maxSize(256 * 1024 * 1024)
+                .memoryCacheSize(0)
+                .build();
+        for (Request request : requests) {
+            memoryCache.put(Payloads.response(request, body));
+            diskCache.put(Payloads.response(request, body));
+            // Keeps the write-behind queue from dropping writes.
+            diskCache.flush();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        memoryCache.close();
+        diskCache.close();
+        Payloads.deleteRecursively(memoryDir);
+        Payloads.deleteRecursively(diskDir);
+    }
+
+    @Benchmark
+    public ByteString memoryHit(Cursor cursor) throws IOException {
+        return read(memoryCache.get(cursor.next(requests)));
+    }
+
+    @Benchmark @Threads(4)
+    public ByteString memoryHitContended(Cursor cursor) throws IOException {
+        return read(memoryCache.get(cursor.next(requests)));
+    }
+
+    @Benchmark
+    public ByteString diskHit(Cursor cursor) throws IOException {
+        return read(diskCache.get(cursor.next(requests)));
+    }
+
+    @Benchmark @Threads(4)
+    public ByteString diskHitContended(Cursor cursor) throws IOException {
+        return read(diskCache.get(cursor.next(requests)));
+    }
+
+    /**
+     * The caller's side of a write: hashing the body and queueing it. The disk write happens on
+     * the writer thread, whose throughput {@link #putAndFlush} measures.
+     */
+    @Benchmark
+    public void put(Cursor cursor) {
+        memoryCache.put(Payloads.response(cursor.next(requests), body));
+    }
+
+    @Benchmark
+    public void putAndFlush(Cursor cursor) throws InterruptedException {
+        diskCache.put(Payloads.response(cursor.next(requests), body));
+        diskCache.flush();
+    }
+
+    private static ByteString read(Response response) throws IOException {
+        try {
+            return response.body().source().readByteString();
+        } finally {
+            response.body().close();
+        }
+    }
+}
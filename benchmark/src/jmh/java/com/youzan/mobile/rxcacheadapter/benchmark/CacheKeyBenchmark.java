@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.benchmark;
+
+import com.youzan.mobile.rxcacheadapter.cache.CacheKeyStrategies;
+import com.youzan.mobile.rxcacheadapter.cache.CacheKeyStrategy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okio.ByteString;
+
+/**
+ * Cache key derivation by the built-in strategies, for URLs with more or fewer parameters. Keys
+ * are memoized per URL instance, so {@link #url} measures a repeated lookup of one call and
+ * {@link #distinctUrls} a new URL each time, against {@link #rebuiltUrl}, the derivation the
+ * strategies replaced.
+ */
+@State(Scope.Thread)
+public class CacheKeyBenchmark {
+    /** More than the memo holds, so every lookup of {@link #distinctUrls} derives the key. */
+    private static final int DISTINCT_URLS = 1024;
+
+    /** Query parameters besides the access token. */
+    @Param({"0", "4", "16"})
+    int parameters;
+
+    private final CacheKeyStrategy url = CacheKeyStrategies.url();
+    private final CacheKeyStrategy configured = new CacheKeyStrategies.Builder()
+            .volatileParameters("timestamp")
+            .sortQueryParameters(true)
+            .includeHeaders("Shop-Id")
+            .build();
+    private final CacheKeyStrategy withBody = new CacheKeyStrategies.Builder()
+            .includeBody(true)
+            .build();
+    private Request get;
+    private Request post;
+    private Request[] distinct;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        HttpUrl.Builder url = HttpUrl.parse("https://api.example.com/v1/items").newBuilder();
+        for (int i = 0; i < parameters; i++) {
+            url.addQueryParameter("p" + i, "value" + i);
+        }
+        url.addQueryParameter("access_token", "0123456789abcdef");
+        url.addQueryParameter("timestamp", "1500000000");
+        get = new Request.Builder()
+                .url(url.build())
+                .header("Shop-Id", "42")
+                .build();
+        post = get.newBuilder()
+                .post(RequestBody.create(MediaType.parse("application/json"),
+                        new String(Payloads.json(parameters + 1).toByteArray())))
+                .build();
+        distinct = new Request[DISTINCT_URLS];
+        for (int i = 0; i < DISTINCT_URLS; i++) {
+            distinct[i] = get.newBuilder()
+                    .url(get.url().newBuilder().addQueryParameter("page", "" + i).build())
+                    .build();
+        }
+    }
+
+    @Benchmark
+    public String url() {
+        return url.key(get);
+    }
+
+    @Benchmark
+    public String distinctUrls() {
+        return url.key(distinct[next++ & (DISTINCT_URLS - 1)]);
+    }
+
+    @Benchmark
+    public String rebuiltUrl() {
+        HttpUrl url = distinct[next++ & (DISTINCT_URLS - 1)].url();
+        return ByteString.encodeUtf8(url.newBuilder()
+                .removeAllQueryParameters("access_token").build().toString()).md5().hex();
+    }
+
+    @Benchmark
+    public String configured() {
+        return configured.key(get);
+    }
+
+    @Benchmark
+    public String postBody() {
+        return withBody.key(post);
+    }
+}
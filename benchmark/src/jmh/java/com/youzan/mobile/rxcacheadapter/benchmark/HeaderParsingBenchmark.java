@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.benchmark;
+
+import com.youzan.mobile.rxcacheadapter.ZanCacheControl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import okhttp3.Headers;
+
+/**
+ * {@link ZanCacheControl#parse} of the headers every call carries, for a value seen before and
+ * for values that miss its memo.
+ */
+@State(Scope.Thread)
+public class HeaderParsingBenchmark {
+    private static final int DISTINCT_VALUES = 64;
+
+    private Headers repeated;
+    private Headers[] distinct;
+    private Headers withoutCacheHeader;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        repeated = headers("cache-before, max-age=300, stale-while-revalidate=60");
+        distinct = new Headers[DISTINCT_VALUES];
+        for (int i = 0; i < DISTINCT_VALUES; i++) {
+            distinct[i] = headers("cache-before, max-age=" + (i + 1));
+        }
+        withoutCacheHeader = new Headers.Builder()
+                .add("Accept", "application/json")
+                .add("User-Agent", "ZanMobile/4.0 (Android 7.0)")
+                .add("Cache-Control", "no-cache")
+                .build();
+    }
+
+    @Benchmark
+    public ZanCacheControl repeatedValue() {
+        return ZanCacheControl.parse(repeated);
+    }
+
+    @Benchmark
+    public ZanCacheControl distinctValues() {
+        return ZanCacheControl.parse(distinct[next++ & (DISTINCT_VALUES - 1)]);
+    }
+
+    @Benchmark
+    public ZanCacheControl noCacheHeader() {
+        return ZanCacheControl.parse(withoutCacheHeader);
+    }
+
+    private static Headers headers(String cacheHeader) {
+        return new Headers.Builder()
+                .add("Accept", "application/json")
+                .add("User-Agent", "ZanMobile/4.0 (Android 7.0)")
+                .add(ZanCacheControl.CACHE_HEADER, cacheHeader)
+                .build();
+    }
+}
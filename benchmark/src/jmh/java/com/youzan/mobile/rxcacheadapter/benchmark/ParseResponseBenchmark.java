@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.benchmark;
+
+import com.youzan.mobile.rxcacheadapter.cache.CacheResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.annotation.Annotation;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.ByteString;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+/** {@link CacheResponse#parseResponse} of a cached body with the Gson converter. */
+@State(Scope.Thread)
+public class ParseResponseBenchmark {
+    @Param({"10", "100", "1000"})
+    int items;
+
+    private final Annotation[] annotations = new Annotation[0];
+    private CacheResponse<Payloads.Page> parser;
+    private Request request;
+    private ByteString body;
+
+    @Setup
+    public void setUp() {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl("http://localhost/")
+                .addConverterFactory(GsonConverterFactory.create())
+                .build();
+        parser = new CacheResponse<>(retrofit);
+        request = Payloads.request(0);
+        body = Payloads.json(items);
+    }
+
+    @Benchmark
+    public retrofit2.Response<Payloads.Page> parse() {
+        Response cached = Payloads.response(request, body);
+        return parser.parseResponse(cached, annotations, Payloads.Page.class);
+    }
+}
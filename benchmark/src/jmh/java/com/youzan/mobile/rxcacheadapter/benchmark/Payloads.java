@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.ByteString;
+
+/** Response bodies shaped like the app's list endpoints, and the model they convert to. */
+final class Payloads {
+    static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private Payloads() {
+    }
+
+    /** A page of {@code count} items, about 100 bytes each. */
+    static ByteString json(int count) {
+        StringBuilder json = new StringBuilder("{\"code\":0,\"data\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"id\":").append(100000 + i * 7)
+                    .append(",\"title\":\"Item ").append(i)
+                    .append("\",\"price\":").append(i * 13 % 1000)
+                    .append(",\"image\":\"https://img.example.com/").append(i * 31 % 997)
+                    .append(".jpg\",\"tags\":[\"sale\",\"new\"]}");
+        }
+        return ByteString.encodeUtf8(json.append("]}").toString());
+    }
+
+    /** A network response to {@code request}, as ZanLocalCache.put() expects it. */
+    static Response response(Request request, ByteString body) {
+        Response networkResponse = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .header("Content-Type", JSON.toString())
+                .sentRequestAtMillis(System.currentTimeMillis())
+                .receivedResponseAtMillis(System.currentTimeMillis())
+                .build();
+        return networkResponse.newBuilder()
+                .networkResponse(networkResponse)
+                .body(ResponseBody.create(JSON, body.toByteArray()))
+                .build();
+    }
+
+    static Request request(int id) {
+        return new Request.Builder()
+                .url("http://localhost/v1/items?page=" + id + "&access_token=abc")
+                .build();
+    }
+
+    static File tempDir() throws IOException {
+        File dir = File.createTempFile("zan-benchmark", "");
+        if (!dir.delete()) throw new IOException("Can't delete " + dir);
+        return dir;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    static final class Page {
+        int code;
+        List<Item> data;
+    }
+
+    static final class Item {
+        long id;
+        String title;
+        int price;
+        String image;
+        List<String> tags;
+    }
+}
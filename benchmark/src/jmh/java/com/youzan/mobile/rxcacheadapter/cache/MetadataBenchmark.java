@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+
+/**
+ * Parsing the metadata of a cache hit in the binary format against the text format it replaced.
+ * It lives in the cache package as {@link ZanLocalCache.Entry} is package-private.
+ */
+@State(Scope.Thread)
+public class MetadataBenchmark {
+    private Buffer binary;
+    private Buffer text;
+
+    @Setup
+    public void setUp() throws IOException {
+        Request request = new Request.Builder()
+                .url("http://api.example.com/v1/items?page=1")
+                .build();
+        Response networkResponse = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .header("Content-Type", "application/json; charset=utf-8")
+                .header("Cache-Control", "max-age=600")
+                .header("ETag", "\"33a64df551425fcc55e4d42a148795d9f25f89d4\"")
+                .header("X-Request-Id", "42")
+                .header(ZanLocalCache.CONTENT_HASH_HEADER, "0123456789abcdef0123456789abcdef")
+                .sentRequestAtMillis(1500000000000L)
+                .receivedResponseAtMillis(1500000000120L)
+                .build();
+        binary = new Buffer();
+        new ZanLocalCache.Entry(networkResponse.newBuilder()
+                .networkResponse(networkResponse)
+                .build()).writeTo(binary);
+        text = new Buffer()
+                .writeUtf8("http://api.example.com/v1/items?page=1\n")
+                .writeUtf8("GET\n")
+                .writeUtf8("0\n")
+                .writeUtf8("HTTP/1.1 200 OK\n")
+                .writeUtf8("7\n")
+                .writeUtf8("Content-Type: application/json; charset=utf-8\n")
+                .writeUtf8("Cache-Control: max-age=600\n")
+                .writeUtf8("ETag: \"33a64df551425fcc55e4d42a148795d9f25f89d4\"\n")
+                .writeUtf8("X-Request-Id: 42\n")
+                .writeUtf8("ZanCache-Content-Hash: 0123456789abcdef0123456789abcdef\n")
+                .writeUtf8("OkHttp-Sent-Millis: 1500000000000\n")
+                .writeUtf8("OkHttp-Received-Millis: 1500000000120\n");
+    }
+
+    @Benchmark
+    public ZanLocalCache.Entry binary() throws IOException {
+        return ZanLocalCache.Entry.read(binary.clone());
+    }
+
+    @Benchmark
+    public ZanLocalCache.Entry text() throws IOException {
+        return ZanLocalCache.Entry.read(text.clone());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter;
+
+import com.youzan.mobile.rxcacheadapter.cache.CacheResponse;
+import com.youzan.mobile.rxcacheadapter.cache.ZanLocalCache;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.Request;
+import retrofit2.Call;
+import retrofit2.CallAdapter;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.schedulers.Schedulers;
+
+/**
+ * Loads the cached responses of {@link ZanWarmUp} service methods into memory in one batch, so
+ * the calls a screen makes on cold start don't each read and parse a disk entry.
+ * <pre><code>
+ * CacheWarmer.warmUp(cache, retrofit, HomeService.class).subscribe();
+ * </code></pre>
+ * With a converted cache, see {@link ZanLocalCache.Builder#convertedCacheSize}, responses are
+ * converted as well. Requests built at runtime can be loaded with {@link ZanLocalCache#preload}.
+ */
+public final class CacheWarmer {
+
+    private CacheWarmer() {
+    }
+
+    /**
+     * Returns an observable that, on {@link Schedulers#io()}, loads the warm set of
+     * {@code services} from {@code cache}, or the default cache if it is null, and emits the
+     * number of entries it read from disk.
+     */
+    public static Observable<Integer> warmUp(final ZanLocalCache cache, final Retrofit retrofit,
+                                             final Class<?>... services) {
+        return Observable.defer(new Func0<Observable<Integer>>() {
+            @Override public Observable<Integer> call() {
+                ZanLocalCache localCache = ZanRxJavaCallAdapterFactory.cacheOrDefault(cache);
+                List<WarmCall> warmCalls = new ArrayList<>();
+                List<Request> requests = new ArrayList<>();
+                for (Class<?> service : services) {
+                    for (WarmCall warmCall : warmCalls(retrofit, service)) {
+                        warmCalls.add(warmCall);
+                        requests.add(warmCall.request);
+                    }
+                }
+                int loaded = localCache.preload(requests);
+                if (localCache.isConvertedCacheEnabled()) {
+                    for (WarmCall warmCall : warmCalls) {
+                        localCache.getConverted(warmCall.request,
+                                new CacheResponse<Object>(retrofit), warmCall.annotations,
+                                warmCall.responseType);
+                    }
+                }
+                return Observable.just(loaded);
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    /** Returns the requests of the {@link ZanWarmUp} methods of {@code service}. */
+    public static List<Request> warmRequests(Retrofit retrofit, Class<?> service) {
+        List<WarmCall> warmCalls = warmCalls(retrofit, service);
+        List<Request> requests = new ArrayList<>(warmCalls.size());
+        for (WarmCall warmCall : warmCalls) {
+            requests.add(warmCall.request);
+        }
+        return requests;
+    }
+
+    /**
+     * Builds the requests of {@code service}'s warm methods with a copy of {@code retrofit} whose
+     * call adapter only records them.
+     */
+    private static List<WarmCall> warmCalls(Retrofit retrofit, Class<?> service) {
+        RecordingFactory recorder = new RecordingFactory();
+        Retrofit.Builder builder = new Retrofit.Builder()
+                .baseUrl(retrofit.baseUrl())
+                .callFactory(retrofit.callFactory())
+                .addCallAdapterFactory(recorder);
+        for (Converter.Factory factory : retrofit.converterFactories()) {
+            builder.addConverterFactory(factory);
+        }
+        Object proxy = builder.build().create(service);
+
+        List<WarmCall> warmCalls = new ArrayList<>();
+        for (Method method : service.getDeclaredMethods()) {
+            if (!method.isAnnotationPresent(ZanWarmUp.class)
+                    || method.getParameterTypes().length != 0) {
+                continue;
+            }
+            try {
+                method.invoke(proxy);
+            } catch (Exception e) { // Broken service methods fail where they are called.
+                e.printStackTrace();
+                continue;
+            }
+            warmCalls.add(new WarmCall(recorder.request, method.getAnnotations(),
+                    recorder.responseType));
+        }
+        return warmCalls;
+    }
+
+    private static final class WarmCall {
+        final Request request;
+        final Annotation[] annotations;
+        final Type responseType;
+
+        WarmCall(Request request, Annotation[] annotations, Type responseType) {
+            this.request = request;
+            this.annotations = annotations;
+            this.responseType = responseType;
+        }
+    }
+
+    /** Records the request and response type of the last adapted call instead of adapting it. */
+    private static final class RecordingFactory extends CallAdapter.Factory {
+        private final ZanRxJavaCallAdapterFactory delegate = ZanRxJavaCallAdapterFactory.create();
+        Request request;
+        Type responseType;
+
+        @Override public CallAdapter<?> get(Type returnType, Annotation[] annotations,
+                                            Retrofit retrofit) {
+            final CallAdapter<?> adapter = delegate.get(returnType, annotations, retrofit);
+            if (adapter == null) {
+                return null;
+            }
+            return new CallAdapter<Object>() {
+                @Override public Type responseType() {
+                    return adapter.responseType();
+                }
+
+                @Override public <R> Object adapt(Call<R> call) {
+                    request = call.request();
+                    responseType = adapter.responseType();
+                    return null;
+                }
+            };
+        }
+    }
+}
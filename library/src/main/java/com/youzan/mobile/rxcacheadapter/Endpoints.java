@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter;
+
+import java.lang.annotation.Annotation;
+
+import retrofit2.http.DELETE;
+import retrofit2.http.GET;
+import retrofit2.http.HEAD;
+import retrofit2.http.HTTP;
+import retrofit2.http.OPTIONS;
+import retrofit2.http.PATCH;
+import retrofit2.http.POST;
+import retrofit2.http.PUT;
+
+/** Reads the relative URL template of a service method from its Retrofit annotations. */
+final class Endpoints {
+
+    private Endpoints() {
+    }
+
+    /**
+     * Returns the relative URL template of the method annotated with {@code annotations}, like
+     * {@code user/{id}}, "" if it uses {@code @Url}, or null if it has no HTTP method annotation.
+     */
+    static String template(Annotation[] annotations) {
+        for (Annotation annotation : annotations) {
+            if (annotation instanceof GET) {
+                return ((GET) annotation).value();
+            } else if (annotation instanceof POST) {
+                return ((POST) annotation).value();
+            } else if (annotation instanceof PUT) {
+                return ((PUT) annotation).value();
+            } else if (annotation instanceof DELETE) {
+                return ((DELETE) annotation).value();
+            } else if (annotation instanceof PATCH) {
+                return ((PATCH) annotation).value();
+            } else if (annotation instanceof HEAD) {
+                return ((HEAD) annotation).value();
+            } else if (annotation instanceof OPTIONS) {
+                return ((OPTIONS) annotation).value();
+            } else if (annotation instanceof HTTP) {
+                return ((HTTP) annotation).path();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter;
+
+/**
+ * Adjusts how cached responses are served to the connection class reported by a
+ * {@link NetworkStateProvider}, so users on weak networks see data that is already on the device
+ * instead of waiting for the network. Policies only apply to calls that read the cache.
+ * <pre><code>
+ * new ZanRxJavaCallAdapterFactory.Builder()
+ *     .networkState(NetworkStateMonitor.get(context))
+ *     .networkPolicy(new NetworkPolicy.Builder()
+ *         .serveStaleOn2G(true)
+ *         .maxAgeFactorOn3G(4f)
+ *         .build())
+ *     .networkPolicy("image/", new NetworkPolicy.Builder()
+ *         .cacheOnlyBelow(NetworkUtils.NETWORK_3G)
+ *         .build())
+ * </code></pre>
+ */
+public final class NetworkPolicy {
+    /** Serves cached responses the same on every connection. */
+    public static final NetworkPolicy DEFAULT = new Builder().build();
+
+    private final boolean serveStaleOn2G;
+    private final float maxAgeFactorOn3G;
+    private final int cacheOnlyBelow;
+
+    private NetworkPolicy(Builder builder) {
+        this.serveStaleOn2G = builder.serveStaleOn2G;
+        this.maxAgeFactorOn3G = builder.maxAgeFactorOn3G;
+        this.cacheOnlyBelow = builder.cacheOnlyBelow;
+    }
+
+    /**
+     * Returns true if the network must not be used at all on {@code networkState}; a cached
+     * response is then served whatever its age.
+     */
+    public boolean skipsNetwork(int networkState) {
+        return cacheOnlyBelow != NetworkUtils.NETWORK_NONE
+                && quality(networkState) < quality(cacheOnlyBelow);
+    }
+
+    /**
+     * Returns the {@link ZanCacheControl#freshness freshness} of a cached response under
+     * {@code cacheControl} on {@code networkState}.
+     */
+    public int freshness(ZanCacheControl cacheControl, int networkState, long receivedMillis,
+                         long nowMillis) {
+        float maxAgeFactor = networkState == NetworkUtils.NETWORK_3G ? maxAgeFactorOn3G : 1f;
+        int freshness = cacheControl.freshness(receivedMillis, nowMillis, maxAgeFactor);
+        if (serveStaleOn2G && networkState == NetworkUtils.NETWORK_2G
+                && (freshness == ZanCacheControl.STALE || freshness == ZanCacheControl.EXPIRED)) {
+            return ZanCacheControl.STALE_WHILE_REVALIDATE;
+        }
+        return freshness;
+    }
+
+    /** Orders the {@code NETWORK_*} constants of {@link NetworkUtils} from worst to best. */
+    static int quality(int networkState) {
+        switch (networkState) {
+            case NetworkUtils.NETWORK_2G:
+                return 1;
+            case NetworkUtils.NETWORK_3G:
+                return 2;
+            case NetworkUtils.NETWORK_MOBILE: // Unknown radio, assume it is recent.
+            case NetworkUtils.NETWORK_4G:
+                return 3;
+            case NetworkUtils.NETWORK_WIFI:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    public static final class Builder {
+        private boolean serveStaleOn2G;
+        private float maxAgeFactorOn3G = 1f;
+        private int cacheOnlyBelow = NetworkUtils.NETWORK_NONE;
+
+        /**
+         * On 2G a cached response past its {@code max-age}, or without one, is served and
+         * refreshed in the background instead of being followed by or replaced with the network
+         * response.
+         */
+        public Builder serveStaleOn2G(boolean serveStaleOn2G) {
+            this.serveStaleOn2G = serveStaleOn2G;
+            return this;
+        }
+
+        /** On 3G a cached response stays fresh for {@code factor} times its {@code max-age}. */
+        public Builder maxAgeFactorOn3G(float factor) {
+            if (factor <= 0) throw new IllegalArgumentException("factor <= 0: " + factor);
+            this.maxAgeFactorOn3G = factor;
+            return this;
+        }
+
+        /**
+         * On connections worse than {@code networkState}, one of the {@code NETWORK_*} constants
+         * of {@link NetworkUtils}, a cached response is served without using the network. The
+         * network is only used when nothing is cached. {@link NetworkUtils#NETWORK_NONE}, the
+         * default, never skips it.
+         */
+        public Builder cacheOnlyBelow(int networkState) {
+            this.cacheOnlyBelow = networkState;
+            return this;
+        }
+
+        public NetworkPolicy build() {
+            return new NetworkPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+
+/**
+ * Keeps the connection class of {@link NetworkUtils#getState(Context)} in a volatile field,
+ * recomputed only when a connectivity broadcast arrives. Reading it costs no binder calls, unlike
+ * asking the {@link ConnectivityManager} on every request.
+ */
+public final class NetworkStateMonitor implements NetworkStateProvider {
+    private static volatile NetworkStateMonitor instance;
+
+    private final Context context;
+    private volatile int state;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override public void onReceive(Context context, Intent intent) {
+            refresh();
+        }
+    };
+
+    /** Returns the monitor of the application, registering it on first use. */
+    public static NetworkStateMonitor get(Context context) {
+        if (instance == null) {
+            synchronized (NetworkStateMonitor.class) {
+                if (instance == null) {
+                    Context applicationContext = context.getApplicationContext();
+                    instance = new NetworkStateMonitor(
+                            applicationContext != null ? applicationContext : context);
+                }
+            }
+        }
+        return instance;
+    }
+
+    private NetworkStateMonitor(Context context) {
+        this.context = context;
+        this.state = NetworkUtils.getState(context);
+        // The sticky broadcast is delivered right away, later ones on every change.
+        context.registerReceiver(receiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    void refresh() {
+        state = NetworkUtils.getState(context);
+    }
+
+    @Override public int getState() {
+        return state;
+    }
+}
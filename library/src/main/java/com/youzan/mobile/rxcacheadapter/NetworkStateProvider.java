@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter;
+
+/**
+ * Tells the current connection class, one of the {@code NETWORK_*} constants of
+ * {@link NetworkUtils}. Called for every request, so implementations must answer without IPC;
+ * {@link NetworkStateMonitor} is the Android one.
+ */
+public interface NetworkStateProvider {
+    int getState();
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Fetches responses ahead of time so later calls find them in the cache. Requests are queued and
+ * run one at a time on a minimum-priority thread, only while the {@link Condition} allows it, for
+ * example on Wi-Fi. Requests that have to wait are retried every recheck interval.
+ * <pre><code>
+ * Prefetcher prefetcher = new Prefetcher.Builder(okHttpClient)
+ *     .condition(Prefetcher.unmetered(NetworkStateMonitor.get(context)))
+ *     .build();
+ * prefetcher.prefetch(request);
+ * </code></pre>
+ * Requests are sent with a {@code refresh_cache} {@link ZanCacheControl#CACHE_HEADER}, so the
+ * client needs a {@link ZanCacheInterceptor} to store them. A job that runs when the device is
+ * idle can drain the queue with {@link #runPending()}.
+ */
+public final class Prefetcher {
+
+    /** Decides whether prefetching may use the network now. */
+    public interface Condition {
+        boolean canPrefetch();
+    }
+
+    private static final Condition ALWAYS = new Condition() {
+        @Override public boolean canPrefetch() {
+            return true;
+        }
+    };
+
+    /** Prefetches whenever there is work. */
+    public static Condition always() {
+        return ALWAYS;
+    }
+
+    /** Prefetches on Wi-Fi only. */
+    public static Condition unmetered(final NetworkStateProvider networkState) {
+        return new Condition() {
+            @Override public boolean canPrefetch() {
+                return networkState.getState() == NetworkUtils.NETWORK_WIFI;
+            }
+        };
+    }
+
+    private final Call.Factory callFactory;
+    private final Condition condition;
+    private final long recheckMillis;
+    private final ScheduledExecutorService executor;
+    /** Queued requests by method and URL, oldest first. Guarded by this. */
+    private final Map<String, Request> pending = new LinkedHashMap<>();
+    /** True while a run is scheduled or running. Guarded by this. */
+    private boolean scheduled;
+
+    private Prefetcher(Builder builder) {
+        this.callFactory = builder.callFactory;
+        this.condition = builder.condition;
+        this.recheckMillis = builder.recheckMillis;
+        this.executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "ZanCache Prefetcher");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    /** Queues {@code request}, unless a request for the same URL is queued already. */
+    public void prefetch(Request request) {
+        synchronized (this) {
+            String id = request.method() + ' ' + request.url();
+            if (!pending.containsKey(id)) {
+                pending.put(id, request);
+            }
+        }
+        schedule(0);
+    }
+
+    public void prefetch(Collection<Request> requests) {
+        for (Request request : requests) {
+            prefetch(request);
+        }
+    }
+
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Runs queued requests on the calling thread for as long as the condition allows and returns
+     * how many it ran.
+     */
+    public int runPending() {
+        int count = 0;
+        while (condition.canPrefetch()) {
+            Request request;
+            synchronized (this) {
+                Iterator<Request> iterator = pending.values().iterator();
+                if (!iterator.hasNext()) {
+                    break;
+                }
+                request = iterator.next();
+                iterator.remove();
+            }
+            fetch(request);
+            count++;
+        }
+        return count;
+    }
+
+    /** Drops queued requests and stops the prefetch thread. */
+    public void shutdown() {
+        synchronized (this) {
+            pending.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    private void fetch(Request request) {
+        Request prefetchRequest = request.newBuilder()
+                .header(ZanCacheControl.CACHE_HEADER, "refresh_cache")
+                .build();
+        Response response = null;
+        try {
+            response = callFactory.newCall(prefetchRequest).execute();
+            // Streamed entries are only committed once the body has been read to the end.
+            response.body().source().skip(Long.MAX_VALUE);
+        } catch (IOException | RuntimeException e) {
+            // Prefetching is best effort, the real call will fetch it. A failing interceptor
+            // mustn't stop the requests queued after this one.
+        } finally {
+            if (response != null) {
+                response.body().close();
+            }
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        synchronized (this) {
+            if (scheduled || pending.isEmpty() || executor.isShutdown()) {
+                return;
+            }
+            scheduled = true;
+        }
+        executor.schedule(new Runnable() {
+            @Override public void run() {
+                try {
+                    runPending();
+                } finally {
+                    synchronized (Prefetcher.this) {
+                        scheduled = false;
+                    }
+                    // Whatever is left waits for the condition.
+                    schedule(recheckMillis);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static final class Builder {
+        private final Call.Factory callFactory;
+        private Condition condition = ALWAYS;
+        private long recheckMillis = TimeUnit.MINUTES.toMillis(1);
+
+        /** Prefetches with {@code callFactory}, usually the app's {@code OkHttpClient}. */
+        public Builder(Call.Factory callFactory) {
+            if (callFactory == null) throw new NullPointerException("callFactory == null");
+            this.callFactory = callFactory;
+        }
+
+        /** Only prefetches while {@code condition} holds, {@link #always()} by default. */
+        public Builder condition(Condition condition) {
+            if (condition == null) throw new NullPointerException("condition == null");
+            this.condition = condition;
+            return this;
+        }
+
+        /** How often waiting requests check the condition again, one minute by default. */
+        public Builder recheckInterval(long interval, TimeUnit unit) {
+            if (interval <= 0) throw new IllegalArgumentException("interval <= 0");
+            this.recheckMillis = unit.toMillis(interval);
+            return this;
+        }
+
+        public Prefetcher build() {
+            return new Prefetcher(this);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter;
+
+import com.youzan.mobile.rxcacheadapter.ZanCacheInterceptor.ResponseValidator;
+
+import java.io.IOException;
+
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+/**
+ * Built-in {@link ResponseValidator}s. None of them decodes the body into a String or allocates in
+ * proportion to its size.
+ */
+public final class ResponseValidators {
+
+    /** Bytes {@link #jsonField(String, String)} scans before giving up. */
+    public static final long DEFAULT_SCAN_LIMIT = 8 * 1024;
+
+    private ResponseValidators() {
+    }
+
+    /** Accepts 2XX responses. */
+    public static ResponseValidator httpSuccess() {
+        return new ResponseValidator() {
+            @Override public boolean isResponseAvailable(Response response, BufferedSource body) {
+                return response.isSuccessful();
+            }
+        };
+    }
+
+    /**
+     * Accepts bodies whose top-level JSON object has a field {@code name} with the raw JSON value
+     * {@code value}, e.g. {@code jsonField("code", "0")} or {@code jsonField("status", "\"ok\"")}.
+     * Only the first {@link #DEFAULT_SCAN_LIMIT} bytes are scanned.
+     */
+    public static ResponseValidator jsonField(String name, String value) {
+        return jsonField(name, value, DEFAULT_SCAN_LIMIT);
+    }
+
+    /** Like {@link #jsonField(String, String)}, scanning at most {@code scanLimit} bytes. */
+    public static ResponseValidator jsonField(String name, String value, final long scanLimit) {
+        final ByteString nameBytes = ByteString.encodeUtf8(name);
+        final ByteString valueBytes = ByteString.encodeUtf8(value);
+        return new ResponseValidator() {
+            @Override public boolean isResponseAvailable(Response response, BufferedSource body) {
+                try {
+                    return new JsonFieldScanner(body, scanLimit).fieldEquals(nameBytes, valueBytes);
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        };
+    }
+
+    /** Accepts responses accepted by every one of {@code validators}. */
+    public static ResponseValidator allOf(final ResponseValidator... validators) {
+        return new ResponseValidator() {
+            @Override public boolean isResponseAvailable(Response response, BufferedSource body) {
+                for (ResponseValidator validator : validators) {
+                    // Every validator reads from the start of the body. The interceptor always
+                    // passes a Buffer, whose clone shares segments instead of copying bytes.
+                    BufferedSource source = body instanceof Buffer ? ((Buffer) body).clone() : body;
+                    if (!validator.isResponseAvailable(response, source)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    /** Finds a field of the top-level JSON object one byte at a time. */
+    static final class JsonFieldScanner {
+        private final BufferedSource source;
+        private long remaining;
+
+        JsonFieldScanner(BufferedSource source, long limit) {
+            this.source = source;
+            this.remaining = limit;
+        }
+
+        boolean fieldEquals(ByteString name, ByteString value) throws IOException {
+            int first = nextNonWhitespace();
+            if (first != '{') {
+                return false;
+            }
+            int depth = 1;
+            boolean keyPosition = true;
+            for (int b = next(); b != -1; b = next()) {
+                switch (b) {
+                    case '"':
+                        if (depth == 1 && keyPosition) {
+                            keyPosition = false;
+                            if (stringEquals(name) && nextNonWhitespace() == ':') {
+                                return valueEquals(value);
+                            }
+                        } else {
+                            skipString();
+                        }
+                        break;
+                    case '{':
+                    case '[':
+                        depth++;
+                        break;
+                    case '}':
+                    case ']':
+                        if (--depth == 0) {
+                            return false;
+                        }
+                        break;
+                    case ',':
+                        keyPosition = depth == 1;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return false;
+        }
+
+        /** Consumes the rest of a string whose opening quote was read. */
+        private boolean stringEquals(ByteString expected) throws IOException {
+            boolean equal = true;
+            int i = 0;
+            for (int b = next(); b != -1; b = next()) {
+                if (b == '"') {
+                    return equal && i == expected.size();
+                }
+                if (b == '\\') {
+                    // Escaped names never match; their decoded form is not compared.
+                    next();
+                    equal = false;
+                    continue;
+                }
+                equal &= i < expected.size() && expected.getByte(i) == (byte) b;
+                i++;
+            }
+            return false;
+        }
+
+        private void skipString() throws IOException {
+            for (int b = next(); b != -1 && b != '"'; b = next()) {
+                if (b == '\\') {
+                    next();
+                }
+            }
+        }
+
+        /** Compares the raw token of the value that follows a field's colon. */
+        private boolean valueEquals(ByteString expected) throws IOException {
+            int b = nextNonWhitespace();
+            if (b == '"') {
+                return expected.size() >= 2 && expected.getByte(0) == '"'
+                        && stringEquals(expected.substring(1, expected.size() - 1))
+                        && expected.getByte(expected.size() - 1) == '"';
+            }
+            int i = 0;
+            while (b != -1 && b != ',' && b != '}' && b != ']' && !isWhitespace(b)) {
+                if (i >= expected.size() || expected.getByte(i) != (byte) b) {
+                    return false;
+                }
+                i++;
+                b = next();
+            }
+            return i == expected.size();
+        }
+
+        private int nextNonWhitespace() throws IOException {
+            int b = next();
+            while (b != -1 && isWhitespace(b)) {
+                b = next();
+            }
+            return b;
+        }
+
+        private int next() throws IOException {
+            if (remaining <= 0 || !source.request(1)) {
+                return -1;
+            }
+            remaining--;
+            return source.readByte() & 0xff;
+        }
+
+        private static boolean isWhitespace(int b) {
+            return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+        }
+    }
+}
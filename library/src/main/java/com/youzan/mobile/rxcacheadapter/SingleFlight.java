@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Func0;
+
+/**
+ * Lets concurrent subscribers of the same request share one in-flight network call. The call
+ * is reference counted: it is only canceled once its last subscriber unsubscribes.
+ */
+final class SingleFlight {
+
+    private final ConcurrentHashMap<String, Observable<?>> inFlight = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked") // Callers put the converted type into the key.
+    <T> Observable<T> share(final String key, final Observable<T> source) {
+        return Observable.defer(new Func0<Observable<T>>() {
+            @Override public Observable<T> call() {
+                while (true) {
+                    Observable<T> existing = (Observable<T>) inFlight.get(key);
+                    if (existing != null) {
+                        return existing;
+                    }
+                    final Observable<?>[] self = new Observable<?>[1];
+                    Action0 release = new Action0() {
+                        @Override public void call() {
+                            inFlight.remove(key, self[0]);
+                        }
+                    };
+                    Observable<T> shared = source
+                            .doOnTerminate(release)
+                            .doOnUnsubscribe(release)
+                            .share();
+                    self[0] = shared;
+                    if (inFlight.putIfAbsent(key, shared) == null) {
+                        return shared;
+                    }
+                }
+            }
+        });
+    }
+
+    int inFlightCount() {
+        return inFlight.size();
+    }
+}
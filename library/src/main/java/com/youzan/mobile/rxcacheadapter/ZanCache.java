@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * The cache policy of a service method, read once when its call adapter is created.
+ * <pre><code>
+ * interface MyService {
+ *   &#64;GET("user/me")
+ *   &#64;ZanCache(policy = CACHE_BEFORE, maxAge = 300)
+ *   Observable&lt;User&gt; getUser()
+ * }
+ * </code></pre>
+ * A {@link ZanCacheControl#CACHE_HEADER} header on a call replaces the annotated policy for that
+ * call.
+ */
+@Documented
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface ZanCache {
+    Policy policy();
+
+    /** Seconds a cached response is served without the network, or -1 to always ask it. */
+    int maxAge() default -1;
+
+    /** Seconds after {@link #maxAge()} a cached response is served and refreshed, or -1. */
+    int staleWhileRevalidate() default -1;
+
+    enum Policy {
+        /** {@code cache-before}: the cached response, then the network one. */
+        CACHE_BEFORE,
+        /** {@code only-if-cached}: the cached response, the network only on a miss. */
+        ONLY_IF_CACHED,
+        /** {@code refresh_cache}: the network response, which is stored. */
+        REFRESH_CACHE,
+        /** {@code no-cache}: the network response, which isn't stored. */
+        NO_CACHE,
+    }
+}
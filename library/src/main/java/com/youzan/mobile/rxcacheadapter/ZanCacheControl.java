@@ -15,8 +15,15 @@
  */
 package com.youzan.mobile.rxcacheadapter;
 
+import java.lang.annotation.Annotation;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import okhttp3.Headers;
+import okhttp3.Request;
 import okhttp3.internal.http.HeaderParser;
+import retrofit2.Response;
 
 /**
  * Created by ryan on 16/8/28.
@@ -26,18 +33,54 @@ public class ZanCacheControl {
 
     public static String CACHE_HEADER = "ZanCache";
 
+    /**
+     * Set on a network response of a {@code cache-before} call whose body is byte-identical to the
+     * cached response emitted before it.
+     */
+    public static final String UNCHANGED_HEADER = "ZanCache-Unchanged";
+
+    /** Served as is, no network call is made. */
+    public static final int FRESH = 0;
+    /** Served, then the network response is delivered as well. */
+    public static final int STALE = 1;
+    /** Served, and refreshed by a network call that the subscriber doesn't wait for. */
+    public static final int STALE_WHILE_REVALIDATE = 2;
+    /** Too old to be served, the network is used directly. */
+    public static final int EXPIRED = 3;
+
+    /** Applies when a request has no {@link #CACHE_HEADER} and its method no {@link ZanCache}. */
+    private static final ZanCacheControl NONE =
+            new ZanCacheControl(false, -1, -1, false, false, false, null);
+
+    /**
+     * Recently parsed header values. Values usually come from {@code @Headers} and repeat on every
+     * call, so a hit skips parsing. Entries are immutable and looked up by value.
+     */
+    private static final ZanCacheControl[] PARSED = new ZanCacheControl[16];
+
+    /**
+     * Annotated policies by request, for {@link ZanCacheInterceptor} which only sees the OkHttp
+     * request. Retrofit executes the instance its {@code Call.request()} returned and requests
+     * compare by identity, so a policy stays with its request and goes away with it.
+     */
+    private static final Map<Request, ZanCacheControl> REQUEST_POLICIES =
+            Collections.synchronizedMap(new WeakHashMap<Request, ZanCacheControl>());
+
     String headerValue; // Lazily computed, null if absent.
 
     private final boolean noCache;
     private final int maxAgeSeconds;
+    private final int staleWhileRevalidateSeconds;
     private final boolean onlyIfCached;
     private final boolean cacheBefore;
     private final boolean refreshCache;
 
-    private ZanCacheControl(boolean noCache, int maxAgeSeconds, boolean onlyIfCached,
-                            boolean cacheBefore, boolean refreshCache, String headerValue) {
+    private ZanCacheControl(boolean noCache, int maxAgeSeconds, int staleWhileRevalidateSeconds,
+                            boolean onlyIfCached, boolean cacheBefore, boolean refreshCache,
+                            String headerValue) {
         this.noCache = noCache;
         this.maxAgeSeconds = maxAgeSeconds;
+        this.staleWhileRevalidateSeconds = staleWhileRevalidateSeconds;
         this.onlyIfCached = onlyIfCached;
         this.headerValue = headerValue;
         this.cacheBefore = cacheBefore;
@@ -45,19 +88,87 @@ public class ZanCacheControl {
     }
 
     public static ZanCacheControl createOnlyIfCache() {
-        return new ZanCacheControl(false, 0, true, false, false, "only-if-cached");
+        return new ZanCacheControl(false, -1, -1, true, false, false, "only-if-cached");
     }
 
     public static ZanCacheControl createNoCache() {
-        return new ZanCacheControl(true, 0, false, false, false, "no-cache");
+        return new ZanCacheControl(true, -1, -1, false, false, false, "no-cache");
     }
 
     public static ZanCacheControl createCacheBefore() {
-        return new ZanCacheControl(true, 0, false, false, false, "cache-before");
+        return new ZanCacheControl(false, -1, -1, false, true, false, "cache-before");
     }
 
     public static ZanCacheControl createRefreshCache() {
-        return new ZanCacheControl(false, 0, false, false, true, "refresh_cache");
+        return new ZanCacheControl(false, -1, -1, false, false, true, "refresh_cache");
+    }
+
+    /** Returns the policy of {@code annotation}. */
+    public static ZanCacheControl of(ZanCache annotation) {
+        boolean noCache = false;
+        boolean onlyIfCached = false;
+        boolean cacheBefore = false;
+        boolean refreshCache = false;
+        String directive;
+        switch (annotation.policy()) {
+            case CACHE_BEFORE:
+                cacheBefore = true;
+                directive = "cache-before";
+                break;
+            case ONLY_IF_CACHED:
+                onlyIfCached = true;
+                directive = "only-if-cached";
+                break;
+            case REFRESH_CACHE:
+                refreshCache = true;
+                directive = "refresh_cache";
+                break;
+            default:
+                noCache = true;
+                directive = "no-cache";
+        }
+        StringBuilder headerValue = new StringBuilder(directive);
+        if (annotation.maxAge() >= 0) {
+            headerValue.append(", max-age=").append(annotation.maxAge());
+        }
+        if (annotation.staleWhileRevalidate() >= 0) {
+            headerValue.append(", stale-while-revalidate=")
+                    .append(annotation.staleWhileRevalidate());
+        }
+        return new ZanCacheControl(noCache, annotation.maxAge(),
+                annotation.staleWhileRevalidate(), onlyIfCached, cacheBefore, refreshCache,
+                headerValue.toString());
+    }
+
+    /** Returns the policy of the {@link ZanCache} in {@code annotations}, or null if it has none. */
+    static ZanCacheControl fromAnnotations(Annotation[] annotations) {
+        for (Annotation annotation : annotations) {
+            if (annotation instanceof ZanCache) {
+                return of((ZanCache) annotation);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the policy of a call: its {@link #CACHE_HEADER} if it has one, else
+     * {@code annotated}, the policy of its method which may be null.
+     */
+    static ZanCacheControl forRequest(Headers headers, ZanCacheControl annotated) {
+        if (annotated != null && headers.get(CACHE_HEADER) == null) {
+            return annotated;
+        }
+        return parse(headers);
+    }
+
+    /** Attaches the annotated {@code policy} of its method to {@code request}. */
+    static void setRequestPolicy(Request request, ZanCacheControl policy) {
+        REQUEST_POLICIES.put(request, policy);
+    }
+
+    /** Returns the policy attached to {@code request}, or null if it has none. */
+    static ZanCacheControl requestPolicy(Request request) {
+        return REQUEST_POLICIES.get(request);
     }
 
     public boolean noCache() {
@@ -68,6 +179,40 @@ public class ZanCacheControl {
         return maxAgeSeconds;
     }
 
+    /**
+     * How long after {@link #maxAgeSeconds()} a cached response may still be served while it is
+     * refreshed in the background, or -1 if it may not.
+     */
+    public int staleWhileRevalidateSeconds() {
+        return staleWhileRevalidateSeconds;
+    }
+
+    /**
+     * Returns the freshness of a cached response that was received at {@code receivedMillis}.
+     * Without a {@code max-age} every cached response is {@link #STALE}, so it is shown and then
+     * replaced by the network response, as {@code cache-before} always did.
+     */
+    public int freshness(long receivedMillis, long nowMillis) {
+        return freshness(receivedMillis, nowMillis, 1f);
+    }
+
+    /** Like {@link #freshness(long, long)} with {@code max-age} scaled by {@code maxAgeFactor}. */
+    public int freshness(long receivedMillis, long nowMillis, float maxAgeFactor) {
+        if (maxAgeSeconds < 0) {
+            return STALE;
+        }
+        long ageMillis = nowMillis - receivedMillis;
+        long maxAgeMillis = (long) (maxAgeSeconds * 1000L * (double) maxAgeFactor);
+        if (ageMillis <= maxAgeMillis) {
+            return FRESH;
+        }
+        if (staleWhileRevalidateSeconds >= 0
+                && ageMillis <= maxAgeMillis + staleWhileRevalidateSeconds * 1000L) {
+            return STALE_WHILE_REVALIDATE;
+        }
+        return EXPIRED;
+    }
+
     public boolean onlyIfCached() {
         return onlyIfCached;
     }
@@ -88,9 +233,42 @@ public class ZanCacheControl {
         return refreshCache;
     }
 
+    /**
+     * Returns true if {@code response} repeats the cached response that was emitted right before
+     * it, so there is nothing new to render.
+     */
+    public static boolean isUnchanged(Response<?> response) {
+        return response.raw().header(UNCHANGED_HEADER) != null;
+    }
+
+    /** Returns the policy of the {@link #CACHE_HEADER} headers in {@code headers}. */
     public static ZanCacheControl parse(Headers headers) {
+        String value = null;
+        for (int i = 0, size = headers.size(); i < size; i++) {
+            if (headers.name(i).equalsIgnoreCase(CACHE_HEADER)) {
+                if (value != null) {
+                    return parseHeaders(headers);
+                }
+                value = headers.value(i);
+            }
+        }
+        if (value == null) {
+            return NONE;
+        }
+        int slot = value.hashCode() & (PARSED.length - 1);
+        ZanCacheControl parsed = PARSED[slot];
+        if (parsed != null && value.equals(parsed.headerValue)) {
+            return parsed;
+        }
+        parsed = parseHeaders(headers);
+        PARSED[slot] = parsed;
+        return parsed;
+    }
+
+    private static ZanCacheControl parseHeaders(Headers headers) {
         boolean noCache = false;
         int maxAgeSeconds = -1;
+        int staleWhileRevalidateSeconds = -1;
         boolean onlyIfCached = false;
         boolean cacheBefore = false;
         String headerValue = null;
@@ -101,13 +279,14 @@ public class ZanCacheControl {
             String name = headers.name(i);
             String value = headers.value(i);
 
-            if (name.equalsIgnoreCase(CACHE_HEADER)) {
-                if (headerValue != null) {
-                    // Multiple cache-control headers means we can't use the raw value.
-                    canUseHeaderValue = false;
-                } else {
-                    headerValue = value;
-                }
+            if (!name.equalsIgnoreCase(CACHE_HEADER)) {
+                continue;
+            }
+            if (headerValue != null) {
+                // Multiple cache-control headers means we can't use the raw value.
+                canUseHeaderValue = false;
+            } else {
+                headerValue = value;
             }
 
             int pos = 0;
@@ -144,6 +323,8 @@ public class ZanCacheControl {
                     noCache = true;
                 } else if ("max-age".equalsIgnoreCase(directive)) {
                     maxAgeSeconds = HeaderParser.parseSeconds(parameter, -1);
+                } else if ("stale-while-revalidate".equalsIgnoreCase(directive)) {
+                    staleWhileRevalidateSeconds = HeaderParser.parseSeconds(parameter, -1);
                 } else if ("only-if-cached".equalsIgnoreCase(directive)) {
                     onlyIfCached = true;
                 } else if ("cache-before".equals(directive)) {
@@ -156,7 +337,8 @@ public class ZanCacheControl {
         if (!canUseHeaderValue) {
             headerValue = null;
         }
-        return new ZanCacheControl(noCache, maxAgeSeconds, onlyIfCached, cacheBefore, refreshCache, headerValue);
+        return new ZanCacheControl(noCache, maxAgeSeconds, staleWhileRevalidateSeconds, onlyIfCached,
+                cacheBefore, refreshCache, headerValue);
     }
 
 }
@@ -21,10 +21,15 @@ import com.youzan.mobile.rxcacheadapter.cache.ZanLocalCache;
 
 import java.io.IOException;
 
+import okhttp3.Headers;
 import okhttp3.Interceptor;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 
 /**
  *
@@ -43,12 +48,75 @@ import okhttp3.ResponseBody;
 
 public class ZanCacheInterceptor implements Interceptor {
 
-    private ResponseAvailable responseAvailable;
-    private Context context;
+    /** Bytes of a streamed body that the validator gets to see. */
+    static final int STREAMING_CHECK_PREFIX = 8 * 1024;
+
+    private ResponseValidator responseValidator;
+    private final NetworkStateProvider networkState;
+    private final boolean streaming;
+    private final ZanLocalCache cache;
 
     public ZanCacheInterceptor(Context context, ResponseAvailable availableCheck) {
-        this.responseAvailable = availableCheck;
-        this.context = context;
+        this(context, availableCheck, false);
+    }
+
+    /**
+     * With {@code streaming} set, cacheable bodies are written to the cache while the caller
+     * reads them instead of being buffered into a String first. {@code availableCheck} then only
+     * sees the first {@value #STREAMING_CHECK_PREFIX} bytes of the body, which is enough for an
+     * envelope field like {@code "code":0}.
+     */
+    public ZanCacheInterceptor(Context context, ResponseAvailable availableCheck,
+                               boolean streaming) {
+        this(context, fromResponseAvailable(availableCheck), streaming);
+    }
+
+    /**
+     * Uses a byte-level {@code validator} instead of a String check, see
+     * {@link ResponseValidators} for built-in ones.
+     */
+    public ZanCacheInterceptor(Context context, ResponseValidator validator) {
+        this(context, validator, false);
+    }
+
+    public ZanCacheInterceptor(Context context, ResponseValidator validator, boolean streaming) {
+        this(context, null, validator, streaming);
+    }
+
+    /**
+     * Stores responses in {@code cache} instead of {@link ZanLocalCache#getInstance()}. Give the
+     * same instance to the {@link ZanRxJavaCallAdapterFactory} of the Retrofit using this client.
+     */
+    public ZanCacheInterceptor(Context context, ZanLocalCache cache, ResponseValidator validator,
+                               boolean streaming) {
+        this(NetworkStateMonitor.get(context), cache, validator, streaming);
+    }
+
+    /**
+     * Reads the connection class from {@code networkState} instead of the application's
+     * {@link NetworkStateMonitor}.
+     */
+    public ZanCacheInterceptor(NetworkStateProvider networkState, ZanLocalCache cache,
+                               ResponseValidator validator, boolean streaming) {
+        this.responseValidator = validator;
+        this.networkState = networkState;
+        this.streaming = streaming;
+        this.cache = cache;
+    }
+
+    private static ResponseValidator fromResponseAvailable(final ResponseAvailable availableCheck) {
+        if (availableCheck == null) {
+            return null;
+        }
+        return new ResponseValidator() {
+            @Override public boolean isResponseAvailable(Response response, BufferedSource body) {
+                try {
+                    return availableCheck.isResponseAvailable(body.readUtf8());
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        };
     }
 
     @Override
@@ -56,39 +124,174 @@ public class ZanCacheInterceptor implements Interceptor {
         Request request = chain.request();
         Response response;
 
+        ZanCacheControl annotated = ZanCacheControl.requestPolicy(request);
         ZanCacheControl cacheControl;
-        int netwrokState = NetworkUtils.getState(context);
+        int netwrokState = networkState.getState();
         switch (netwrokState) {
             case NetworkUtils.NETWORK_NONE:
                 cacheControl = ZanCacheControl.createOnlyIfCache();
                 break;
             default:
-                cacheControl = ZanCacheControl.parse(request.headers());
+                cacheControl = ZanCacheControl.forRequest(request.headers(), annotated);
         }
         if (cacheControl.isWriteCacheOpen()) {
+            ZanLocalCache localCache = cache != null ? cache : ZanLocalCache.getInstance();
             Request.Builder reqBuilder = request.newBuilder();
             reqBuilder.removeHeader(ZanCacheControl.CACHE_HEADER);
+            reqBuilder.removeHeader(ZanLocalCache.TAGS_HEADER);
             Request newRequest = reqBuilder.build();
 
-            Response checkResponse = chain.proceed(newRequest);
-            String resStr = checkResponse.body().string();
+            // Let the server answer 304 instead of resending a body we already have. Only the
+            // stored headers are read here, the body is opened once the server answered 304.
+            Request plainRequest = newRequest;
+            if (cacheControl.cacheBefore()) {
+                Headers cachedHeaders = localCache.cachedHeaders(newRequest);
+                if (cachedHeaders != null) {
+                    newRequest = conditionalRequest(newRequest, cachedHeaders);
+                }
+            }
 
-            if (responseAvailable != null && responseAvailable.isResponseAvailable(resStr)) {
-                ZanLocalCache.getInstance().put(checkResponse.newBuilder()
-                        .body(ResponseBody.create(checkResponse.body().contentType(), resStr))
+            Response networkResponse = chain.proceed(newRequest);
+            Response cached = null;
+            if (newRequest != plainRequest && networkResponse.code() == HTTP_NOT_MODIFIED) {
+                cached = localCache.get(plainRequest);
+                if (cached == null) {
+                    // Evicted since its validators were read, fetch the body after all.
+                    networkResponse.body().close();
+                    newRequest = plainRequest;
+                    networkResponse = chain.proceed(newRequest);
+                }
+            }
+            // The tags are stored with the response, the server never sees them.
+            String tags = request.header(ZanLocalCache.TAGS_HEADER);
+            if (tags != null && networkResponse.header(ZanLocalCache.TAGS_HEADER) == null) {
+                networkResponse = networkResponse.newBuilder()
+                        .header(ZanLocalCache.TAGS_HEADER, tags)
+                        .build();
+            }
+            final Response checkResponse = networkResponse;
+            if (cached != null) {
+                checkResponse.body().close();
+                Response updated = cached.newBuilder()
+                        .request(newRequest)
+                        .headers(combine(cached.headers(), checkResponse.headers()))
+                        .sentRequestAtMillis(checkResponse.sentRequestAtMillis())
+                        .receivedResponseAtMillis(checkResponse.receivedResponseAtMillis())
+                        .networkResponse(checkResponse.networkResponse() != null
+                                ? checkResponse.networkResponse()
+                                : checkResponse.newBuilder().body(null).build())
+                        .build();
+                localCache.update(updated);
+                return updated;
+            }
+            if (responseValidator == null) {
+                return checkResponse;
+            }
+            if (streaming) {
+                return localCache.putStreaming(checkResponse,
+                        STREAMING_CHECK_PREFIX, new ZanLocalCache.CommitCheck() {
+                            @Override public boolean shouldCommit(BufferedSource prefix) {
+                                return responseValidator.isResponseAvailable(checkResponse, prefix);
+                            }
+                        });
+            }
+            ResponseBody body = checkResponse.body();
+            Buffer buffer = new Buffer();
+            try {
+                body.source().readAll(buffer);
+            } finally {
+                body.close();
+            }
+
+            // Clones share the buffer's segments, the body bytes are never copied.
+            Response.Builder responseBuilder = checkResponse.newBuilder();
+            if (responseValidator.isResponseAvailable(checkResponse, buffer.clone())) {
+                // Lets the adapter tell whether the body differs from the cached one.
+                responseBuilder.header(ZanLocalCache.CONTENT_HASH_HEADER, buffer.md5().hex());
+                localCache.put(responseBuilder
+                        .body(ResponseBody.create(body.contentType(), buffer.size(), buffer.clone()))
                         .build());
             }
 
-            response = checkResponse.newBuilder()
-                    .body(ResponseBody.create(checkResponse.body().contentType(), resStr))
+            response = responseBuilder
+                    .body(ResponseBody.create(body.contentType(), buffer.size(), buffer))
                     .build();
         } else {
+            // Tags are only meant for the cache, the server never sees them.
+            if (request.header(ZanLocalCache.TAGS_HEADER) != null) {
+                request = request.newBuilder().removeHeader(ZanLocalCache.TAGS_HEADER).build();
+            }
             response = chain.proceed(request);
         }
         return response;
     }
 
+    /**
+     * Returns {@code request} with the validators in {@code cachedHeaders}, or itself if there are
+     * none.
+     */
+    private static Request conditionalRequest(Request request, Headers cachedHeaders) {
+        if (request.header("If-None-Match") != null
+                || request.header("If-Modified-Since") != null) {
+            return request; // The caller revalidates by itself.
+        }
+        String etag = cachedHeaders.get("ETag");
+        String lastModified = cachedHeaders.get("Last-Modified");
+        if (etag == null && lastModified == null) {
+            return request;
+        }
+        Request.Builder builder = request.newBuilder();
+        if (etag != null) {
+            builder.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            builder.header("If-Modified-Since", lastModified);
+        }
+        return builder.build();
+    }
+
+    /** Combines cached and 304 headers, as described in RFC 7234, 4.3.4. */
+    private static Headers combine(Headers cachedHeaders, Headers networkHeaders) {
+        Headers.Builder result = new Headers.Builder();
+
+        for (int i = 0, size = cachedHeaders.size(); i < size; i++) {
+            String fieldName = cachedHeaders.name(i);
+            String value = cachedHeaders.value(i);
+            if ("Warning".equalsIgnoreCase(fieldName) && value.startsWith("1")) {
+                continue; // Drop 100-level freshness warnings.
+            }
+            if (isContentSpecificHeader(fieldName) || networkHeaders.get(fieldName) == null) {
+                result.add(fieldName, value);
+            }
+        }
+
+        for (int i = 0, size = networkHeaders.size(); i < size; i++) {
+            String fieldName = networkHeaders.name(i);
+            if (!isContentSpecificHeader(fieldName)) {
+                result.add(fieldName, networkHeaders.value(i));
+            }
+        }
+
+        return result.build();
+    }
+
+    /** The 304 describes the stored body, so these headers must come from the cache. */
+    private static boolean isContentSpecificHeader(String fieldName) {
+        return "Content-Length".equalsIgnoreCase(fieldName)
+                || "Content-Encoding".equalsIgnoreCase(fieldName)
+                || "Content-Type".equalsIgnoreCase(fieldName);
+    }
+
     public interface ResponseAvailable {
         boolean isResponseAvailable(String resStr);
     }
+
+    /**
+     * Decides whether a response may be cached by looking at its bytes. {@code body} holds the
+     * whole body, or only its first {@value #STREAMING_CHECK_PREFIX} bytes in streaming mode, and
+     * may be consumed.
+     */
+    public interface ResponseValidator {
+        boolean isResponseAvailable(Response response, BufferedSource body);
+    }
 }
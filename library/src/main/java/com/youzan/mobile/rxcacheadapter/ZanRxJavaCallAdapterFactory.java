@@ -16,6 +16,7 @@
 package com.youzan.mobile.rxcacheadapter;
 
 
+import com.youzan.mobile.rxcacheadapter.cache.CacheEventListener;
 import com.youzan.mobile.rxcacheadapter.cache.CacheResponse;
 import com.youzan.mobile.rxcacheadapter.cache.ZanLocalCache;
 
@@ -23,9 +24,12 @@ import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import okhttp3.Request;
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.CallAdapter;
 import retrofit2.Response;
@@ -36,7 +40,13 @@ import rx.Scheduler;
 import rx.Subscriber;
 import rx.Subscription;
 import rx.exceptions.Exceptions;
+import rx.functions.Action1;
+import rx.functions.Actions;
+import rx.functions.Func0;
 import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 
 /**
  * A {@linkplain CallAdapter.Factory call adapter} which uses RxJava for creating observables.
@@ -49,6 +59,9 @@ import rx.functions.Func1;
  *   Observable&lt;User&gt; getUser()
  * }
  * </code></pre>
+ * Local cache lookups for {@code Observable<Response<User>>} are deferred until subscription and
+ * performed on the cache scheduler ({@link Schedulers#io()} unless one is supplied), so calling a
+ * service method never touches the disk.
  * There are three configurations supported for the {@code Observable} type parameter:
  * <ul>
  * <li>Direct body (e.g., {@code Observable<User>}) calls {@code onNext} with the deserialized body
@@ -67,7 +80,7 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
      * by default.
      */
     public static ZanRxJavaCallAdapterFactory create() {
-        return new ZanRxJavaCallAdapterFactory(null);
+        return new Builder().build();
     }
 
     /**
@@ -76,13 +89,154 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
      */
     public static ZanRxJavaCallAdapterFactory createWithScheduler(Scheduler scheduler) {
         if (scheduler == null) throw new NullPointerException("scheduler == null");
-        return new ZanRxJavaCallAdapterFactory(scheduler);
+        return new Builder().scheduler(scheduler).build();
+    }
+
+    /**
+     * Returns an instance which creates observables that
+     * {@linkplain Observable#subscribeOn(Scheduler) subscribe on} {@code scheduler} by default and
+     * read the local cache on {@code cacheScheduler}. A null {@code scheduler} keeps network calls
+     * synchronous.
+     */
+    public static ZanRxJavaCallAdapterFactory createWithScheduler(Scheduler scheduler,
+                                                                  Scheduler cacheScheduler) {
+        return new Builder().scheduler(scheduler).cacheScheduler(cacheScheduler).build();
     }
 
     private final Scheduler scheduler;
+    private final Scheduler cacheScheduler;
+    private final SingleFlight singleFlight;
+    private final boolean dropUnchanged;
+    private final ZanLocalCache cache;
+    private final NetworkStateProvider networkState;
+    private final NetworkPolicy networkPolicy;
+    private final Map<String, NetworkPolicy> endpointPolicies;
+
+    private ZanRxJavaCallAdapterFactory(Builder builder) {
+        this.scheduler = builder.scheduler;
+        this.cacheScheduler = builder.cacheScheduler;
+        this.singleFlight = builder.singleFlight ? new SingleFlight() : null;
+        this.dropUnchanged = builder.dropUnchanged;
+        this.cache = builder.cache;
+        this.networkState = builder.networkState;
+        this.networkPolicy = builder.networkPolicy;
+        this.endpointPolicies = new LinkedHashMap<>(builder.endpointPolicies);
+    }
+
+    /**
+     * Returns the policy of the endpoint with the relative URL {@code template}: the one
+     * registered for its longest prefix, else the default.
+     */
+    NetworkPolicy networkPolicy(String template) {
+        if (networkState == null) {
+            return NetworkPolicy.DEFAULT;
+        }
+        NetworkPolicy policy = networkPolicy;
+        if (template != null) {
+            int longest = -1;
+            for (Map.Entry<String, NetworkPolicy> entry : endpointPolicies.entrySet()) {
+                String prefix = entry.getKey();
+                if (template.startsWith(prefix) && prefix.length() > longest) {
+                    policy = entry.getValue();
+                    longest = prefix.length();
+                }
+            }
+        }
+        return policy;
+    }
+
+    /** Returns {@code cache}, or the default instance if it is null. */
+    static ZanLocalCache cacheOrDefault(ZanLocalCache cache) {
+        return cache != null ? cache : ZanLocalCache.getInstance();
+    }
+
+    public static final class Builder {
+        private Scheduler scheduler;
+        private Scheduler cacheScheduler = Schedulers.io();
+        private boolean singleFlight;
+        private boolean dropUnchanged;
+        private ZanLocalCache cache;
+        private NetworkStateProvider networkState;
+        private NetworkPolicy networkPolicy = NetworkPolicy.DEFAULT;
+        private final Map<String, NetworkPolicy> endpointPolicies = new LinkedHashMap<>();
+
+        /**
+         * Observables {@linkplain Observable#subscribeOn(Scheduler) subscribe on}
+         * {@code scheduler}. Null, the default, keeps network calls synchronous.
+         */
+        public Builder scheduler(Scheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /** The local cache is read on {@code cacheScheduler}, {@link Schedulers#io()} by default. */
+        public Builder cacheScheduler(Scheduler cacheScheduler) {
+            if (cacheScheduler == null) throw new NullPointerException("cacheScheduler == null");
+            this.cacheScheduler = cacheScheduler;
+            return this;
+        }
+
+        /**
+         * Concurrent subscribers of cacheable GET requests for the same URL share one network
+         * call, and so one cache write. The call is canceled when the last of them unsubscribes.
+         * Subscribers receive the same converted body instance. Calls returning a raw
+         * {@link ResponseBody} are never shared, as their body can only be read once.
+         */
+        public Builder singleFlight(boolean singleFlight) {
+            this.singleFlight = singleFlight;
+            return this;
+        }
+
+        /**
+         * When the network response of a {@code cache-before} call has the same body as the
+         * cached response emitted before it, drop it instead of emitting it flagged with
+         * {@link ZanCacheControl#UNCHANGED_HEADER}.
+         */
+        public Builder dropUnchanged(boolean dropUnchanged) {
+            this.dropUnchanged = dropUnchanged;
+            return this;
+        }
+
+        /**
+         * Reads cached responses from {@code cache} instead of {@link ZanLocalCache#getInstance()}.
+         * Give the same instance to the {@link ZanCacheInterceptor} of this Retrofit's client.
+         */
+        public Builder cache(ZanLocalCache cache) {
+            this.cache = cache;
+            return this;
+        }
 
-    private ZanRxJavaCallAdapterFactory(Scheduler scheduler) {
-        this.scheduler = scheduler;
+        /**
+         * Reads the connection class from {@code networkState}, usually
+         * {@link NetworkStateMonitor#get}. Network policies only apply with one.
+         */
+        public Builder networkState(NetworkStateProvider networkState) {
+            this.networkState = networkState;
+            return this;
+        }
+
+        /** Serves cached responses as {@code policy} asks, {@link NetworkPolicy#DEFAULT} if unset. */
+        public Builder networkPolicy(NetworkPolicy policy) {
+            if (policy == null) throw new NullPointerException("policy == null");
+            this.networkPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Uses {@code policy} for service methods whose relative URL, as written in their
+         * {@code @GET} or other HTTP method annotation, starts with {@code pathPrefix}. The longest
+         * matching prefix wins.
+         */
+        public Builder networkPolicy(String pathPrefix, NetworkPolicy policy) {
+            if (pathPrefix == null) throw new NullPointerException("pathPrefix == null");
+            if (policy == null) throw new NullPointerException("policy == null");
+            endpointPolicies.put(pathPrefix, policy);
+            return this;
+        }
+
+        public ZanRxJavaCallAdapterFactory build() {
+            return new ZanRxJavaCallAdapterFactory(this);
+        }
     }
 
     @Override
@@ -108,7 +262,8 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
             return CompletableHelper.createCallAdapter(scheduler);
         }
 
-        CallAdapter<Observable<?>> callAdapter = getCallAdapter(returnType, scheduler, annotations, retrofit);
+        CallAdapter<Observable<?>> callAdapter = getCallAdapter(returnType, annotations, retrofit,
+                isSingle);
         if (isSingle) {
             // Add Single-converter wrapper from a separate class. This defers classloading such that
             // regular Observable operation can be leveraged without relying on this unstable RxJava API.
@@ -117,8 +272,8 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
         return callAdapter;
     }
 
-    private CallAdapter<Observable<?>> getCallAdapter(Type returnType, Scheduler scheduler,
-                                                      Annotation[] annotations, Retrofit retrofit) {
+    private CallAdapter<Observable<?>> getCallAdapter(Type returnType, Annotation[] annotations,
+                                                      Retrofit retrofit, boolean singleValue) {
         Type observableType = getParameterUpperBound(0, (ParameterizedType) returnType);
         Class<?> rawObservableType = getRawType(observableType);
         if (rawObservableType == Response.class) {
@@ -127,7 +282,8 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
                         + " as Response<Foo> or Response<? extends Foo>");
             }
             Type responseType = getParameterUpperBound(0, (ParameterizedType) observableType);
-            return new ResponseCallAdapter(responseType, scheduler, annotations, retrofit);
+            return new ResponseCallAdapter(responseType,
+                    new CachePipeline(this, responseType, annotations, retrofit, singleValue));
         }
 
         if (rawObservableType == Result.class) {
@@ -136,17 +292,31 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
                         + " as Result<Foo> or Result<? extends Foo>");
             }
             Type responseType = getParameterUpperBound(0, (ParameterizedType) observableType);
-            return new ResultCallAdapter(responseType, scheduler);
+            return new ResultCallAdapter(responseType,
+                    new CachePipeline(this, responseType, annotations, retrofit, singleValue));
         }
 
-        return new SimpleCallAdapter(observableType, scheduler);
+        return new SimpleCallAdapter(observableType,
+                new CachePipeline(this, observableType, annotations, retrofit, singleValue));
     }
 
     static final class CallOnSubscribe<T> implements Observable.OnSubscribe<Response<T>> {
         private final Call<T> originalCall;
+        private final ZanCacheControl policy;
+        private final String endpoint;
 
         CallOnSubscribe(Call<T> originalCall) {
+            this(originalCall, null, null);
+        }
+
+        /**
+         * {@code policy} is the annotated policy of the call's method and {@code endpoint} its URL
+         * template, both may be null.
+         */
+        CallOnSubscribe(Call<T> originalCall, ZanCacheControl policy, String endpoint) {
             this.originalCall = originalCall;
+            this.policy = policy;
+            this.endpoint = endpoint;
         }
 
         @Override public void call(final Subscriber<? super Response<T>> subscriber) {
@@ -154,7 +324,8 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
             Call<T> call = originalCall.clone();
 
             // Wrap the call in a helper which handles both unsubscription and backpressure.
-            RequestArbiter<T> requestArbiter = new RequestArbiter<>(call, subscriber);
+            RequestArbiter<T> requestArbiter =
+                    new RequestArbiter<>(call, policy, endpoint, subscriber);
             subscriber.add(requestArbiter);
             subscriber.setProducer(requestArbiter);
         }
@@ -162,10 +333,15 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
 
     static final class RequestArbiter<T> extends AtomicBoolean implements Subscription, Producer {
         private final Call<T> call;
+        private final ZanCacheControl policy;
+        private final String endpoint;
         private final Subscriber<? super Response<T>> subscriber;
 
-        RequestArbiter(Call<T> call, Subscriber<? super Response<T>> subscriber) {
+        RequestArbiter(Call<T> call, ZanCacheControl policy, String endpoint,
+                       Subscriber<? super Response<T>> subscriber) {
             this.call = call;
+            this.policy = policy;
+            this.endpoint = endpoint;
             this.subscriber = subscriber;
         }
 
@@ -175,7 +351,18 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
             if (!compareAndSet(false, true)) return; // Request was already triggered.
 
             try {
-                Response<T> response = call.execute();
+                Response<T> response;
+                if (policy != null) {
+                    // Retrofit builds the request once and executes that same instance.
+                    ZanCacheControl.setRequestPolicy(call.request(), policy);
+                }
+                // Interceptors run on this thread while the call executes.
+                CacheEventListener.setCallEndpoint(endpoint);
+                try {
+                    response = call.execute();
+                } finally {
+                    CacheEventListener.setCallEndpoint(null);
+                }
                 if (!subscriber.isUnsubscribed()) {
                     subscriber.onNext(response);
                 }
@@ -201,17 +388,119 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
         }
     }
 
-    static final class ResponseCallAdapter implements CallAdapter<Observable<?>> {
+    /**
+     * Turns a call into its responses, read from the local cache, the network or both as the
+     * call's {@link ZanCacheControl} asks: its {@link ZanCacheControl#CACHE_HEADER}, or else the
+     * {@link ZanCache} policy of its method, which is resolved once here. All adapter shapes share
+     * it, they only differ in how they map the responses.
+     */
+    static final class CachePipeline {
         private final Type responseType;
         private final Scheduler scheduler;
-        private Annotation[] mAnnotations;
-        private Retrofit mRetrofit;
+        private final Scheduler cacheScheduler;
+        private final SingleFlight singleFlight;
+        private final boolean dropUnchanged;
+        private final ZanLocalCache cache;
+        private final Annotation[] annotations;
+        private final Retrofit retrofit;
+        private final boolean singleValue;
+        private final ZanCacheControl annotated;
+        private final NetworkStateProvider networkState;
+        private final NetworkPolicy networkPolicy;
+        /** The URL template of the method, or null if it has none. */
+        private final String endpoint;
+
+        /**
+         * With {@code singleValue}, as for {@code Single}, at most one response is emitted: a
+         * stale cached response is served and refreshed in the background instead of being
+         * followed by the network response.
+         */
+        CachePipeline(ZanRxJavaCallAdapterFactory factory, Type responseType,
+                      Annotation[] annotations, Retrofit retrofit, boolean singleValue) {
+            this.responseType = responseType;
+            this.scheduler = factory.scheduler;
+            this.cacheScheduler = factory.cacheScheduler;
+            this.singleFlight = factory.singleFlight;
+            this.dropUnchanged = factory.dropUnchanged;
+            this.cache = factory.cache;
+            this.annotations = annotations;
+            this.retrofit = retrofit;
+            this.singleValue = singleValue;
+            this.annotated = ZanCacheControl.fromAnnotations(annotations);
+            this.networkState = factory.networkState;
+            String template = Endpoints.template(annotations);
+            this.networkPolicy = factory.networkPolicy(template);
+            this.endpoint = template != null && !template.isEmpty() ? template : null;
+        }
 
-        ResponseCallAdapter(Type responseType, Scheduler scheduler, Annotation[] annotations, Retrofit retrofit) {
+        <R> Observable<Response<R>> responses(final Call<R> call) {
+            Observable<Response<R>> observable =
+                    Observable.create(new CallOnSubscribe<>(call, annotated, endpoint));
+            if (scheduler != null) {
+                observable = observable.subscribeOn(scheduler);
+            }
+            final Observable<Response<R>> callObservable = observable;
+
+            // Nothing is read here: building the request, parsing the cache header and the disk
+            // lookup all happen once somebody subscribes.
+            Observable<Response<R>> deferred = Observable.defer(new Func0<Observable<Response<R>>>() {
+                @Override public Observable<Response<R>> call() {
+                    Request request = call.request();
+                    ZanLocalCache localCache = cacheOrDefault(cache);
+                    ZanCacheControl cacheControl =
+                            ZanCacheControl.forRequest(request.headers(), annotated);
+                    Observable<Response<R>> networkObservable = callObservable;
+                    // A raw body can only be read once, so its response can't be shared.
+                    if (singleFlight != null && responseType != ResponseBody.class
+                            && "GET".equals(request.method())
+                            && (cacheControl.isReadCacheOpen() || cacheControl.isWriteCacheOpen())) {
+                        // Keyed on the full URL rather than the cache key, which drops parameters
+                        // like the access token. Calls converting to different types can't share
+                        // a response.
+                        networkObservable = singleFlight.share(request.method() + ' '
+                                + request.url() + ' ' + responseType, networkObservable);
+                    }
+                    // If request cache open.
+                    if (!cacheControl.isReadCacheOpen()) {
+                        return networkObservable;
+                    }
+                    Observable<Response<R>> cacheObservable = Observable.create(
+                            new CacheOnSubscribe<R>(localCache, request, retrofit, annotations,
+                                    responseType, endpoint))
+                            .subscribeOn(cacheScheduler);
+                    int state = networkState != null
+                            ? networkState.getState()
+                            : NetworkUtils.NETWORK_WIFI;
+                    // Read cache only, falling back to the network on a miss.
+                    if (cacheControl.onlyIfCached() || networkPolicy.skipsNetwork(state)) {
+                        return cacheObservable.switchIfEmpty(networkObservable);
+                    }
+                    // Read cache before retrofit response.
+                    else if (cacheControl.cacheBefore()) {
+                        return cacheObservable
+                                .concatMap(new FreshnessFunc<R>(cacheControl, networkPolicy,
+                                        state, networkObservable, cacheScheduler, dropUnchanged,
+                                        singleValue, localCache.eventListener(),
+                                        endpoint != null ? endpoint : request.url().encodedPath()))
+                                .switchIfEmpty(networkObservable);
+                    }
+                    return networkObservable;
+                }
+            });
+            if (scheduler != null) {
+                return deferred.subscribeOn(scheduler);
+            }
+            return deferred;
+        }
+    }
+
+    static final class ResponseCallAdapter implements CallAdapter<Observable<?>> {
+        private final Type responseType;
+        private final CachePipeline pipeline;
+
+        ResponseCallAdapter(Type responseType, CachePipeline pipeline) {
             this.responseType = responseType;
-            this.scheduler = scheduler;
-            mAnnotations = annotations;
-            mRetrofit = retrofit;
+            this.pipeline = pipeline;
         }
 
         @Override public Type responseType() {
@@ -219,56 +508,157 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
         }
 
         @Override public <R> Observable<Response<R>> adapt(Call<R> call) {
-            Observable<Response<R>> observable = Observable.create(new CallOnSubscribe<>(call));
-            Request request = call.request();
-
-            ZanCacheControl cacheControl = ZanCacheControl.parse(request.headers());
-            // If request cache open.
-            if (cacheControl.isReadCacheOpen()) {
-                final okhttp3.Response response = ZanLocalCache.getInstance().get(request);
-                if (response != null) {
-                    CacheResponse<R> cacheResponse = new CacheResponse<>(mRetrofit);
-                    final Response<R> oResponse = cacheResponse.parseResponse(response, mAnnotations, responseType);
-                    if (oResponse != null) {
-                        Observable<Response<R>> cacheObservable = Observable.create(
-                                new Observable.OnSubscribe<Response<R>>() {
-                                    @Override
-                                    public void call(Subscriber<? super Response<R>> subscriber) {
-                                        subscriber.onNext(oResponse);
-                                        subscriber.onCompleted();
-                                    }
-                                });
-                        // Read cache only.
-                        if (cacheControl.onlyIfCached()) {
-                            if (scheduler != null) {
-                                return cacheObservable.subscribeOn(scheduler);
-                            }
-                            return cacheObservable;
-                        }
-                        // Read cache before retrofit response.
-                        else if (cacheControl.cacheBefore()) {
-                            if (scheduler != null) {
-                                return Observable.merge(cacheObservable, observable).subscribeOn(scheduler);
-                            }
-                            return Observable.merge(cacheObservable, observable);
-                        }
-                    }
-                }
+            return pipeline.responses(call);
+        }
+    }
+
+    /** Decides from the age of a cached response whether the network is needed. */
+    static final class FreshnessFunc<T> implements Func1<Response<T>, Observable<Response<T>>> {
+        private final ZanCacheControl cacheControl;
+        private final NetworkPolicy networkPolicy;
+        private final int networkState;
+        private final Observable<Response<T>> networkObservable;
+        private final Scheduler revalidateScheduler;
+        private final boolean dropUnchanged;
+        private final boolean singleValue;
+        private final CacheEventListener eventListener;
+        private final String endpoint;
+
+        FreshnessFunc(ZanCacheControl cacheControl, NetworkPolicy networkPolicy, int networkState,
+                      Observable<Response<T>> networkObservable, Scheduler revalidateScheduler,
+                      boolean dropUnchanged, boolean singleValue,
+                      CacheEventListener eventListener, String endpoint) {
+            this.cacheControl = cacheControl;
+            this.networkPolicy = networkPolicy;
+            this.networkState = networkState;
+            this.networkObservable = networkObservable;
+            this.revalidateScheduler = revalidateScheduler;
+            this.dropUnchanged = dropUnchanged;
+            this.singleValue = singleValue;
+            this.eventListener = eventListener;
+            this.endpoint = endpoint;
+        }
+
+        @Override public Observable<Response<T>> call(Response<T> cached) {
+            long receivedMillis = cached.raw().receivedResponseAtMillis();
+            int freshness = networkPolicy.freshness(cacheControl, networkState, receivedMillis,
+                    System.currentTimeMillis());
+            if (freshness == ZanCacheControl.STALE && singleValue) {
+                freshness = ZanCacheControl.STALE_WHILE_REVALIDATE;
             }
-            if (scheduler != null) {
-                return observable.subscribeOn(scheduler);
+            if (freshness == ZanCacheControl.STALE
+                    || freshness == ZanCacheControl.STALE_WHILE_REVALIDATE) {
+                eventListener.staleHit(endpoint);
+            }
+            switch (freshness) {
+                case ZanCacheControl.FRESH:
+                    return Observable.just(cached);
+                case ZanCacheControl.STALE_WHILE_REVALIDATE:
+                    // The network response only refreshes the cache, nobody waits for it.
+                    networkObservable.subscribeOn(revalidateScheduler)
+                            .subscribe(Actions.empty(), new Action1<Throwable>() {
+                                @Override public void call(Throwable throwable) {
+                                }
+                            });
+                    return Observable.just(cached);
+                case ZanCacheControl.STALE:
+                    // A 304 only confirms what was just emitted.
+                    return Observable.just(cached).concatWith(networkObservable
+                            .filter(ModifiedFilter.<T>instance())
+                            .concatMap(new UnchangedFunc<T>(cached, dropUnchanged)));
+                default:
+                    return networkObservable;
             }
-            return observable;
+        }
+    }
+
+    /** Drops responses that the server answered with {@code 304 Not Modified}. */
+    static final class ModifiedFilter<T> implements Func1<Response<T>, Boolean> {
+        private static final ModifiedFilter<Object> INSTANCE = new ModifiedFilter<>();
+
+        @SuppressWarnings("unchecked") // Safe because of erasure.
+        static <T> ModifiedFilter<T> instance() {
+            return (ModifiedFilter<T>) INSTANCE;
+        }
+
+        @Override public Boolean call(Response<T> response) {
+            okhttp3.Response networkResponse = response.raw().networkResponse();
+            return networkResponse == null || networkResponse.code() != HTTP_NOT_MODIFIED;
+        }
+    }
+
+    /** Drops or flags a network response whose body hash equals the cached one. */
+    static final class UnchangedFunc<T> implements Func1<Response<T>, Observable<Response<T>>> {
+        private final String cachedHash;
+        private final boolean drop;
+
+        UnchangedFunc(Response<T> cached, boolean drop) {
+            this.cachedHash = cached.raw().header(ZanLocalCache.CONTENT_HASH_HEADER);
+            this.drop = drop;
+        }
+
+        @Override public Observable<Response<T>> call(Response<T> response) {
+            if (cachedHash == null || !response.isSuccessful()
+                    || !cachedHash.equals(response.raw().header(ZanLocalCache.CONTENT_HASH_HEADER))) {
+                return Observable.just(response);
+            }
+            if (drop) {
+                return Observable.empty();
+            }
+            return Observable.just(Response.success(response.body(), response.raw().newBuilder()
+                    .header(ZanCacheControl.UNCHANGED_HEADER, "true")
+                    .build()));
+        }
+    }
+
+    /** Emits the cached response for {@code request}, if any, and completes. */
+    static final class CacheOnSubscribe<T> implements Observable.OnSubscribe<Response<T>> {
+        private final ZanLocalCache cache;
+        private final Request request;
+        private final Retrofit retrofit;
+        private final Annotation[] annotations;
+        private final Type responseType;
+        private final String endpoint;
+
+        CacheOnSubscribe(ZanLocalCache cache, Request request, Retrofit retrofit,
+                         Annotation[] annotations, Type responseType, String endpoint) {
+            this.cache = cache;
+            this.request = request;
+            this.retrofit = retrofit;
+            this.annotations = annotations;
+            this.responseType = responseType;
+            this.endpoint = endpoint;
+        }
+
+        @Override public void call(Subscriber<? super Response<T>> subscriber) {
+            Response<T> cached = null;
+            CacheEventListener.setCallEndpoint(endpoint);
+            try {
+                cached = cache.getConverted(request,
+                        new CacheResponse<T>(retrofit), annotations, responseType);
+            } catch (Throwable t) {
+                Exceptions.throwIfFatal(t);
+                // A broken cache entry must never fail the request, the network is still there.
+            } finally {
+                CacheEventListener.setCallEndpoint(null);
+            }
+            if (subscriber.isUnsubscribed()) {
+                return;
+            }
+            if (cached != null) {
+                subscriber.onNext(cached);
+            }
+            subscriber.onCompleted();
         }
     }
 
     static final class SimpleCallAdapter implements CallAdapter<Observable<?>> {
         private final Type responseType;
-        private final Scheduler scheduler;
+        private final CachePipeline pipeline;
 
-        SimpleCallAdapter(Type responseType, Scheduler scheduler) {
+        SimpleCallAdapter(Type responseType, CachePipeline pipeline) {
             this.responseType = responseType;
-            this.scheduler = scheduler;
+            this.pipeline = pipeline;
         }
 
         @Override public Type responseType() {
@@ -276,23 +666,18 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
         }
 
         @Override public <R> Observable<R> adapt(Call<R> call) {
-            Observable<R> observable = Observable.create(new CallOnSubscribe<>(call)) //
+            return pipeline.responses(call)
                     .lift(OperatorMapResponseToBodyOrError.<R>instance());
-
-            if (scheduler != null) {
-                return observable.subscribeOn(scheduler);
-            }
-            return observable;
         }
     }
 
     static final class ResultCallAdapter implements CallAdapter<Observable<?>> {
         private final Type responseType;
-        private final Scheduler scheduler;
+        private final CachePipeline pipeline;
 
-        ResultCallAdapter(Type responseType, Scheduler scheduler) {
+        ResultCallAdapter(Type responseType, CachePipeline pipeline) {
             this.responseType = responseType;
-            this.scheduler = scheduler;
+            this.pipeline = pipeline;
         }
 
         @Override public Type responseType() {
@@ -300,7 +685,7 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
         }
 
         @Override public <R> Observable<Result<R>> adapt(Call<R> call) {
-            Observable<Result<R>> observable = Observable.create(new CallOnSubscribe<>(call)) //
+            return pipeline.responses(call)
                     .map(new Func1<Response<R>, Result<R>>() {
                         @Override public Result<R> call(Response<R> response) {
                             return Result.response(response);
@@ -310,10 +695,6 @@ public final class ZanRxJavaCallAdapterFactory extends CallAdapter.Factory {
                             return Result.error(throwable);
                         }
                     });
-            if (scheduler != null) {
-                return observable.subscribeOn(scheduler);
-            }
-            return observable;
         }
     }
 }
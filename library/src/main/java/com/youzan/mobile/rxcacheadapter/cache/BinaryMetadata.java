@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.HashMap;
+import java.util.Map;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+
+/**
+ * Primitives of the binary entry metadata format. A file starts with {@link #MAGIC}, which can't
+ * start a line of the older text format, followed by length-prefixed fields:
+ * <pre>{@code
+ *   magic           "\0ZC" + format version byte
+ *   url             string
+ *   request method  string
+ *   vary headers    varint count, then name/value pairs
+ *   protocol        string
+ *   code            varint
+ *   message         string
+ *   sent millis     8 byte long
+ *   received millis 8 byte long
+ *   headers         varint count, then name/value pairs
+ *   handshake       byte 0, or byte 1 followed by cipher suite string, TLS version string
+ *                   ("" if unknown) and the peer and local certificate lists
+ *   body codec      string, "" if the body is stored as is (version 2)
+ *   body length     varint of the decoded length plus one, 0 if unknown (version 2)
+ *   normalized      string, the request as normalized by the cache key strategy, "" if it is
+ *                   the same as the url (version 3)
+ * }</pre>
+ * Strings are a varint byte count followed by UTF-8. Header names are a varint index into
+ * {@link #NAMES} plus one, or 0 followed by the name as a string. Certificate lists are a varint
+ * count followed by each DER encoding as a varint byte count and the bytes.
+ */
+final class BinaryMetadata {
+
+    /** Version 2 appended the body encoding, version 3 the normalized request. */
+    static final int FORMAT_VERSION = 3;
+
+    static final ByteString MAGIC = ByteString.of((byte) 0, (byte) 'Z', (byte) 'C',
+            (byte) FORMAT_VERSION);
+
+    /**
+     * Header names written as a single byte and read back without allocating. Indices are part of
+     * the file format: only ever append to this table.
+     */
+    private static final String[] NAMES = {
+            "Content-Type",
+            "Content-Length",
+            "Content-Encoding",
+            "Date",
+            "Server",
+            "Connection",
+            "Cache-Control",
+            "Expires",
+            "Pragma",
+            "ETag",
+            "Last-Modified",
+            "Vary",
+            "Set-Cookie",
+            "Transfer-Encoding",
+            "Keep-Alive",
+            "Age",
+            "Accept-Ranges",
+            "Access-Control-Allow-Origin",
+            "Access-Control-Allow-Credentials",
+            "Access-Control-Allow-Headers",
+            "Access-Control-Allow-Methods",
+            "Strict-Transport-Security",
+            "X-Powered-By",
+            "Location",
+            "Accept",
+            "Accept-Encoding",
+            "Accept-Language",
+            "Authorization",
+            "Cookie",
+            "User-Agent",
+            ZanLocalCache.CONTENT_HASH_HEADER,
+    };
+
+    private static final Map<String, Integer> NAME_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < NAMES.length; i++) {
+            NAME_INDEX.put(NAMES[i], i);
+        }
+    }
+
+    private BinaryMetadata() {
+    }
+
+    /** Returns true if {@code source} starts with the binary format, without consuming it. */
+    static boolean isBinary(BufferedSource source) throws IOException {
+        return source.request(1) && source.buffer().getByte(0) == MAGIC.getByte(0);
+    }
+
+    /** Reads the magic and returns the format version that follows it. */
+    static int readMagic(BufferedSource source) throws IOException {
+        ByteString magic = source.readByteString(MAGIC.size());
+        int version = magic.getByte(MAGIC.size() - 1);
+        if (!magic.rangeEquals(0, MAGIC, 0, MAGIC.size() - 1)
+                || version < 1 || version > FORMAT_VERSION) {
+            throw new ProtocolException("unexpected metadata header " + magic.hex());
+        }
+        return version;
+    }
+
+    static void writeVarint(BufferedSink sink, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            sink.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        sink.writeByte((int) value);
+    }
+
+    static int readVarint(BufferedSource source) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = source.readByte();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (result < 0) {
+                    throw new ProtocolException("negative length " + result);
+                }
+                return result;
+            }
+        }
+        throw new ProtocolException("malformed varint");
+    }
+
+    static void writeString(BufferedSink sink, String value) throws IOException {
+        ByteString bytes = ByteString.encodeUtf8(value);
+        writeVarint(sink, bytes.size());
+        sink.write(bytes);
+    }
+
+    static String readString(BufferedSource source) throws IOException {
+        return source.readUtf8(readVarint(source));
+    }
+
+    static void writeName(BufferedSink sink, String name) throws IOException {
+        // Exact match only, a name has to read back with the spelling it was written with.
+        Integer index = NAME_INDEX.get(name);
+        if (index != null) {
+            writeVarint(sink, index + 1);
+        } else {
+            writeVarint(sink, 0);
+            writeString(sink, name);
+        }
+    }
+
+    static String readName(BufferedSource source) throws IOException {
+        int index = readVarint(source);
+        if (index == 0) {
+            return readString(source);
+        }
+        if (index > NAMES.length) {
+            throw new ProtocolException("unknown header name index " + index);
+        }
+        return NAMES[index - 1];
+    }
+
+    static void writeBytes(BufferedSink sink, byte[] bytes) throws IOException {
+        writeVarint(sink, bytes.length);
+        sink.write(bytes);
+    }
+
+    static byte[] readBytes(BufferedSource source) throws IOException {
+        int length = readVarint(source);
+        if (!source.request(length)) {
+            throw new EOFException();
+        }
+        return source.readByteArray(length);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import java.io.IOException;
+
+import okio.Sink;
+import okio.Source;
+
+/**
+ * Encodes cached bodies on disk, see {@link ZanLocalCache.Builder#bodyCodec}. The codec's
+ * {@link #name()} is stored with each entry and used to find the codec that decodes it, so it
+ * must never change. {@link BodyCodecs} has the built-in ones.
+ */
+public interface BodyCodec {
+    /** Identifies the encoding in entry metadata, like {@code "gzip"}. */
+    String name();
+
+    /** Returns a sink that writes the encoding of what is written to it to {@code sink}. */
+    Sink encode(Sink sink) throws IOException;
+
+    /** Returns a source that reads the decoded bytes of {@code source}. */
+    Source decode(Source source) throws IOException;
+}
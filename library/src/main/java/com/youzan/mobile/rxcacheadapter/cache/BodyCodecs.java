@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import okhttp3.MediaType;
+import okio.DeflaterSink;
+import okio.GzipSink;
+import okio.GzipSource;
+import okio.InflaterSource;
+import okio.Okio;
+import okio.Sink;
+import okio.Source;
+
+/** Built-in {@link BodyCodec}s. */
+public final class BodyCodecs {
+    /** Bodies smaller than this are stored as is, the codec's framing would eat the gain. */
+    static final long MIN_ENCODED_SIZE = 256;
+
+    private static final BodyCodec GZIP = new BodyCodec() {
+        @Override public String name() {
+            return "gzip";
+        }
+
+        @Override public Sink encode(Sink sink) {
+            return new GzipSink(sink);
+        }
+
+        @Override public Source decode(Source source) {
+            return new GzipSource(source);
+        }
+    };
+
+    private static final BodyCodec DEFLATE = new BodyCodec() {
+        @Override public String name() {
+            return "deflate";
+        }
+
+        @Override public Sink encode(Sink sink) {
+            return new DeflaterSink(sink, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        }
+
+        @Override public Source decode(Source source) {
+            return new InflaterSource(Okio.buffer(source), new Inflater(true));
+        }
+    };
+
+    private BodyCodecs() {
+    }
+
+    /** GZIP, a few bytes larger than {@link #deflate()} but with a CRC over the body. */
+    public static BodyCodec gzip() {
+        return GZIP;
+    }
+
+    /** Raw DEFLATE without header or checksum. */
+    public static BodyCodec deflate() {
+        return DEFLATE;
+    }
+
+    /**
+     * Returns the codec named {@code name}: {@code configured} if it has that name, else a
+     * built-in one, else null.
+     */
+    static BodyCodec forName(String name, BodyCodec configured) {
+        if (configured != null && configured.name().equals(name)) {
+            return configured;
+        }
+        if (GZIP.name().equals(name)) {
+            return GZIP;
+        }
+        if (DEFLATE.name().equals(name)) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Returns false for bodies that are compressed already: images, audio, video, archives and
+     * responses that kept their {@code Content-Encoding}.
+     */
+    static boolean isCompressible(String contentType, String contentEncoding) {
+        if (contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding)) {
+            return false;
+        }
+        MediaType mediaType = contentType != null ? MediaType.parse(contentType) : null;
+        if (mediaType == null) {
+            return true;
+        }
+        String type = mediaType.type();
+        String subtype = mediaType.subtype();
+        if ("image".equals(type)) {
+            return "svg+xml".equals(subtype);
+        }
+        if ("audio".equals(type) || "video".equals(type) || "font".equals(type)) {
+            return false;
+        }
+        return !("application".equals(type)
+                && ("zip".equals(subtype) || "gzip".equals(subtype) || "x-gzip".equals(subtype)
+                || "pdf".equals(subtype)
+                || "x-7z-compressed".equals(subtype) || "x-rar-compressed".equals(subtype)
+                || "font-woff".equals(subtype)));
+    }
+}
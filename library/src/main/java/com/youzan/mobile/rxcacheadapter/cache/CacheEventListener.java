@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Observes the operations of a {@link ZanLocalCache}, see {@link ZanLocalCache.Builder#eventListener}.
+ * Methods are called on the thread doing the operation, sometimes the cache's writer thread, and
+ * must return quickly. Every method does nothing by default; while the cache has {@link #NONE} it
+ * doesn't even read the clock.
+ *
+ * <p>{@code endpoint} is the URL template of the service method, like {@code user/{id}}, when the
+ * call went through {@code ZanRxJavaCallAdapterFactory}, else the URL path of the request. Times
+ * are in nanoseconds.
+ */
+public abstract class CacheEventListener {
+    /** Served from the in-memory tier, or from a write that hasn't reached the disk yet. */
+    public static final int TIER_MEMORY = 0;
+    /** Served from the disk. */
+    public static final int TIER_DISK = 1;
+    /** Served from the converted cache, see {@link ZanLocalCache.Builder#convertedCacheSize}. */
+    public static final int TIER_CONVERTED = 2;
+
+    public static final CacheEventListener NONE = new CacheEventListener() {
+    };
+
+    private static final ThreadLocal<String> CALL_ENDPOINT = new ThreadLocal<>();
+
+    /**
+     * A cached response was found in {@code tier}. {@code bytes} is the size of its body, or -1
+     * if it isn't known before the body is read. {@code tookNanos} excludes reading a body that is
+     * streamed from disk.
+     */
+    public void cacheHit(String endpoint, int tier, long bytes, long tookNanos) {
+    }
+
+    /** No usable cached response was found. */
+    public void cacheMiss(String endpoint, long tookNanos) {
+    }
+
+    /** A cached response past its max-age was served, see {@code ZanCacheControl}. */
+    public void staleHit(String endpoint) {
+    }
+
+    /**
+     * An entry of {@code bytes} was written to disk. {@code tookNanos} is -1 for a body that was
+     * streamed, whose write is spread over the reads of the caller.
+     */
+    public void writeSuccess(String endpoint, long bytes, long tookNanos) {
+    }
+
+    /** An entry wasn't written: the write failed, was dropped or its body was rejected. */
+    public void writeAbort(String endpoint) {
+    }
+
+    /** An entry of {@code bytes} was evicted from {@code tier} to stay in its budget. */
+    public void evicted(int tier, long bytes) {
+    }
+
+    /** The metadata of an entry was read from disk. */
+    public void parsed(String endpoint, long tookNanos) {
+    }
+
+    /** A cached body was converted to the response type of its call. */
+    public void converted(String endpoint, long tookNanos) {
+    }
+
+    /**
+     * Names the endpoint of the cache operations the current thread makes until it is called with
+     * null. Used by {@code ZanRxJavaCallAdapterFactory}, which knows the URL template of a call.
+     */
+    public static void setCallEndpoint(String endpoint) {
+        if (endpoint != null) {
+            CALL_ENDPOINT.set(endpoint);
+        } else {
+            CALL_ENDPOINT.remove();
+        }
+    }
+
+    /** Returns the endpoint of the current call, or the URL path of {@code url}. */
+    static String endpoint(HttpUrl url) {
+        String endpoint = CALL_ENDPOINT.get();
+        return endpoint != null ? endpoint : url.encodedPath();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import okhttp3.internal.Util;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Secondary index of a {@code DiskLruCache} directory: the URL path and tags of every key, so
+ * entries can be found by tag or path prefix without reading them. Lookups cost time in the number
+ * of matches, not the size of the cache.
+ *
+ * <p>Changes are kept in memory at once and appended to a log file next to the journal by
+ * {@link #writeLog()}, which the cache calls on its writer thread. Like the journal, the log looks
+ * like this:
+ * <pre>
+ *     zan-index
+ *     1
+ *
+ *     PUT 3400330d1dfc7f3f7f4b8d4d803dfcf6 /v1/items/42 items item:42
+ *     REMOVE 335c4c6028171cfddfbaae1a9c313c52
+ * </pre>
+ * and is compacted when most of its lines are redundant. Keys whose entry the disk cache evicted
+ * on its own stay in the index until it is reopened; removing them again is harmless.
+ */
+final class CacheIndex {
+    static final String FILE_NAME = "zan-index";
+    private static final String MAGIC = "zan-index";
+    private static final String VERSION = "1";
+    private static final String PUT = "PUT";
+    private static final String REMOVE = "REMOVE";
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    private final File file;
+    private final File directory;
+    private final Map<String, Record> records = new HashMap<>();
+    private final Map<String, Set<String>> keysByTag = new HashMap<>();
+    private final TreeMap<String, Set<String>> keysByPath = new TreeMap<>();
+    /** Log lines not written to {@link #file} yet. */
+    private final Buffer pendingLog = new Buffer();
+    /** Serializes writes to {@link #file}. */
+    private final Object fileLock = new Object();
+    private int redundantOpCount;
+    private boolean rebuildLog;
+
+    private static final class Record {
+        final String path;
+        final List<String> tags;
+
+        Record(String path, List<String> tags) {
+            this.path = path;
+            this.tags = tags;
+        }
+    }
+
+    CacheIndex(File directory) {
+        this.directory = directory;
+        this.file = new File(directory, FILE_NAME);
+        read();
+    }
+
+    /** Indexes {@code key} under {@code path} and {@code tags}, replacing what it had before. */
+    synchronized void put(String key, String path, List<String> tags) {
+        if (unindex(key)) {
+            redundantOpCount++;
+        }
+        Record record = new Record(path, tags);
+        records.put(key, record);
+        index(key, record);
+        writeRecord(pendingLog, key, record);
+    }
+
+    synchronized void remove(String key) {
+        if (unindex(key)) {
+            redundantOpCount += 2; // The removal and the line it cancels.
+            pendingLog.writeUtf8(REMOVE).writeByte(' ').writeUtf8(key).writeByte('\n');
+        }
+    }
+
+    /** Returns the keys tagged {@code tag}. */
+    synchronized List<String> keysForTag(String tag) {
+        Set<String> keys = keysByTag.get(tag);
+        return keys != null ? new ArrayList<>(keys) : Collections.<String>emptyList();
+    }
+
+    /** Returns the keys whose path starts with {@code prefix}. */
+    synchronized List<String> keysForPathPrefix(String prefix) {
+        List<String> result = new ArrayList<>();
+        for (Set<String> keys : keysByPath.subMap(prefix, true, prefix + Character.MAX_VALUE, true)
+                .values()) {
+            result.addAll(keys);
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return records.size();
+    }
+
+    /** Appends the changes made since the last call to the log file, compacting it if due. */
+    void writeLog() {
+        synchronized (fileLock) {
+            writeLogLocked();
+        }
+    }
+
+    private void writeLogLocked() {
+        Buffer lines = new Buffer();
+        boolean rebuild;
+        synchronized (this) {
+            if (pendingLog.size() == 0 && !rebuildLog) {
+                return;
+            }
+            rebuild = rebuildLog || redundantOpCount >= COMPACT_THRESHOLD
+                    && redundantOpCount >= records.size();
+            if (rebuild) {
+                pendingLog.clear();
+                writeHeader(lines);
+                for (Map.Entry<String, Record> entry : records.entrySet()) {
+                    writeRecord(lines, entry.getKey(), entry.getValue());
+                }
+                redundantOpCount = 0;
+                rebuildLog = false;
+            } else {
+                lines.write(pendingLog, pendingLog.size());
+            }
+        }
+        BufferedSink sink = null;
+        try {
+            if (rebuild) {
+                File tmp = new File(directory, FILE_NAME + ".tmp");
+                sink = Okio.buffer(Okio.sink(tmp));
+                sink.writeAll(lines);
+                sink.close();
+                sink = null;
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("failed to rename " + tmp);
+                }
+            } else {
+                sink = Okio.buffer(Okio.appendingSink(file));
+                sink.writeAll(lines);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                rebuildLog = true; // The file may be torn, write it from scratch next time.
+            }
+        } finally {
+            Util.closeQuietly(sink);
+        }
+    }
+
+    private void read() {
+        int lineCount = 0;
+        BufferedSource source = null;
+        try {
+            source = Okio.buffer(Okio.source(file));
+            if (!MAGIC.equals(source.readUtf8LineStrict())
+                    || !VERSION.equals(source.readUtf8LineStrict())
+                    || !"".equals(source.readUtf8LineStrict())) {
+                throw new IOException("unexpected index header");
+            }
+            String line;
+            while ((line = source.readUtf8Line()) != null) {
+                readLine(line);
+                lineCount++;
+            }
+        } catch (FileNotFoundException e) {
+            rebuildLog = true;
+        } catch (IOException e) {
+            // A torn last line or an unknown version, start over with what could be read.
+            rebuildLog = true;
+        } finally {
+            Util.closeQuietly(source);
+        }
+        // Drop keys the disk cache evicted while the index wasn't open. The first file of an
+        // entry is named after its key.
+        for (String key : new ArrayList<>(records.keySet())) {
+            if (!new File(directory, key + ".0").exists()) {
+                unindex(key);
+            }
+        }
+        redundantOpCount = lineCount - records.size();
+        if (redundantOpCount > 0) {
+            rebuildLog = true;
+        }
+    }
+
+    private void readLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length >= 3 && PUT.equals(parts[0])) {
+            List<String> tags = new ArrayList<>(parts.length - 3);
+            for (int i = 3; i < parts.length; i++) {
+                tags.add(parts[i]);
+            }
+            unindex(parts[1]);
+            Record record = new Record(parts[2], tags);
+            records.put(parts[1], record);
+            index(parts[1], record);
+        } else if (parts.length == 2 && REMOVE.equals(parts[0])) {
+            unindex(parts[1]);
+        } else {
+            throw new IOException("unexpected index line: " + line);
+        }
+    }
+
+    private void index(String key, Record record) {
+        add(keysByPath, record.path, key);
+        for (String tag : record.tags) {
+            add(keysByTag, tag, key);
+        }
+    }
+
+    /** Removes {@code key} from the index, returning false if it wasn't indexed. */
+    private boolean unindex(String key) {
+        Record record = records.remove(key);
+        if (record == null) {
+            return false;
+        }
+        remove(keysByPath, record.path, key);
+        for (String tag : record.tags) {
+            remove(keysByTag, tag, key);
+        }
+        return true;
+    }
+
+    private static void add(Map<String, Set<String>> map, String name, String key) {
+        Set<String> keys = map.get(name);
+        if (keys == null) {
+            keys = new LinkedHashSet<>();
+            map.put(name, keys);
+        }
+        keys.add(key);
+    }
+
+    private static void remove(Map<String, Set<String>> map, String name, String key) {
+        Set<String> keys = map.get(name);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            map.remove(name);
+        }
+    }
+
+    private static void writeHeader(Buffer sink) {
+        sink.writeUtf8(MAGIC).writeByte('\n').writeUtf8(VERSION).writeByte('\n').writeByte('\n');
+    }
+
+    private static void writeRecord(Buffer sink, String key, Record record) {
+        sink.writeUtf8(PUT).writeByte(' ').writeUtf8(key).writeByte(' ').writeUtf8(record.path);
+        for (String tag : record.tags) {
+            sink.writeByte(' ').writeUtf8(tag);
+        }
+        sink.writeByte('\n');
+    }
+}
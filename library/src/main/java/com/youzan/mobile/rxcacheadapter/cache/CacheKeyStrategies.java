@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+
+/**
+ * Built-in {@link CacheKeyStrategy CacheKeyStrategies}.
+ */
+public final class CacheKeyStrategies {
+
+    private static final CacheKeyStrategy URL = new CacheKeyStrategy() {
+        @Override public String key(Request request) {
+            return CacheKeys.key(request.url());
+        }
+
+        @Override public String normalize(Request request) {
+            return CacheKeys.normalizedUrl(request.url());
+        }
+    };
+
+    private CacheKeyStrategies() {
+    }
+
+    /**
+     * Keys requests by their URL without {@code access_token} query parameters. This is the
+     * default, two requests that only differ in method, body or headers share an entry.
+     */
+    public static CacheKeyStrategy url() {
+        return URL;
+    }
+
+    /** Returns a hex MD5 of {@code s}, usable as a key. */
+    public static String hash(String s) {
+        return CacheKeys.md5Hex(s);
+    }
+
+    /**
+     * Configures a strategy that keys requests by their method, URL and optionally body and
+     * headers. With no option set it derives the same keys as {@link #url()}.
+     */
+    public static final class Builder {
+        private final Set<String> volatileParameters =
+                new LinkedHashSet<>(Collections.singleton("access_token"));
+        private boolean sortQueryParameters;
+        private boolean includeBody;
+        private final List<String> headers = new ArrayList<>();
+
+        /**
+         * Query parameters that don't select the response, like tokens, timestamps or
+         * signatures. Replaces the default of {@code access_token}.
+         */
+        public Builder volatileParameters(String... names) {
+            volatileParameters.clear();
+            volatileParameters.addAll(Arrays.asList(names));
+            return this;
+        }
+
+        /** Makes {@code ?a=1&b=2} and {@code ?b=2&a=1} share an entry. */
+        public Builder sortQueryParameters(boolean sortQueryParameters) {
+            this.sortQueryParameters = sortQueryParameters;
+            return this;
+        }
+
+        /**
+         * Adds the method and a hash of the request body to the key, so POSTs to the same URL with
+         * different bodies get their own entries. Bodies are written again on every lookup to be
+         * hashed, so they must be repeatable and write the same bytes for the same content.
+         */
+        public Builder includeBody(boolean includeBody) {
+            this.includeBody = includeBody;
+            return this;
+        }
+
+        /** Adds the values of the request headers {@code names}, like a user or shop id. */
+        public Builder includeHeaders(String... names) {
+            headers.addAll(Arrays.asList(names));
+            return this;
+        }
+
+        public CacheKeyStrategy build() {
+            if (volatileParameters.equals(Collections.singleton("access_token"))
+                    && !sortQueryParameters && !includeBody && headers.isEmpty()) {
+                return URL;
+            }
+            return new StandardStrategy(this);
+        }
+    }
+
+    private static final class StandardStrategy implements CacheKeyStrategy {
+        private final Set<String> volatileParameters;
+        private final boolean sortQueryParameters;
+        private final boolean includeBody;
+        private final String[] headers;
+
+        StandardStrategy(Builder builder) {
+            this.volatileParameters = new LinkedHashSet<>(builder.volatileParameters);
+            this.sortQueryParameters = builder.sortQueryParameters;
+            this.includeBody = builder.includeBody;
+            this.headers = builder.headers.toArray(new String[builder.headers.size()]);
+        }
+
+        @Override public String key(Request request) {
+            String normalized = normalize(request);
+            return normalized != null ? hash(normalized) : null;
+        }
+
+        @Override public String normalize(Request request) {
+            HttpUrl url = request.url();
+            StringBuilder result = new StringBuilder(url.toString().length() + 64);
+            result.append(url.scheme()).append("://").append(url.host()).append(':')
+                    .append(url.port()).append(url.encodedPath());
+
+            List<String> parameters = new ArrayList<>(url.querySize());
+            for (int i = 0, size = url.querySize(); i < size; i++) {
+                String name = url.queryParameterName(i);
+                if (!volatileParameters.contains(name)) {
+                    String value = url.queryParameterValue(i);
+                    parameters.add(value != null ? name + '=' + value : name);
+                }
+            }
+            if (sortQueryParameters) {
+                Collections.sort(parameters);
+            }
+            for (int i = 0, size = parameters.size(); i < size; i++) {
+                // Decoded values may contain '&', so separate with a byte a URL can't contain.
+                result.append(i == 0 ? '?' : '\n').append(parameters.get(i));
+            }
+
+            if (includeBody) {
+                result.append("\nmethod:").append(request.method());
+                if (request.body() != null) {
+                    String bodyHash = CacheKeys.bodyHash(request.body());
+                    if (bodyHash == null) {
+                        return null;
+                    }
+                    result.append("\nbody:").append(bodyHash);
+                }
+            }
+            for (String name : headers) {
+                String value = request.header(name);
+                result.append('\n').append(name).append(':').append(value != null ? value : "");
+            }
+            return result.toString();
+        }
+    }
+}
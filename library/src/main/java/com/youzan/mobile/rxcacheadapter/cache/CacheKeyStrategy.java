@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import okhttp3.Request;
+
+/**
+ * Decides which requests share a cache entry, see {@link CacheKeyStrategies} for built-in ones.
+ */
+public interface CacheKeyStrategy {
+    /**
+     * Returns the key {@code request} is cached under, or null if it must not be cached. Keys
+     * must match {@code [a-z0-9_-]{1,64}}; {@link CacheKeyStrategies#hash(String)} of
+     * {@link #normalize} turns it into one.
+     *
+     * <p>Called on every lookup and store, from any thread.
+     */
+    String key(Request request);
+
+    /**
+     * Returns the string {@link #key} is derived from, or null if {@code request} must not be
+     * cached. Entries store it and only answer requests that normalize to the same string, so
+     * requests whose keys collide never get each other's response. Strategies whose keys aren't
+     * hashes may return the key itself.
+     */
+    String normalize(Request request);
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import okhttp3.HttpUrl;
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+/**
+ * Derives cache keys from URLs. A key is the hex MD5 of the URL without its
+ * {@code access_token} query parameters, byte for byte the same as
+ * {@code md5Hex(url.newBuilder().removeAllQueryParameters("access_token").build().toString())}
+ * so existing caches stay readable, but computed from the URL's canonical string without
+ * rebuilding it and with a per-thread digest.
+ */
+final class CacheKeys {
+    private static final String VOLATILE_PARAMETER = "access_token";
+    private static final char[] HEX_DIGITS =
+            {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    /**
+     * Recently derived keys by URL identity. {@code Request.newBuilder()} keeps the URL instance,
+     * so the lookups and the store of one call share a single derivation. The URLs are only
+     * weakly reachable from here.
+     */
+    private static final Memo[] URL_MEMOS = new Memo[16];
+
+    private static final ThreadLocal<Deriver> DERIVERS = new ThreadLocal<Deriver>() {
+        @Override protected Deriver initialValue() {
+            return new Deriver();
+        }
+    };
+
+    private CacheKeys() {
+    }
+
+    static String key(HttpUrl url) {
+        String key = recall(url);
+        if (key != null) {
+            return key;
+        }
+        Deriver deriver = DERIVERS.get();
+        key = deriver.appendNormalized(url.toString())
+                ? deriver.md5Hex()
+                : Utils.md5Hex(normalizedUrl(url));
+        remember(url, key);
+        return key;
+    }
+
+    /** Returns the hex MD5 of {@code s}'s UTF-8 bytes, with the per-thread digest. */
+    static String md5Hex(String s) {
+        Deriver deriver = DERIVERS.get();
+        return deriver.append(s) ? deriver.md5Hex() : Utils.md5Hex(s);
+    }
+
+    /**
+     * Returns the hex MD5 of {@code body}'s bytes, or null if it can't be written. Not memoized:
+     * a body may write different bytes each time, e.g. one reading a file, and holding on to it
+     * would keep large uploads alive. Bodies that aren't repeatable or that write different bytes
+     * for the same content, like a {@code MultipartBody} with its random boundary, get keys that
+     * never match.
+     */
+    static String bodyHash(RequestBody body) {
+        Buffer buffer = new Buffer();
+        try {
+            body.writeTo(buffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return buffer.md5().hex();
+    }
+
+    private static String recall(HttpUrl url) {
+        Memo memo = URL_MEMOS[System.identityHashCode(url) & (URL_MEMOS.length - 1)];
+        return memo != null && memo.get() == url ? memo.value : null;
+    }
+
+    private static void remember(HttpUrl url, String value) {
+        URL_MEMOS[System.identityHashCode(url) & (URL_MEMOS.length - 1)] = new Memo(url, value);
+    }
+
+    /** Returns {@code url} without its {@code access_token} query parameters. */
+    static String normalizedUrl(HttpUrl url) {
+        String s = url.toString();
+        int query = s.indexOf('?');
+        if (query == -1 || s.indexOf(VOLATILE_PARAMETER, query) == -1) {
+            return s;
+        }
+        Deriver deriver = DERIVERS.get();
+        if (deriver.appendNormalized(s)) {
+            return deriver.string();
+        }
+        return url.newBuilder().removeAllQueryParameters(VOLATILE_PARAMETER).build().toString();
+    }
+
+    /** Returns true if the query segment {@code s[from..to)} is a volatile parameter. */
+    private static boolean isVolatile(String s, int from, int to) {
+        int length = VOLATILE_PARAMETER.length();
+        return s.startsWith(VOLATILE_PARAMETER, from)
+                && (from + length == to || s.charAt(from + length) == '=');
+    }
+
+    private static final class Memo extends WeakReference<HttpUrl> {
+        final String value;
+
+        Memo(HttpUrl url, String value) {
+            super(url);
+            this.value = value;
+        }
+    }
+
+    /** Per-thread scratch space, reused across derivations. */
+    private static final class Deriver {
+        private final MessageDigest digest;
+        private final byte[] hash = new byte[16];
+        private final char[] hex = new char[32];
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        Deriver() {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /**
+         * Writes {@code url} without volatile query parameters to the scratch buffer. Canonical
+         * URLs are ASCII apart from rare fragments; returns false for those.
+         */
+        boolean appendNormalized(String url) {
+            size = 0;
+            int query = url.indexOf('?');
+            if (query == -1 || url.indexOf(VOLATILE_PARAMETER, query) == -1) {
+                return append(url, 0, url.length());
+            }
+            int fragment = url.indexOf('#', query);
+            int end = fragment != -1 ? fragment : url.length();
+            if (!append(url, 0, query)) {
+                return false;
+            }
+            // Mirrors HttpUrl.Builder: segments are split on '&' and kept in order.
+            boolean first = true;
+            for (int from = query + 1; from <= end; ) {
+                int to = url.indexOf('&', from);
+                if (to == -1 || to > end) {
+                    to = end;
+                }
+                if (!isVolatile(url, from, to)) {
+                    ensureCapacity(1);
+                    bytes[size++] = (byte) (first ? '?' : '&');
+                    first = false;
+                    if (!append(url, from, to)) {
+                        return false;
+                    }
+                }
+                from = to + 1;
+            }
+            return append(url, end, url.length());
+        }
+
+        /** Writes {@code s} to the scratch buffer, returns false if it isn't ASCII. */
+        boolean append(String s) {
+            size = 0;
+            return append(s, 0, s.length());
+        }
+
+        private boolean append(String s, int from, int to) {
+            ensureCapacity(to - from);
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    return false;
+                }
+                bytes[size++] = (byte) c;
+            }
+            return true;
+        }
+
+        private void ensureCapacity(int count) {
+            if (size + count > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, size + count)];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+        }
+
+        @SuppressWarnings("deprecation") // The scratch buffer only holds ASCII.
+        String string() {
+            return new String(bytes, 0, 0, size);
+        }
+
+        String md5Hex() {
+            digest.update(bytes, 0, size);
+            try {
+                digest.digest(hash, 0, hash.length);
+            } catch (DigestException e) {
+                throw new AssertionError(e);
+            }
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+            }
+            return new String(hex);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A {@link CacheEventListener} that adds up the events of each endpoint in memory, meant for
+ * debug builds:
+ * <pre><code>
+ * CacheStats stats = new CacheStats();
+ * ZanLocalCache cache = new ZanLocalCache.Builder(context).eventListener(stats).build();
+ * ...
+ * Log.d("ZanCache", stats.dump());
+ * </code></pre>
+ */
+public final class CacheStats extends CacheEventListener {
+    private final Map<String, Endpoint> endpoints = new TreeMap<>();
+    private long evictionCount;
+    private long evictedBytes;
+
+    @Override public synchronized void cacheHit(String endpoint, int tier, long bytes,
+                                                long tookNanos) {
+        Endpoint stats = endpoint(endpoint);
+        stats.hitCounts[tier]++;
+        if (bytes > 0) {
+            stats.bytesRead += bytes;
+        }
+        stats.getTimes.add(tookNanos);
+    }
+
+    @Override public synchronized void cacheMiss(String endpoint, long tookNanos) {
+        Endpoint stats = endpoint(endpoint);
+        stats.missCount++;
+        stats.getTimes.add(tookNanos);
+    }
+
+    @Override public synchronized void staleHit(String endpoint) {
+        endpoint(endpoint).staleHitCount++;
+    }
+
+    @Override public synchronized void writeSuccess(String endpoint, long bytes, long tookNanos) {
+        Endpoint stats = endpoint(endpoint);
+        stats.writeSuccessCount++;
+        stats.bytesWritten += bytes;
+        if (tookNanos >= 0) {
+            stats.putTimes.add(tookNanos);
+        }
+    }
+
+    @Override public synchronized void writeAbort(String endpoint) {
+        endpoint(endpoint).writeAbortCount++;
+    }
+
+    @Override public synchronized void evicted(int tier, long bytes) {
+        evictionCount++;
+        evictedBytes += bytes;
+    }
+
+    @Override public synchronized void parsed(String endpoint, long tookNanos) {
+        endpoint(endpoint).parseTimes.add(tookNanos);
+    }
+
+    @Override public synchronized void converted(String endpoint, long tookNanos) {
+        endpoint(endpoint).convertTimes.add(tookNanos);
+    }
+
+    /** Returns a copy of the stats of {@code endpoint}, empty if it had no events. */
+    public synchronized Endpoint get(String endpoint) {
+        Endpoint stats = endpoints.get(endpoint);
+        return stats != null ? new Endpoint(stats) : new Endpoint();
+    }
+
+    public synchronized long evictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized long evictedBytes() {
+        return evictedBytes;
+    }
+
+    public synchronized void reset() {
+        endpoints.clear();
+        evictionCount = 0;
+        evictedBytes = 0;
+    }
+
+    /** Returns a table of every endpoint's counters and median and 99th percentile times. */
+    public synchronized String dump() {
+        StringBuilder result = new StringBuilder();
+        result.append(String.format(Locale.US,
+                "evictions=%d (%d bytes)%n", evictionCount, evictedBytes));
+        for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+            Endpoint stats = entry.getValue();
+            result.append(entry.getKey()).append(String.format(Locale.US,
+                    ": hit rate %.0f%% (memory %d, disk %d, converted %d, miss %d), stale %d,"
+                            + " writes %d, aborts %d, read %d bytes, written %d bytes%n",
+                    stats.hitRate() * 100, stats.hitCount(TIER_MEMORY),
+                    stats.hitCount(TIER_DISK), stats.hitCount(TIER_CONVERTED), stats.missCount,
+                    stats.staleHitCount, stats.writeSuccessCount, stats.writeAbortCount,
+                    stats.bytesRead, stats.bytesWritten));
+            append(result, "get", stats.getTimes);
+            append(result, "put", stats.putTimes);
+            append(result, "parse", stats.parseTimes);
+            append(result, "convert", stats.convertTimes);
+        }
+        return result.toString();
+    }
+
+    private static void append(StringBuilder result, String name, Histogram times) {
+        if (times.count() == 0) {
+            return;
+        }
+        result.append(String.format(Locale.US, "  %s: n=%d p50<=%dus p99<=%dus max=%dus%n",
+                name, times.count(), times.percentile(0.5) / 1000, times.percentile(0.99) / 1000,
+                times.maxNanos() / 1000));
+    }
+
+    private Endpoint endpoint(String name) {
+        Endpoint stats = endpoints.get(name);
+        if (stats == null) {
+            stats = new Endpoint();
+            endpoints.put(name, stats);
+        }
+        return stats;
+    }
+
+    /** Counters and times of one endpoint. */
+    public static final class Endpoint {
+        private final long[] hitCounts = new long[3];
+        private long missCount;
+        private long staleHitCount;
+        private long writeSuccessCount;
+        private long writeAbortCount;
+        private long bytesRead;
+        private long bytesWritten;
+        private final Histogram getTimes;
+        private final Histogram putTimes;
+        private final Histogram parseTimes;
+        private final Histogram convertTimes;
+
+        Endpoint() {
+            getTimes = new Histogram();
+            putTimes = new Histogram();
+            parseTimes = new Histogram();
+            convertTimes = new Histogram();
+        }
+
+        Endpoint(Endpoint other) {
+            System.arraycopy(other.hitCounts, 0, hitCounts, 0, hitCounts.length);
+            missCount = other.missCount;
+            staleHitCount = other.staleHitCount;
+            writeSuccessCount = other.writeSuccessCount;
+            writeAbortCount = other.writeAbortCount;
+            bytesRead = other.bytesRead;
+            bytesWritten = other.bytesWritten;
+            getTimes = new Histogram(other.getTimes);
+            putTimes = new Histogram(other.putTimes);
+            parseTimes = new Histogram(other.parseTimes);
+            convertTimes = new Histogram(other.convertTimes);
+        }
+
+        /** Hits in {@code tier}, one of the {@code TIER_*} constants of the listener. */
+        public long hitCount(int tier) {
+            return hitCounts[tier];
+        }
+
+        public long missCount() {
+            return missCount;
+        }
+
+        /** Hits over lookups, converted cache hits included. */
+        public double hitRate() {
+            long hits = hitCounts[TIER_MEMORY] + hitCounts[TIER_DISK] + hitCounts[TIER_CONVERTED];
+            return hits + missCount > 0 ? (double) hits / (hits + missCount) : 0;
+        }
+
+        public long staleHitCount() {
+            return staleHitCount;
+        }
+
+        public long writeSuccessCount() {
+            return writeSuccessCount;
+        }
+
+        public long writeAbortCount() {
+            return writeAbortCount;
+        }
+
+        public long bytesRead() {
+            return bytesRead;
+        }
+
+        public long bytesWritten() {
+            return bytesWritten;
+        }
+
+        public Histogram getTimes() {
+            return getTimes;
+        }
+
+        public Histogram putTimes() {
+            return putTimes;
+        }
+
+        public Histogram parseTimes() {
+            return parseTimes;
+        }
+
+        public Histogram convertTimes() {
+            return convertTimes;
+        }
+    }
+
+    /**
+     * Durations in power-of-two buckets of microseconds, so percentiles are upper bounds within a
+     * factor of two.
+     */
+    public static final class Histogram {
+        private final long[] buckets = new long[40];
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        Histogram() {
+        }
+
+        Histogram(Histogram other) {
+            System.arraycopy(other.buckets, 0, buckets, 0, buckets.length);
+            count = other.count;
+            totalNanos = other.totalNanos;
+            maxNanos = other.maxNanos;
+        }
+
+        void add(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets[Math.min(buckets.length - 1, 64 - Long.numberOfLeadingZeros(micros))]++;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long meanNanos() {
+            return count > 0 ? totalNanos / count : 0;
+        }
+
+        public long maxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * Returns an upper bound, in nanoseconds, of the duration below which {@code fraction} of
+         * the recorded ones fall, or 0 if there are none.
+         */
+        public long percentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    // Bucket i holds durations below 2^i microseconds.
+                    return Math.min(maxNanos, (1L << i) * 1000);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import okhttp3.Headers;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.internal.http.OkHeaders;
+
+/**
+ * Holds already converted responses keyed by cache key and response type, so a hit skips both the
+ * file system and the {@code Converter}. Bounded by the number of cache keys.
+ *
+ * <p>Every invalidation bumps a generation counter. A conversion that started before an
+ * invalidation carries the old generation and is dropped by {@link #put}, so a concurrent
+ * {@code put()} of fresh data can never be shadowed by a stale converted object.
+ *
+ * <p>Requests that share a cache key may still differ in method or Vary headers, so every
+ * {@link Value} remembers what the entry it was converted from matched, and is only used for
+ * requests that would match that entry too.
+ */
+final class ConvertedCache {
+
+    private final LinkedHashMap<String, Map<Type, Value>> map = new LinkedHashMap<>(0, 0.75f, true);
+    private final int maxSize;
+    private long generation;
+
+    ConvertedCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    synchronized Value get(String key, Type type) {
+        Map<Type, Value> byType = map.get(key);
+        return byType != null ? byType.get(type) : null;
+    }
+
+    synchronized long generation() {
+        return generation;
+    }
+
+    synchronized void put(String key, Type type, Value value, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        Map<Type, Value> byType = map.get(key);
+        if (byType == null) {
+            byType = new HashMap<>(2);
+            map.put(key, byType);
+        }
+        byType.put(type, value);
+        Iterator<Map.Entry<String, Map<Type, Value>>> iterator = map.entrySet().iterator();
+        while (map.size() > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    synchronized void invalidate(String key) {
+        generation++;
+        map.remove(key);
+    }
+
+    synchronized void evictAll() {
+        generation++;
+        map.clear();
+    }
+
+    /** A converted response and the request it may answer, see {@code Entry#matches}. */
+    static final class Value {
+        final Object converted;
+        private final String method;
+        private final String normalized;
+        private final Set<String> varyFields;
+        private final Headers varyHeaders;
+
+        /**
+         * {@code cached} is the response {@code converted} was converted from, as the cache
+         * returned it for a request that normalized to {@code normalized}.
+         */
+        Value(Object converted, Response cached, String normalized) {
+            this.converted = converted;
+            this.method = cached.request().method();
+            this.normalized = normalized;
+            this.varyFields = OkHeaders.varyFields(cached.headers());
+            this.varyHeaders = cached.request().headers();
+        }
+
+        boolean matches(Request request, String normalized, boolean matchVary) {
+            if (!this.normalized.equals(normalized) || !method.equals(request.method())) {
+                return false;
+            }
+            if (matchVary) {
+                for (String field : varyFields) {
+                    if (!varyHeaders.values(field).equals(request.headers(field))) return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Principal;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * A cached certificate that holds its DER encoding and only runs it through
+ * {@link CertificateFactory} when one of its properties is first read. Cached responses carry a
+ * handshake like network ones, but a cache hit that never looks at it doesn't pay for X.509
+ * parsing. {@link #getEncoded()}, {@link #equals} and {@link #hashCode} never parse.
+ *
+ * <p>If the stored bytes no longer parse, property accessors throw
+ * {@link IllegalStateException}.
+ */
+final class LazyX509Certificate extends X509Certificate {
+    private static final long serialVersionUID = 1L;
+
+    private final ByteString encoded;
+    private X509Certificate delegate;
+
+    LazyX509Certificate(ByteString encoded) {
+        this.encoded = encoded;
+    }
+
+    private synchronized X509Certificate delegate() {
+        if (delegate == null) {
+            try {
+                CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+                delegate = (X509Certificate) certificateFactory.generateCertificate(
+                        new Buffer().write(encoded).inputStream());
+            } catch (CertificateException | ClassCastException e) {
+                throw new IllegalStateException("cached certificate can't be parsed", e);
+            }
+        }
+        return delegate;
+    }
+
+    /** Returns true once the certificate has been parsed. */
+    synchronized boolean isParsed() {
+        return delegate != null;
+    }
+
+    @Override public byte[] getEncoded() {
+        return encoded.toByteArray();
+    }
+
+    @Override public void checkValidity()
+            throws CertificateExpiredException, CertificateNotYetValidException {
+        delegate().checkValidity();
+    }
+
+    @Override public void checkValidity(Date date)
+            throws CertificateExpiredException, CertificateNotYetValidException {
+        delegate().checkValidity(date);
+    }
+
+    @Override public int getVersion() {
+        return delegate().getVersion();
+    }
+
+    @Override public BigInteger getSerialNumber() {
+        return delegate().getSerialNumber();
+    }
+
+    @SuppressWarnings("deprecation") // Delegates, callers see the deprecation.
+    @Override public Principal getIssuerDN() {
+        return delegate().getIssuerDN();
+    }
+
+    @Override public X500Principal getIssuerX500Principal() {
+        return delegate().getIssuerX500Principal();
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override public Principal getSubjectDN() {
+        return delegate().getSubjectDN();
+    }
+
+    @Override public X500Principal getSubjectX500Principal() {
+        return delegate().getSubjectX500Principal();
+    }
+
+    @Override public Date getNotBefore() {
+        return delegate().getNotBefore();
+    }
+
+    @Override public Date getNotAfter() {
+        return delegate().getNotAfter();
+    }
+
+    @Override public byte[] getTBSCertificate() throws CertificateEncodingException {
+        return delegate().getTBSCertificate();
+    }
+
+    @Override public byte[] getSignature() {
+        return delegate().getSignature();
+    }
+
+    @Override public String getSigAlgName() {
+        return delegate().getSigAlgName();
+    }
+
+    @Override public String getSigAlgOID() {
+        return delegate().getSigAlgOID();
+    }
+
+    @Override public byte[] getSigAlgParams() {
+        return delegate().getSigAlgParams();
+    }
+
+    @Override public boolean[] getIssuerUniqueID() {
+        return delegate().getIssuerUniqueID();
+    }
+
+    @Override public boolean[] getSubjectUniqueID() {
+        return delegate().getSubjectUniqueID();
+    }
+
+    @Override public boolean[] getKeyUsage() {
+        return delegate().getKeyUsage();
+    }
+
+    @Override public List<String> getExtendedKeyUsage() throws CertificateParsingException {
+        return delegate().getExtendedKeyUsage();
+    }
+
+    @Override public int getBasicConstraints() {
+        return delegate().getBasicConstraints();
+    }
+
+    @Override public Collection<List<?>> getSubjectAlternativeNames()
+            throws CertificateParsingException {
+        return delegate().getSubjectAlternativeNames();
+    }
+
+    @Override public Collection<List<?>> getIssuerAlternativeNames()
+            throws CertificateParsingException {
+        return delegate().getIssuerAlternativeNames();
+    }
+
+    @Override public void verify(PublicKey key) throws CertificateException,
+            NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException,
+            SignatureException {
+        delegate().verify(key);
+    }
+
+    @Override public void verify(PublicKey key, String sigProvider) throws CertificateException,
+            NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException,
+            SignatureException {
+        delegate().verify(key, sigProvider);
+    }
+
+    @Override public PublicKey getPublicKey() {
+        return delegate().getPublicKey();
+    }
+
+    @Override public boolean hasUnsupportedCriticalExtension() {
+        return delegate().hasUnsupportedCriticalExtension();
+    }
+
+    @Override public Set<String> getCriticalExtensionOIDs() {
+        return delegate().getCriticalExtensionOIDs();
+    }
+
+    @Override public Set<String> getNonCriticalExtensionOIDs() {
+        return delegate().getNonCriticalExtensionOIDs();
+    }
+
+    @Override public byte[] getExtensionValue(String oid) {
+        return delegate().getExtensionValue(oid);
+    }
+
+    @Override public String toString() {
+        return delegate().toString();
+    }
+}
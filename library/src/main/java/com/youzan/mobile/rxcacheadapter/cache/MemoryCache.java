@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * In-memory tier in front of the {@code DiskLruCache}. Holds decoded metadata and body bytes of
+ * recently used entries and evicts the least recently used ones once the total byte weight
+ * exceeds {@code maxSize}.
+ */
+final class MemoryCache {
+
+    private final LinkedHashMap<String, Item> map = new LinkedHashMap<>(0, 0.75f, true);
+    private final long maxSize;
+    private final CacheEventListener eventListener;
+    private long size;
+
+    MemoryCache(long maxSize) {
+        this(maxSize, CacheEventListener.NONE);
+    }
+
+    MemoryCache(long maxSize, CacheEventListener eventListener) {
+        this.maxSize = maxSize;
+        this.eventListener = eventListener;
+    }
+
+    /** Returns true if an entry of {@code weight} bytes may be held by this cache. */
+    boolean fits(long weight) {
+        return weight <= maxSize;
+    }
+
+    synchronized Item get(String key) {
+        return map.get(key);
+    }
+
+    synchronized void put(String key, Item item) {
+        Item previous = map.remove(key);
+        if (previous != null) {
+            size -= previous.weight;
+        }
+        if (!fits(item.weight)) {
+            return;
+        }
+        map.put(key, item);
+        size += item.weight;
+        trimToSize();
+    }
+
+    synchronized void remove(String key) {
+        Item previous = map.remove(key);
+        if (previous != null) {
+            size -= previous.weight;
+        }
+    }
+
+    synchronized void evictAll() {
+        map.clear();
+        size = 0;
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Item>> iterator = map.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            long weight = iterator.next().getValue().weight;
+            size -= weight;
+            iterator.remove();
+            eventListener.evicted(CacheEventListener.TIER_MEMORY, weight);
+        }
+    }
+
+    static final class Item {
+        final ZanLocalCache.Entry entry;
+        final ByteString body;
+        final long weight;
+        private final MediaType contentType;
+
+        Item(ZanLocalCache.Entry entry, ByteString body) {
+            this.entry = entry;
+            this.body = body;
+            this.weight = entry.weight() + body.size();
+            String contentType = entry.contentType();
+            this.contentType = contentType != null ? MediaType.parse(contentType) : null;
+        }
+
+        /** Returns a fresh body over the held bytes; no file is touched. */
+        ResponseBody newBody() {
+            return ResponseBody.create(contentType, body.size(), new Buffer().write(body));
+        }
+    }
+}
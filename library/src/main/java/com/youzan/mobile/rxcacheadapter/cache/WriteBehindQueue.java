@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 ZanMobile, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.internal.Util;
+import okio.ByteString;
+
+/**
+ * Moves {@code DiskLruCache} writes off the caller's thread. Operations are applied in order by a
+ * single writer thread. A newer operation on a key that is still queued replaces the older one, so
+ * at most one write per key is ever pending. When {@code maxPending} keys are queued, writes of new
+ * keys are dropped rather than blocking the caller; removals are always accepted.
+ */
+final class WriteBehindQueue {
+
+    /** Applies queued operations to disk, always called on the writer thread. */
+    interface DiskWriter {
+        void write(String key, Write write);
+    }
+
+    /**
+     * A pending write of an entry, of only its metadata when {@link #body} is null, or a removal
+     * when {@link #entry} is null. {@link #endpoint} names the call that wrote it for the
+     * {@link CacheEventListener}, if there is one.
+     */
+    static final class Write {
+        final ZanLocalCache.Entry entry;
+        final ByteString body;
+        final String endpoint;
+
+        Write(ZanLocalCache.Entry entry, ByteString body) {
+            this(entry, body, null);
+        }
+
+        Write(ZanLocalCache.Entry entry, ByteString body, String endpoint) {
+            this.entry = entry;
+            this.body = body;
+            this.endpoint = endpoint;
+        }
+
+        static Write removal() {
+            return new Write(null, null);
+        }
+
+        static Write metadata(ZanLocalCache.Entry entry) {
+            return new Write(entry, null);
+        }
+
+        boolean isRemoval() {
+            return entry == null;
+        }
+
+        boolean isMetadataOnly() {
+            return entry != null && body == null;
+        }
+    }
+
+    private final LinkedHashMap<String, Write> pending = new LinkedHashMap<>();
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), Util.threadFactory("ZanLocalCache Writer", true));
+    private final DiskWriter diskWriter;
+    private final int maxPending;
+    private boolean draining;
+    private int droppedCount;
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override public void run() {
+            drain();
+        }
+    };
+
+    WriteBehindQueue(DiskWriter diskWriter, int maxPending) {
+        this.diskWriter = diskWriter;
+        this.maxPending = maxPending;
+    }
+
+    /** Queues {@code write} for {@code key}, returning false if it was dropped. */
+    synchronized boolean enqueue(String key, Write write) {
+        Write previous = pending.get(key);
+        if (previous == null && !write.isRemoval() && pending.size() >= maxPending) {
+            droppedCount++;
+            return false;
+        }
+        if (previous != null && write.isMetadataOnly()) {
+            if (previous.isRemoval()) {
+                return true; // Nothing left to update.
+            }
+            if (!previous.isMetadataOnly()) {
+                // Keep the queued body, only its metadata changed.
+                write = new Write(write.entry, previous.body, previous.endpoint);
+            }
+        }
+        pending.put(key, write);
+        if (!draining) {
+            draining = true;
+            executor.execute(drainRunnable);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the operation queued for {@code key}. If it is already in flight it still completes;
+     * a concurrent {@code DiskLruCache} edit of the same key then fails instead of interleaving.
+     */
+    synchronized void cancel(String key) {
+        pending.remove(key);
+    }
+
+    /** Returns the operation queued or in flight for {@code key}, or null. */
+    synchronized Write pending(String key) {
+        return pending.get(key);
+    }
+
+    synchronized int droppedCount() {
+        return droppedCount;
+    }
+
+    /** Blocks until every operation queued so far has been applied. */
+    synchronized void flush() throws InterruptedException {
+        while (draining) {
+            wait();
+        }
+    }
+
+    /** Flushes and stops the writer thread. */
+    void close() throws InterruptedException {
+        flush();
+        executor.shutdown();
+    }
+
+    private void drain() {
+        while (true) {
+            String key;
+            Write write;
+            synchronized (this) {
+                Iterator<Map.Entry<String, Write>> iterator = pending.entrySet().iterator();
+                if (!iterator.hasNext()) {
+                    draining = false;
+                    notifyAll();
+                    return;
+                }
+                // Leave the operation visible to pending() until it has reached the disk.
+                Map.Entry<String, Write> next = iterator.next();
+                key = next.getKey();
+                write = next.getValue();
+            }
+            try {
+                diskWriter.write(key, write);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    // A newer operation for the same key stays queued and is applied next.
+                    if (pending.get(key) == write) {
+                        pending.remove(key);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -15,24 +15,31 @@
  */
 package com.youzan.mobile.rxcacheadapter.cache;
 
+import android.content.Context;
 import android.os.Environment;
 
 import com.jakewharton.disklrucache.DiskLruCache;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 import okhttp3.CipherSuite;
 import okhttp3.Handshake;
 import okhttp3.Headers;
-import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.Protocol;
 import okhttp3.Request;
@@ -44,6 +51,7 @@ import okhttp3.internal.Platform;
 import okhttp3.internal.Util;
 import okhttp3.internal.http.CacheRequest;
 import okhttp3.internal.http.OkHeaders;
+import okhttp3.internal.http.RealResponseBody;
 import okhttp3.internal.http.StatusLine;
 import okio.Buffer;
 import okio.BufferedSink;
@@ -54,6 +62,7 @@ import okio.ForwardingSource;
 import okio.Okio;
 import okio.Sink;
 import okio.Source;
+import okio.Timeout;
 
 /**
  * Created by ryan on 16/8/12.
@@ -61,41 +70,312 @@ import okio.Source;
 
 public class ZanLocalCache {
 
+    /**
+     * Response header with the hex MD5 of the cached body, added on the write path. Two responses
+     * with the same value carry byte-identical bodies.
+     */
+    public static final String CONTENT_HASH_HEADER = "ZanCache-Content-Hash";
+
+    /**
+     * Response header with comma-separated tags of the entry, for {@link #invalidateByTag}. Tags
+     * can't contain whitespace. {@code ZanCacheInterceptor} moves it from the request, so a
+     * service method can tag its responses with {@code @Headers("ZanCache-Tags: items")}.
+     */
+    public static final String TAGS_HEADER = "ZanCache-Tags";
+
     private static final int VERSION = 201708;
     private static final int ENTRY_METADATA = 0;
     private static final int ENTRY_BODY = 1;
     private static final int ENTRY_COUNT = 2;
 
+    private static final long DEFAULT_MAX_SIZE = 20 * 1024 * 1024;
+    private static final long DEFAULT_MEMORY_CACHE_SIZE = 2 * 1024 * 1024;
+    private static final int MAX_PENDING_WRITES = 64;
+
+    // Configuration of the instance returned by getInstance().
     private static String cacheDirPath;
+    private static long defaultMemoryCacheSize = DEFAULT_MEMORY_CACHE_SIZE;
+    private static int defaultConvertedCacheSize;
+    private static volatile ZanLocalCache defaultInstance;
+
     private DiskLruCache diskLruCache;
+    private CacheIndex index;
+    private final MemoryCache memoryCache;
+    private final ConvertedCache convertedCache;
+    private final WriteBehindQueue writeBehindQueue;
+    private final boolean withCertificates;
+    private final CacheKeyStrategy cacheKeyStrategy;
+    private final boolean matchVary;
+    private final BodyCodec bodyCodec;
+    private final CacheEventListener eventListener;
+    /** False with {@link CacheEventListener#NONE}, so neither clocks nor endpoints are read. */
+    private final boolean listening;
 
-    private ZanLocalCache() {
-        String cacheDir;
-        if (cacheDirPath == null) {
-            cacheDir = Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
-                    + "ZanLocalCache";
-        } else {
-            cacheDir = cacheDirPath;
-        }
-        File file = new File(cacheDir);
+    private int memoryHitCount;
+    private int memoryMissCount;
+    private int diskHitCount;
+    private int diskMissCount;
+    private int convertedHitCount;
+
+    private ZanLocalCache(Builder builder) {
+        eventListener = builder.eventListener;
+        listening = eventListener != CacheEventListener.NONE;
+        memoryCache = new MemoryCache(builder.memoryCacheSize, eventListener);
+        convertedCache = builder.convertedCacheSize > 0
+                ? new ConvertedCache(builder.convertedCacheSize)
+                : null;
+        withCertificates = builder.persistCertificates;
+        cacheKeyStrategy = builder.keyStrategy;
+        matchVary = builder.matchVary;
+        bodyCodec = builder.bodyCodec;
+        writeBehindQueue = new WriteBehindQueue(new WriteBehindQueue.DiskWriter() {
+            @Override public void write(String key, WriteBehindQueue.Write write) {
+                if (write.isRemoval()) {
+                    removeFromDisk(key);
+                } else if (write.isMetadataOnly()) {
+                    writeMetadataToDisk(key, write.entry);
+                } else {
+                    writeToDisk(key, write.entry, write.body, write.endpoint);
+                }
+                if (index != null) {
+                    index.writeLog();
+                }
+            }
+        }, MAX_PENDING_WRITES);
+        // Without an app version the journal keeps the plain format version, so caches written
+        // before versioning stay readable.
+        int diskVersion = builder.appVersion != 0 ? 31 * VERSION + builder.appVersion : VERSION;
         try {
-            diskLruCache = DiskLruCache.open(file, VERSION, ENTRY_COUNT, 20 * 1024 * 1024);
+            diskLruCache = DiskLruCache.open(builder.directory, diskVersion, ENTRY_COUNT,
+                    builder.maxSize());
+            // Opened after the disk cache, which deletes the directory when the version changed.
+            index = new CacheIndex(builder.directory);
         } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    private static class InstanceHolder {
-        private static final ZanLocalCache instance = new ZanLocalCache();
+    /**
+     * Returns the shared instance, configured by {@link #init(String)} or replaced with
+     * {@link #setDefaultInstance}. Without either it is stored on external storage as before.
+     */
+    public static ZanLocalCache getInstance() {
+        ZanLocalCache instance = defaultInstance;
+        if (instance == null) {
+            synchronized (ZanLocalCache.class) {
+                instance = defaultInstance;
+                if (instance == null) {
+                    String cacheDir = cacheDirPath != null
+                            ? cacheDirPath
+                            : Environment.getExternalStorageDirectory().getAbsolutePath()
+                                    + File.separator + "ZanLocalCache";
+                    instance = new Builder(new File(cacheDir))
+                            .memoryCacheSize(defaultMemoryCacheSize)
+                            .convertedCacheSize(defaultConvertedCacheSize)
+                            .build();
+                    defaultInstance = instance;
+                }
+            }
+        }
+        return instance;
     }
 
-    public static ZanLocalCache getInstance() {
-        return InstanceHolder.instance;
+    /**
+     * Makes {@code cache} the instance returned by {@link #getInstance()}, and so the one used by
+     * factories and interceptors that aren't given their own.
+     */
+    public static void setDefaultInstance(ZanLocalCache cache) {
+        if (cache == null) throw new NullPointerException("cache == null");
+        synchronized (ZanLocalCache.class) {
+            defaultInstance = cache;
+        }
     }
 
     public static void init(String cacheDir) {
         cacheDirPath = cacheDir;
     }
 
+    /**
+     * Like {@link #init(String)}, and also sets the byte budget of the in-memory tier. Use 0 to
+     * read every hit from disk.
+     */
+    public static void init(String cacheDir, long memoryCacheSize) {
+        if (memoryCacheSize < 0) throw new IllegalArgumentException("memoryCacheSize < 0");
+        cacheDirPath = cacheDir;
+        ZanLocalCache.defaultMemoryCacheSize = memoryCacheSize;
+    }
+
+    /**
+     * Like {@link #init(String, long)}, and also keeps the converted responses of up to
+     * {@code convertedCacheSize} cache keys, see {@link #getConverted}. Only enable this when every
+     * cached response type is immutable: callers share the same converted instance.
+     */
+    public static void init(String cacheDir, long memoryCacheSize, int convertedCacheSize) {
+        if (convertedCacheSize < 0) throw new IllegalArgumentException("convertedCacheSize < 0");
+        init(cacheDir, memoryCacheSize);
+        ZanLocalCache.defaultConvertedCacheSize = convertedCacheSize;
+    }
+
+    /**
+     * Configures an independent cache. Instances don't share entries, size budgets or writer
+     * threads, so a large endpoint in one can't evict the entries of another. Each directory must
+     * be used by at most one instance.
+     */
+    public static final class Builder {
+        private final File directory;
+        private long maxSize = DEFAULT_MAX_SIZE;
+        private float freeSpaceFraction;
+        private long minSize;
+        private int appVersion;
+        private long memoryCacheSize = DEFAULT_MEMORY_CACHE_SIZE;
+        private int convertedCacheSize;
+        private boolean persistCertificates = true;
+        private CacheKeyStrategy keyStrategy = CacheKeyStrategies.url();
+        private boolean matchVary;
+        private BodyCodec bodyCodec;
+        private CacheEventListener eventListener = CacheEventListener.NONE;
+
+        /** Stores the cache in {@code ZanLocalCache} under the app's internal cache directory. */
+        public Builder(Context context) {
+            this(new File(context.getCacheDir(), "ZanLocalCache"));
+        }
+
+        public Builder(File directory) {
+            if (directory == null) throw new NullPointerException("directory == null");
+            this.directory = directory;
+        }
+
+        /** The byte budget on disk, 20 MB by default. */
+        public Builder maxSize(long maxSize) {
+            if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+            this.maxSize = maxSize;
+            this.freeSpaceFraction = 0;
+            return this;
+        }
+
+        /**
+         * Sizes the cache to {@code fraction} of the space that is free on the directory's volume
+         * when the cache is built, but no less than {@code minSize} and no more than
+         * {@code maxSize}.
+         */
+        public Builder maxSizeFromFreeSpace(float fraction, long minSize, long maxSize) {
+            if (fraction <= 0 || fraction > 1) {
+                throw new IllegalArgumentException("fraction must be in (0, 1]");
+            }
+            if (minSize <= 0 || minSize > maxSize) {
+                throw new IllegalArgumentException("0 < minSize <= maxSize required");
+            }
+            this.freeSpaceFraction = fraction;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Entries written with another app version are discarded when the cache is opened, use
+         * the app's version code to drop everything on upgrade.
+         */
+        public Builder appVersion(int appVersion) {
+            this.appVersion = appVersion;
+            return this;
+        }
+
+        /**
+         * The byte budget of the in-memory tier, 2 MB by default. Use 0 to read every hit from
+         * disk.
+         */
+        public Builder memoryCacheSize(long memoryCacheSize) {
+            if (memoryCacheSize < 0) throw new IllegalArgumentException("memoryCacheSize < 0");
+            this.memoryCacheSize = memoryCacheSize;
+            return this;
+        }
+
+        /**
+         * Keeps the converted responses of up to {@code convertedCacheSize} cache keys, see
+         * {@link ZanLocalCache#getConverted}. Only enable this when every cached response type is immutable:
+         * callers share the same converted instance.
+         */
+        public Builder convertedCacheSize(int convertedCacheSize) {
+            if (convertedCacheSize < 0) throw new IllegalArgumentException("convertedCacheSize < 0");
+            this.convertedCacheSize = convertedCacheSize;
+            return this;
+        }
+
+        /**
+         * With {@code persistCertificates} false, cached HTTPS responses keep the cipher suite and
+         * TLS version of their handshake but not its certificate chains. This shrinks metadata
+         * files by a few kilobytes per entry; {@code handshake().peerCertificates()} of such
+         * responses is empty.
+         */
+        public Builder persistCertificates(boolean persistCertificates) {
+            this.persistCertificates = persistCertificates;
+            return this;
+        }
+
+        /**
+         * Sets how requests are mapped to cache entries, {@link CacheKeyStrategies#url()} by
+         * default. Changing the strategy orphans the entries stored under the old keys until they
+         * are evicted.
+         */
+        public Builder keyStrategy(CacheKeyStrategy keyStrategy) {
+            if (keyStrategy == null) throw new NullPointerException("keyStrategy == null");
+            this.keyStrategy = keyStrategy;
+            return this;
+        }
+
+        /**
+         * With {@code matchVary}, a cached response is only served to requests whose headers
+         * named by its {@code Vary} header equal those it was fetched with, as in HTTP caching.
+         * Off by default, requests then only need the same cache key and method.
+         */
+        public Builder matchVary(boolean matchVary) {
+            this.matchVary = matchVary;
+            return this;
+        }
+
+        /**
+         * Encodes bodies on disk with {@code bodyCodec}, like {@link BodyCodecs#gzip()}, so more
+         * entries fit the budget. Bodies of already compressed types and tiny ones are stored as
+         * is. Entries remember their codec, so this can be changed or turned off at any time; a
+         * custom codec must stay configured while entries written with it are around.
+         */
+        public Builder bodyCodec(BodyCodec bodyCodec) {
+            this.bodyCodec = bodyCodec;
+            return this;
+        }
+
+        long maxSize() {
+            if (freeSpaceFraction == 0) {
+                return maxSize;
+            }
+            // getUsableSpace() is 0 for paths that don't exist yet, ask the closest ancestor.
+            File existing = directory.getAbsoluteFile();
+            while (existing != null && !existing.exists()) {
+                existing = existing.getParentFile();
+            }
+            long free = existing != null ? existing.getUsableSpace() : 0;
+            return Math.max(minSize, Math.min(maxSize, (long) (free * freeSpaceFraction)));
+        }
+
+        /**
+         * Reports hits, misses, writes, evictions and their times to {@code eventListener}, for
+         * example a {@link CacheStats}. Nothing is measured by default.
+         */
+        public Builder eventListener(CacheEventListener eventListener) {
+            if (eventListener == null) throw new NullPointerException("eventListener == null");
+            this.eventListener = eventListener;
+            return this;
+        }
+
+        public ZanLocalCache build() {
+            return new ZanLocalCache(this);
+        }
+    }
+
+    /**
+     * Stores {@code response}. The entry is visible to {@link #get} as soon as this returns; the
+     * disk write happens later on the writer thread, see {@link #flush()}.
+     */
     public void put(Response response) {
         if (diskLruCache == null) {
             return;
@@ -110,21 +390,197 @@ public class ZanLocalCache {
             return;
         }
 
-        Entry entry = new Entry(response);
+        String key = requestToKey(response.request());
+        String normalized = cacheKeyStrategy.normalize(response.request());
+        if (key == null || normalized == null) {
+            return;
+        }
+        if (convertedCache != null) {
+            convertedCache.invalidate(key);
+        }
+        indexEntry(key, response);
+        ByteString body;
+        try {
+            body = response.body().source().readByteString();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (response.header(CONTENT_HASH_HEADER) == null) {
+            response = response.newBuilder()
+                    .header(CONTENT_HASH_HEADER, body.md5().hex())
+                    .build();
+        }
+        Entry entry = new Entry(response, normalized, withCertificates);
+        memoryCache.put(key, new MemoryCache.Item(entry, body));
+        String endpoint = listening ? CacheEventListener.endpoint(response.request().url()) : null;
+        if (!writeBehindQueue.enqueue(key, new WriteBehindQueue.Write(entry, body, endpoint))) {
+            // The write was dropped and the disk copy is stale now, don't serve it later.
+            writeBehindQueue.enqueue(key, WriteBehindQueue.Write.removal());
+            if (listening) {
+                eventListener.writeAbort(endpoint);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of {@code response} whose body is written to the cache while the caller reads
+     * it, so the body is never held in memory as a whole. The entry is committed once the body has
+     * been read to the end and {@code check} accepts the first {@code prefixLimit} bytes of it. It
+     * is aborted if the body fails or is closed early.
+     *
+     * <p>Returns {@code response} unchanged if it can't be cached.
+     */
+    public Response putStreaming(Response response, long prefixLimit, CommitCheck check) {
+        if (diskLruCache == null) {
+            return response;
+        }
+
+        String requestMethod = response.request().method();
+        if (invalidatesCache(requestMethod)) {
+            return response;
+        }
+
+        if (OkHeaders.hasVaryAll(response)) {
+            return response;
+        }
+
+        String key = requestToKey(response.request());
+        String normalized = cacheKeyStrategy.normalize(response.request());
+        if (key == null || normalized == null) {
+            return response;
+        }
+        Entry entry = new Entry(response, normalized, withCertificates);
+        memoryCache.remove(key);
+        if (convertedCache != null) {
+            convertedCache.invalidate(key);
+        }
+        // This write supersedes anything still queued for the key.
+        writeBehindQueue.cancel(key);
+        indexEntry(key, response);
+
+        String endpoint = listening ? CacheEventListener.endpoint(response.request().url()) : null;
+        DiskLruCache.Editor editor = null;
+        CacheRequestImpl cacheRequest;
+        try {
+            editor = diskLruCache.edit(key);
+            if (editor == null) {
+                if (listening) {
+                    eventListener.writeAbort(endpoint);
+                }
+                return response;
+            }
+            BodyCodec codec = codecFor(entry, response.body().contentLength());
+            entry = entry.withBody(codec != null ? codec.name() : null, -1);
+            entry.writeTo(editor);
+            cacheRequest = new CacheRequestImpl(editor, codec, endpoint);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (editor != null) {
+                try {
+                    editor.abort();
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
+            if (listening) {
+                eventListener.writeAbort(endpoint);
+            }
+            return response;
+        }
+
+        BufferedSource source = Okio.buffer(new TeeSource(response.body().source(), entry,
+                cacheRequest, prefixLimit, check));
+        return response.newBuilder()
+                .body(new RealResponseBody(response.headers(), source))
+                .build();
+    }
+
+    /** Decides whether a completely streamed body may be committed to the cache. */
+    public interface CommitCheck {
+        /** {@code prefix} holds the first bytes of the body, up to the requested limit. */
+        boolean shouldCommit(BufferedSource prefix);
+    }
+
+    /**
+     * Replaces the stored headers and timestamps of a cached response with those of
+     * {@code updated}, e.g. after a {@code 304 Not Modified}. The stored body is kept as is.
+     */
+    public void update(Response updated) {
+        if (diskLruCache == null) {
+            return;
+        }
+        String key = requestToKey(updated.request());
+        String normalized = cacheKeyStrategy.normalize(updated.request());
+        if (key == null || normalized == null) {
+            return;
+        }
+        Entry entry = new Entry(updated, normalized, withCertificates);
+        if (convertedCache != null) {
+            convertedCache.invalidate(key);
+        }
+        MemoryCache.Item item = memoryCache.get(key);
+        if (item != null) {
+            memoryCache.put(key, new MemoryCache.Item(entry, item.body));
+        }
+        writeBehindQueue.enqueue(key, WriteBehindQueue.Write.metadata(entry));
+    }
+
+    private void writeMetadataToDisk(String key, Entry entry) {
+        DiskLruCache.Snapshot snapshot = null;
         DiskLruCache.Editor editor = null;
+        try {
+            snapshot = diskLruCache.get(key);
+            if (snapshot == null) {
+                return;
+            }
+            // The body stays, and with it how it is encoded.
+            Entry stored = Entry.read(Okio.source(snapshot.getInputStream(ENTRY_METADATA)));
+            entry = entry.withBody(stored.bodyCodec, stored.bodyLength);
+            // Null if the entry changed since the snapshot was taken.
+            editor = snapshot.edit();
+            if (editor == null) {
+                return;
+            }
+            entry.writeTo(editor);
+            editor.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (editor != null) {
+                try {
+                    editor.abort();
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
+        } finally {
+            Util.closeQuietly(snapshot);
+        }
+    }
 
+    private void writeToDisk(String key, Entry entry, ByteString body, String endpoint) {
+        long start = listening ? System.nanoTime() : 0;
+        DiskLruCache.Editor editor = null;
         try {
-            String key = requestToKey(response.request());
             editor = diskLruCache.edit(key);
             if (editor == null) {
+                if (listening) {
+                    eventListener.writeAbort(endpoint);
+                }
                 return;
             }
+            BodyCodec codec = codecFor(entry, body.size());
+            entry = entry.withBody(codec != null ? codec.name() : null, body.size());
             entry.writeTo(editor);
-            BufferedSink cacheOut = Okio.buffer(Okio.sink(editor.newOutputStream(ENTRY_BODY)));
-            cacheOut.writeAll(response.body().source());
+            Sink out = Okio.sink(editor.newOutputStream(ENTRY_BODY));
+            BufferedSink cacheOut = Okio.buffer(codec != null ? codec.encode(out) : out);
+            cacheOut.write(body);
             cacheOut.flush();
             cacheOut.close();
             editor.commit();
+            if (listening) {
+                eventListener.writeSuccess(endpoint, body.size(), System.nanoTime() - start);
+            }
         } catch (IOException e) {
             e.printStackTrace();
             if (editor != null) {
@@ -134,57 +590,462 @@ public class ZanLocalCache {
                     e1.printStackTrace();
                 }
             }
+            if (listening) {
+                eventListener.writeAbort(endpoint);
+            }
         }
     }
 
     public Response get(Request request) {
-        if (diskLruCache == null) {
+        return get(request, requestToKey(request));
+    }
+
+    private Response get(Request request, String key) {
+        if (diskLruCache == null || key == null) {
             return null;
         }
-        String key = requestToKey(request);
+        long start = listening ? System.nanoTime() : 0;
+        String endpoint = listening ? CacheEventListener.endpoint(request.url()) : null;
+        String normalized = cacheKeyStrategy.normalize(request);
+        MemoryCache.Item item = memoryCache.get(key);
+        if (item != null) {
+            if (!item.entry.matches(request, normalized, matchVary)) {
+                trackMemoryMiss();
+                return miss(endpoint, start);
+            }
+            trackMemoryHit();
+            return hit(endpoint, CacheEventListener.TIER_MEMORY, item.body.size(), start,
+                    item.entry.response(item.newBody()));
+        }
+        WriteBehindQueue.Write write = writeBehindQueue.pending(key);
+        if (write != null && !write.isMetadataOnly()) {
+            // The disk doesn't have the latest state of this key yet.
+            if (write.isRemoval() || !write.entry.matches(request, normalized, matchVary)) {
+                trackMemoryMiss();
+                return miss(endpoint, start);
+            }
+            trackMemoryHit();
+            return hit(endpoint, CacheEventListener.TIER_MEMORY, write.body.size(), start,
+                    write.entry.response(new MemoryCache.Item(write.entry, write.body).newBody()));
+        }
+        trackMemoryMiss();
+
         DiskLruCache.Snapshot snapshot;
         Entry entry;
         try {
             snapshot = diskLruCache.get(key);
             if (snapshot == null) {
-                return null;
+                trackDiskMiss();
+                return miss(endpoint, start);
             }
         } catch (IOException e) {
             e.printStackTrace();
-            return null;
+            return miss(endpoint, start);
         }
+        trackDiskHit();
 
         try {
-            entry = new Entry(Okio.source(snapshot.getInputStream(ENTRY_METADATA)));
+            long parseStart = listening ? System.nanoTime() : 0;
+            entry = Entry.read(Okio.source(snapshot.getInputStream(ENTRY_METADATA)));
+            if (listening) {
+                eventListener.parsed(endpoint, System.nanoTime() - parseStart);
+            }
         } catch (IOException e) {
             Util.closeQuietly(snapshot);
             e.printStackTrace();
-            return null;
+            return miss(endpoint, start);
+        }
+
+        if (!entry.matches(request, normalized, matchVary)) {
+            Util.closeQuietly(snapshot);
+            return miss(endpoint, start);
+        }
+        if (entry.isLegacy()) {
+            // Migrates the entry so the next disk hit takes the binary path.
+            writeBehindQueue.enqueue(key, WriteBehindQueue.Write.metadata(entry));
         }
 
-        Response response = entry.response(snapshot);
-        if (!entry.matches(request)) {
+        Source body;
+        try {
+            body = bodySource(entry, snapshot);
+        } catch (IOException e) {
             Util.closeQuietly(snapshot);
+            e.printStackTrace();
+            return miss(endpoint, start);
+        }
+        long bodyLength = entry.bodyCodec != null ? entry.bodyLength : snapshot.getLength(ENTRY_BODY);
+
+        // Promote the entry to the memory tier so the next hit doesn't touch the file system.
+        if (bodyLength >= 0 && memoryCache.fits(entry.weight() + bodyLength)) {
+            try {
+                item = new MemoryCache.Item(entry, Okio.buffer(body).readByteString());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return miss(endpoint, start);
+            } finally {
+                Util.closeQuietly(snapshot);
+            }
+            memoryCache.put(key, item);
+            return hit(endpoint, CacheEventListener.TIER_DISK, item.body.size(), start,
+                    entry.response(item.newBody()));
+        }
+
+        long contentLength = entry.bodyCodec != null ? bodyLength : entry.contentLength();
+        return hit(endpoint, CacheEventListener.TIER_DISK, contentLength, start,
+                entry.response(new CacheResponseBody(snapshot, body, entry.contentType(),
+                        contentLength)));
+    }
+
+    /**
+     * Returns the stored headers of the response cached for {@code request}, or null if there is
+     * none, e.g. to read its validators. Only the metadata is read: the body isn't opened, the
+     * entry isn't promoted to the memory tier and neither the hit counts nor the
+     * {@link CacheEventListener} see the lookup.
+     */
+    public Headers cachedHeaders(Request request) {
+        String key = requestToKey(request);
+        if (diskLruCache == null || key == null) {
+            return null;
+        }
+        String normalized = cacheKeyStrategy.normalize(request);
+        Entry entry;
+        MemoryCache.Item item = memoryCache.get(key);
+        WriteBehindQueue.Write write;
+        if (item != null) {
+            entry = item.entry;
+        } else if ((write = writeBehindQueue.pending(key)) != null) {
+            // Pending metadata is newer than what is on disk.
+            entry = write.entry;
+        } else {
+            DiskLruCache.Snapshot snapshot = null;
+            try {
+                snapshot = diskLruCache.get(key);
+                if (snapshot == null) {
+                    return null;
+                }
+                entry = Entry.read(Okio.source(snapshot.getInputStream(ENTRY_METADATA)));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                Util.closeQuietly(snapshot);
+            }
+        }
+        if (entry == null || !entry.matches(request, normalized, matchVary)) {
             return null;
         }
+        return entry.responseHeaders;
+    }
 
+    private Response hit(String endpoint, int tier, long bytes, long start, Response response) {
+        if (listening) {
+            eventListener.cacheHit(endpoint, tier, bytes, System.nanoTime() - start);
+        }
         return response;
     }
 
+    private Response miss(String endpoint, long start) {
+        if (listening) {
+            eventListener.cacheMiss(endpoint, System.nanoTime() - start);
+        }
+        return null;
+    }
+
+    /** Returns true if converted responses are kept, see {@link Builder#convertedCacheSize}. */
+    public boolean isConvertedCacheEnabled() {
+        return convertedCache != null;
+    }
+
+    /**
+     * Loads the cached entries of {@code requests} from disk into the memory tier in one pass, so
+     * their first {@link #get} doesn't touch the file system. Blocks on disk I/O, call it on a
+     * background thread. Entries that are already in memory, have a write pending or don't fit
+     * the memory tier are skipped. Returns the number of entries loaded.
+     */
+    public int preload(Collection<Request> requests) {
+        if (diskLruCache == null) {
+            return 0;
+        }
+        int loaded = 0;
+        for (Request request : requests) {
+            String key = requestToKey(request);
+            if (key == null || memoryCache.get(key) != null || writeBehindQueue.pending(key) != null) {
+                continue;
+            }
+            DiskLruCache.Snapshot snapshot = null;
+            try {
+                snapshot = diskLruCache.get(key);
+                if (snapshot == null) {
+                    continue;
+                }
+                Entry entry = Entry.read(Okio.source(snapshot.getInputStream(ENTRY_METADATA)));
+                long bodyLength = entry.bodyCodec != null
+                        ? entry.bodyLength
+                        : snapshot.getLength(ENTRY_BODY);
+                if (!entry.matches(request, cacheKeyStrategy.normalize(request), matchVary)
+                        || bodyLength < 0 || !memoryCache.fits(entry.weight() + bodyLength)) {
+                    continue;
+                }
+                ByteString body = Okio.buffer(bodySource(entry, snapshot)).readByteString();
+                memoryCache.put(key, new MemoryCache.Item(entry, body));
+                loaded++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                Util.closeQuietly(snapshot);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Returns the cached response for {@code request} converted to {@code responseType}. If the
+     * converted cache is enabled, successful conversions are kept and later hits skip both the
+     * file system and {@code parser}.
+     */
+    @SuppressWarnings("unchecked") // Values are stored under the type they were converted to.
+    public <T> retrofit2.Response<T> getConverted(Request request, CacheResponse<T> parser,
+                                                  Annotation[] annotations, Type responseType) {
+        if (convertedCache == null) {
+            Response response = get(request);
+            return response != null
+                    ? convert(request, response, parser, annotations, responseType)
+                    : null;
+        }
+
+        String key = requestToKey(request);
+        String normalized = cacheKeyStrategy.normalize(request);
+        if (key == null || normalized == null) {
+            return null;
+        }
+        long start = listening ? System.nanoTime() : 0;
+        ConvertedCache.Value value = convertedCache.get(key, responseType);
+        // Like the raw tiers, a value converted for another method or Vary doesn't answer.
+        if (value != null && value.matches(request, normalized, matchVary)) {
+            trackConvertedHit();
+            if (listening) {
+                eventListener.cacheHit(CacheEventListener.endpoint(request.url()),
+                        CacheEventListener.TIER_CONVERTED, -1, System.nanoTime() - start);
+            }
+            return (retrofit2.Response<T>) value.converted;
+        }
+
+        long generation = convertedCache.generation();
+        Response response = get(request, key);
+        if (response == null) {
+            return null;
+        }
+        retrofit2.Response<T> converted =
+                convert(request, response, parser, annotations, responseType);
+        // Error bodies are one-shot buffers, only successful responses can be shared.
+        if (converted != null && converted.isSuccessful()) {
+            convertedCache.put(key, responseType,
+                    new ConvertedCache.Value(converted, response, normalized), generation);
+        }
+        return converted;
+    }
+
+    private <T> retrofit2.Response<T> convert(Request request, Response response,
+                                              CacheResponse<T> parser, Annotation[] annotations,
+                                              Type responseType) {
+        if (!listening) {
+            return parser.parseResponse(response, annotations, responseType);
+        }
+        long start = System.nanoTime();
+        retrofit2.Response<T> converted = parser.parseResponse(response, annotations, responseType);
+        eventListener.converted(CacheEventListener.endpoint(request.url()),
+                System.nanoTime() - start);
+        return converted;
+    }
+
     public void removeRequest(Request request) {
         String key = requestToKey(request);
+        if (key == null) {
+            return;
+        }
+        remove(key);
+    }
+
+    /**
+     * Removes every entry tagged {@code tag}, see {@link #TAGS_HEADER}, and returns how many the
+     * index listed. The count includes entries the disk cache already evicted to stay within its
+     * size. Entries stored before the index existed aren't found.
+     */
+    public int invalidateByTag(String tag) {
+        if (index == null) {
+            return 0;
+        }
+        return remove(index.keysForTag(tag));
+    }
+
+    /**
+     * Removes every entry whose URL path starts with {@code pathPrefix}, like {@code /v1/items}
+     * for {@code /v1/items?page=2} and {@code /v1/items/42}, and returns how many the index listed,
+     * see {@link #invalidateByTag}. The prefix isn't cut at a path segment: {@code /v1/item}
+     * matches both as well.
+     */
+    public int invalidateByPrefix(String pathPrefix) {
+        if (index == null) {
+            return 0;
+        }
+        return remove(index.keysForPathPrefix(pathPrefix));
+    }
+
+    private int remove(List<String> keys) {
+        for (String key : keys) {
+            remove(key);
+        }
+        return keys.size();
+    }
+
+    private void remove(String key) {
+        if (index != null) {
+            index.remove(key);
+        }
+        memoryCache.remove(key);
+        if (convertedCache != null) {
+            convertedCache.invalidate(key);
+        }
+        // Goes through the queue so that a write still pending for this key can't resurrect it.
+        writeBehindQueue.enqueue(key, WriteBehindQueue.Write.removal());
+    }
+
+    private void removeFromDisk(String key) {
+        if (diskLruCache == null) {
+            return;
+        }
         try {
             diskLruCache.remove(key);
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    /** Blocks until every write and removal issued so far has reached the disk. */
+    public void flush() throws InterruptedException {
+        writeBehindQueue.flush();
+        if (index != null) {
+            index.writeLog();
+        }
+    }
+
+    /** Flushes pending writes, stops the writer thread and closes the disk cache. */
+    public void close() throws IOException, InterruptedException {
+        writeBehindQueue.close();
+        if (index != null) {
+            index.writeLog();
+        }
+        if (diskLruCache != null) {
+            diskLruCache.close();
+        }
+    }
+
+    /** Number of disk writes dropped because the write-behind queue was full. */
+    public int droppedWriteCount() {
+        return writeBehindQueue.droppedCount();
+    }
+
+    public synchronized int memoryHitCount() {
+        return memoryHitCount;
+    }
+
+    public synchronized int memoryMissCount() {
+        return memoryMissCount;
+    }
+
+    public synchronized int diskHitCount() {
+        return diskHitCount;
+    }
+
+    public synchronized int diskMissCount() {
+        return diskMissCount;
+    }
+
+    MemoryCache memoryCache() {
+        return memoryCache;
+    }
+
+    /** Returns the listener set with {@link Builder#eventListener}. */
+    public CacheEventListener eventListener() {
+        return eventListener;
+    }
+
+    public synchronized int convertedHitCount() {
+        return convertedHitCount;
+    }
+
+    private synchronized void trackConvertedHit() {
+        convertedHitCount++;
+    }
+
+    private synchronized void trackMemoryHit() {
+        memoryHitCount++;
+    }
+
+    private synchronized void trackMemoryMiss() {
+        memoryMissCount++;
+    }
+
+    private synchronized void trackDiskHit() {
+        diskHitCount++;
+    }
+
+    private synchronized void trackDiskMiss() {
+        diskMissCount++;
+    }
+
+    /** Records the path and tags of the entry for {@code response} in the index. */
+    private void indexEntry(String key, Response response) {
+        if (index == null) {
+            return;
+        }
+        List<String> tags = new ArrayList<>();
+        String header = response.header(TAGS_HEADER);
+        if (header != null) {
+            for (String tag : header.split(",")) {
+                tag = tag.trim();
+                if (!tag.isEmpty() && !tag.matches(".*\\s.*")) {
+                    tags.add(tag);
+                }
+            }
+        }
+        index.put(key, response.request().url().encodedPath(), tags);
+    }
 
+    /** Returns the key {@code request} is stored under, or null if it can't be cached. */
+    public String cacheKey(Request request) {
+        return requestToKey(request);
     }
 
     private String requestToKey(Request request) {
-        HttpUrl.Builder urlBuilder = request.url().newBuilder();
-        urlBuilder.removeAllQueryParameters("access_token");
-        return Utils.md5Hex(urlBuilder.build().toString());
+        return cacheKeyStrategy.key(request);
+    }
+
+    /**
+     * Returns the codec to store the body of {@code entry} with, or null to store it as is.
+     * {@code size} is the body's length, or -1 if it isn't known yet.
+     */
+    private BodyCodec codecFor(Entry entry, long size) {
+        if (bodyCodec == null
+                || (size >= 0 && size < BodyCodecs.MIN_ENCODED_SIZE)
+                || !BodyCodecs.isCompressible(entry.contentType(), entry.contentEncoding())) {
+            return null;
+        }
+        return bodyCodec;
+    }
+
+    /** Returns the decoded body of the entry in {@code snapshot}. */
+    private Source bodySource(Entry entry, DiskLruCache.Snapshot snapshot) throws IOException {
+        Source source = Okio.source(snapshot.getInputStream(ENTRY_BODY));
+        if (entry.bodyCodec == null) {
+            return source;
+        }
+        BodyCodec codec = BodyCodecs.forName(entry.bodyCodec, bodyCodec);
+        if (codec == null) {
+            source.close();
+            throw new IOException("unknown body codec " + entry.bodyCodec);
+        }
+        return codec.decode(source);
     }
 
     private boolean invalidatesCache(String method) {
@@ -193,24 +1054,44 @@ public class ZanLocalCache {
 
     private final class CacheRequestImpl implements CacheRequest {
         private final DiskLruCache.Editor editor;
+        private final String endpoint;
         private Sink cacheOut;
         private boolean done;
         private Sink body;
+        private long bytesWritten;
 
-        public CacheRequestImpl(final DiskLruCache.Editor editor) throws IOException {
+        public CacheRequestImpl(final DiskLruCache.Editor editor, BodyCodec codec, String endpoint)
+                throws IOException {
             this.editor = editor;
-            this.cacheOut = Okio.sink(editor.newOutputStream(ENTRY_BODY));
+            this.endpoint = endpoint;
+            Sink out = Okio.sink(editor.newOutputStream(ENTRY_BODY));
+            this.cacheOut = codec != null ? codec.encode(out) : out;
             this.body = new ForwardingSink(cacheOut) {
+                @Override public void write(Buffer source, long byteCount) throws IOException {
+                    super.write(source, byteCount);
+                    bytesWritten += byteCount;
+                }
+
                 @Override public void close() throws IOException {
                     synchronized (ZanLocalCache.this) {
                         if (done) {
                             return;
                         }
                         done = true;
-                        // writeSuccessCount++;
                     }
-                    super.close();
+                    try {
+                        super.close();
+                    } catch (IOException e) {
+                        editor.abort();
+                        if (listening) {
+                            eventListener.writeAbort(endpoint);
+                        }
+                        throw e;
+                    }
                     editor.commit();
+                    if (listening) {
+                        eventListener.writeSuccess(endpoint, bytesWritten, -1);
+                    }
                 }
             };
         }
@@ -221,13 +1102,15 @@ public class ZanLocalCache {
                     return;
                 }
                 done = true;
-                // writeAbortCount++;
             }
             Util.closeQuietly(cacheOut);
             try {
                 editor.abort();
             } catch (IOException ignored) {
             }
+            if (listening) {
+                eventListener.writeAbort(endpoint);
+            }
         }
 
         @Override public Sink body() {
@@ -235,7 +1118,117 @@ public class ZanLocalCache {
         }
     }
 
-    private static final class Entry {
+    /** Copies everything read from {@code source} into a cache entry. */
+    private static final class TeeSource implements Source {
+        private static final int DISCARD_TIMEOUT_MILLIS = 100;
+
+        private final BufferedSource source;
+        private final Entry entry;
+        private final CacheRequestImpl cacheRequest;
+        private final BufferedSink cacheBody;
+        private final Buffer prefix = new Buffer();
+        private final long prefixLimit;
+        private final CommitCheck check;
+        private final MessageDigest digest;
+        private final OutputStream digestOut;
+        private long bodyLength;
+        private boolean cacheRequestClosed;
+
+        TeeSource(BufferedSource source, Entry entry, CacheRequestImpl cacheRequest,
+                  long prefixLimit, CommitCheck check) {
+            this.source = source;
+            this.entry = entry;
+            this.cacheRequest = cacheRequest;
+            try {
+                this.digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+            // Feeds the digest straight from the buffer's segments.
+            this.digestOut = new DigestOutputStream(new OutputStream() {
+                @Override public void write(int b) {
+                }
+
+                @Override public void write(byte[] b, int off, int len) {
+                }
+            }, digest);
+            this.cacheBody = Okio.buffer(cacheRequest.body());
+            this.prefixLimit = prefixLimit;
+            this.check = check;
+        }
+
+        @Override public long read(Buffer sink, long byteCount) throws IOException {
+            long bytesRead;
+            try {
+                bytesRead = source.read(sink, byteCount);
+            } catch (IOException e) {
+                abortCacheRequest();
+                throw e;
+            }
+
+            if (bytesRead == -1) {
+                if (!cacheRequestClosed) {
+                    cacheRequestClosed = true;
+                    if (check.shouldCommit(prefix)) {
+                        try {
+                            // The hash is only known now, rewrite the metadata that carries it.
+                            entry.withContentHash(ByteString.of(digest.digest()).hex())
+                                    .withBody(entry.bodyCodec, bodyLength)
+                                    .writeTo(cacheRequest.editor);
+                            cacheBody.close(); // Commits the entry.
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            // Releases the key; a no-op if closing the body already aborted.
+                            cacheRequest.abort();
+                        }
+                    } else {
+                        cacheRequest.abort();
+                    }
+                }
+                return -1;
+            }
+
+            if (!cacheRequestClosed) {
+                long offset = sink.size() - bytesRead;
+                long prefixBytes = Math.min(bytesRead, prefixLimit - prefix.size());
+                if (prefixBytes > 0) {
+                    sink.copyTo(prefix, offset, prefixBytes);
+                }
+                bodyLength += bytesRead;
+                try {
+                    sink.copyTo(cacheBody.buffer(), offset, bytesRead);
+                    sink.copyTo(digestOut, offset, bytesRead);
+                    cacheBody.emitCompleteSegments();
+                } catch (IOException e) {
+                    // A failing cache must not fail the caller's read.
+                    abortCacheRequest();
+                }
+            }
+            return bytesRead;
+        }
+
+        @Override public Timeout timeout() {
+            return source.timeout();
+        }
+
+        @Override public void close() throws IOException {
+            // Converters often stop right after the last token, so try to read the (usually empty)
+            // rest of the body before giving up on a truncated entry.
+            if (!cacheRequestClosed && !Util.discard(this, DISCARD_TIMEOUT_MILLIS, MILLISECONDS)) {
+                abortCacheRequest();
+            }
+            source.close();
+        }
+
+        private void abortCacheRequest() {
+            if (!cacheRequestClosed) {
+                cacheRequestClosed = true;
+                cacheRequest.abort();
+            }
+        }
+    }
+
+    static final class Entry {
         /** Synthetic response header: the local time when the request was sent. */
         private static final String SENT_MILLIS = Platform.get().getPrefix() + "-Sent-Millis";
 
@@ -243,6 +1236,8 @@ public class ZanLocalCache {
         private static final String RECEIVED_MILLIS = Platform.get().getPrefix() + "-Received-Millis";
 
         private final String url;
+        /** The {@link CacheKeyStrategy#normalize normalized} request, often the same as url. */
+        private final String normalized;
         private final Headers varyHeaders;
         private final String requestMethod;
         private final Protocol protocol;
@@ -252,9 +1247,117 @@ public class ZanLocalCache {
         private final Handshake handshake;
         private final long sentRequestMillis;
         private final long receivedResponseMillis;
+        /** True if this entry was read from the text format and should be rewritten. */
+        private final boolean legacy;
+        /** The {@link BodyCodec#name()} the stored body is encoded with, or null. */
+        final String bodyCodec;
+        /** The decoded length of the stored body, or -1 if unknown. */
+        final long bodyLength;
+
+        private Entry(String url, String normalized, Headers varyHeaders, String requestMethod,
+                      Protocol protocol, int code, String message, Headers responseHeaders,
+                      Handshake handshake, long sentRequestMillis, long receivedResponseMillis,
+                      boolean legacy, String bodyCodec, long bodyLength) {
+            this.url = url;
+            this.normalized = normalized;
+            this.varyHeaders = varyHeaders;
+            this.requestMethod = requestMethod;
+            this.protocol = protocol;
+            this.code = code;
+            this.message = message;
+            this.responseHeaders = responseHeaders;
+            this.handshake = handshake;
+            this.sentRequestMillis = sentRequestMillis;
+            this.receivedResponseMillis = receivedResponseMillis;
+            this.legacy = legacy;
+            this.bodyCodec = bodyCodec;
+            this.bodyLength = bodyLength;
+        }
+
+        /**
+         * Reads an entry in either the binary format described in {@link BinaryMetadata}, which
+         * {@link #writeTo} writes, or the text format of entries written before it.
+         */
+        static Entry read(Source in) throws IOException {
+            try {
+                BufferedSource source = Okio.buffer(in);
+                return BinaryMetadata.isBinary(source) ? readBinary(source) : readText(source);
+            } finally {
+                in.close();
+            }
+        }
+
+        private static Entry readBinary(BufferedSource source) throws IOException {
+            int version = BinaryMetadata.readMagic(source);
+            String url = BinaryMetadata.readString(source);
+            String requestMethod = BinaryMetadata.readString(source);
+            Headers varyHeaders = readHeaders(source);
+            Protocol protocol = Protocol.get(BinaryMetadata.readString(source));
+            int code = BinaryMetadata.readVarint(source);
+            String message = BinaryMetadata.readString(source);
+            long sentRequestMillis = source.readLong();
+            long receivedResponseMillis = source.readLong();
+            Headers responseHeaders = readHeaders(source);
+
+            Handshake handshake = null;
+            if (source.readByte() != 0) {
+                CipherSuite cipherSuite = CipherSuite.forJavaName(BinaryMetadata.readString(source));
+                String tlsVersionString = BinaryMetadata.readString(source);
+                TlsVersion tlsVersion = !tlsVersionString.isEmpty()
+                        ? TlsVersion.forJavaName(tlsVersionString)
+                        : null;
+                List<Certificate> peerCertificates = readDerCertificates(source);
+                List<Certificate> localCertificates = readDerCertificates(source);
+                handshake = Handshake.get(tlsVersion, cipherSuite, peerCertificates, localCertificates);
+            }
+            String bodyCodec = null;
+            long bodyLength = -1;
+            if (version >= 2) {
+                bodyCodec = BinaryMetadata.readString(source);
+                if (bodyCodec.isEmpty()) {
+                    bodyCodec = null;
+                }
+                bodyLength = BinaryMetadata.readVarint(source) - 1L;
+            }
+            // Older entries are matched as if the default strategy, which normalizes to the url,
+            // stored them. Those of other strategies miss once and are replaced.
+            String normalized = url;
+            if (version >= 3) {
+                normalized = BinaryMetadata.readString(source);
+                if (normalized.isEmpty()) {
+                    normalized = url;
+                }
+            }
+            return new Entry(url, normalized, varyHeaders, requestMethod, protocol, code, message,
+                    responseHeaders, handshake, sentRequestMillis, receivedResponseMillis, false,
+                    bodyCodec, bodyLength);
+        }
+
+        private static Headers readHeaders(BufferedSource source) throws IOException {
+            int count = BinaryMetadata.readVarint(source);
+            String[] namesAndValues = new String[count * 2];
+            for (int i = 0; i < namesAndValues.length; i += 2) {
+                namesAndValues[i] = BinaryMetadata.readName(source);
+                namesAndValues[i + 1] = BinaryMetadata.readString(source);
+            }
+            return Headers.of(namesAndValues);
+        }
+
+        private static List<Certificate> readDerCertificates(BufferedSource source)
+                throws IOException {
+            int length = BinaryMetadata.readVarint(source);
+            if (length == 0) return Collections.emptyList();
+
+            List<Certificate> result = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) {
+                result.add(new LazyX509Certificate(ByteString.of(BinaryMetadata.readBytes(source))));
+            }
+            return result;
+        }
 
         /**
-         * Reads an entry from an input stream. A typical entry looks like this:
+         * Reads an entry from the text format used up to {@code VERSION = 201708}. A typical entry
+         * looks like this:
          * <pre>{@code
          *   http://google.com/foo
          *   GET
@@ -301,173 +1404,245 @@ public class ZanLocalCache {
          * base64-encoded and appear each on their own line. A length of -1 is used to encode a null
          * array. The last line is optional. If present, it contains the TLS version.
          */
-        public Entry(Source in) throws IOException {
-            try {
-                BufferedSource source = Okio.buffer(in);
-                url = source.readUtf8LineStrict();
-                requestMethod = source.readUtf8LineStrict();
-                Headers.Builder varyHeadersBuilder = new Headers.Builder();
-                int varyRequestHeaderLineCount = readInt(source);
-                for (int i = 0; i < varyRequestHeaderLineCount; i++) {
-                    varyHeadersBuilder.add(source.readUtf8LineStrict());
-                }
-                varyHeaders = varyHeadersBuilder.build();
-
-                StatusLine statusLine = StatusLine.parse(source.readUtf8LineStrict());
-                protocol = statusLine.protocol;
-                code = statusLine.code;
-                message = statusLine.message;
-                Headers.Builder responseHeadersBuilder = new Headers.Builder();
-                int responseHeaderLineCount = readInt(source);
-                for (int i = 0; i < responseHeaderLineCount; i++) {
-                    responseHeadersBuilder.add(source.readUtf8LineStrict());
-                }
-                String sendRequestMillisString = responseHeadersBuilder.get(SENT_MILLIS);
-                String receivedResponseMillisString = responseHeadersBuilder.get(RECEIVED_MILLIS);
-                responseHeadersBuilder.removeAll(SENT_MILLIS);
-                responseHeadersBuilder.removeAll(RECEIVED_MILLIS);
-                sentRequestMillis = sendRequestMillisString != null
-                        ? Long.parseLong(sendRequestMillisString)
-                        : 0L;
-                receivedResponseMillis = receivedResponseMillisString != null
-                        ? Long.parseLong(receivedResponseMillisString)
-                        : 0L;
-                responseHeaders = responseHeadersBuilder.build();
-
-                if (isHttps()) {
-                    String blank = source.readUtf8LineStrict();
-                    if (blank.length() > 0) {
-                        throw new IOException("expected \"\" but was \"" + blank + "\"");
-                    }
-                    String cipherSuiteString = source.readUtf8LineStrict();
-                    CipherSuite cipherSuite = CipherSuite.forJavaName(cipherSuiteString);
-                    List<Certificate> peerCertificates = readCertificateList(source);
-                    List<Certificate> localCertificates = readCertificateList(source);
-                    TlsVersion tlsVersion = !source.exhausted()
-                            ? TlsVersion.forJavaName(source.readUtf8LineStrict())
-                            : null;
-                    handshake = Handshake.get(tlsVersion, cipherSuite, peerCertificates, localCertificates);
-                } else {
-                    handshake = null;
+        private static Entry readText(BufferedSource source) throws IOException {
+            String url = source.readUtf8LineStrict();
+            String requestMethod = source.readUtf8LineStrict();
+            Headers.Builder varyHeadersBuilder = new Headers.Builder();
+            int varyRequestHeaderLineCount = readInt(source);
+            for (int i = 0; i < varyRequestHeaderLineCount; i++) {
+                varyHeadersBuilder.add(source.readUtf8LineStrict());
+            }
+            Headers varyHeaders = varyHeadersBuilder.build();
+
+            StatusLine statusLine = StatusLine.parse(source.readUtf8LineStrict());
+            Headers.Builder responseHeadersBuilder = new Headers.Builder();
+            int responseHeaderLineCount = readInt(source);
+            for (int i = 0; i < responseHeaderLineCount; i++) {
+                responseHeadersBuilder.add(source.readUtf8LineStrict());
+            }
+            String sendRequestMillisString = responseHeadersBuilder.get(SENT_MILLIS);
+            String receivedResponseMillisString = responseHeadersBuilder.get(RECEIVED_MILLIS);
+            responseHeadersBuilder.removeAll(SENT_MILLIS);
+            responseHeadersBuilder.removeAll(RECEIVED_MILLIS);
+            long sentRequestMillis = sendRequestMillisString != null
+                    ? Long.parseLong(sendRequestMillisString)
+                    : 0L;
+            long receivedResponseMillis = receivedResponseMillisString != null
+                    ? Long.parseLong(receivedResponseMillisString)
+                    : 0L;
+            Headers responseHeaders = responseHeadersBuilder.build();
+
+            Handshake handshake;
+            if (url.startsWith("https://")) {
+                String blank = source.readUtf8LineStrict();
+                if (blank.length() > 0) {
+                    throw new IOException("expected \"\" but was \"" + blank + "\"");
                 }
-            } finally {
-                in.close();
+                String cipherSuiteString = source.readUtf8LineStrict();
+                CipherSuite cipherSuite = CipherSuite.forJavaName(cipherSuiteString);
+                List<Certificate> peerCertificates = readCertificateList(source);
+                List<Certificate> localCertificates = readCertificateList(source);
+                TlsVersion tlsVersion = !source.exhausted()
+                        ? TlsVersion.forJavaName(source.readUtf8LineStrict())
+                        : null;
+                handshake = Handshake.get(tlsVersion, cipherSuite, peerCertificates, localCertificates);
+            } else {
+                handshake = null;
             }
+            return new Entry(url, url, varyHeaders, requestMethod, statusLine.protocol,
+                    statusLine.code, statusLine.message, responseHeaders, handshake,
+                    sentRequestMillis, receivedResponseMillis, true, null, -1);
+        }
+
+        private Entry(Entry entry, Headers responseHeaders, String bodyCodec, long bodyLength) {
+            this.url = entry.url;
+            this.normalized = entry.normalized;
+            this.varyHeaders = entry.varyHeaders;
+            this.requestMethod = entry.requestMethod;
+            this.protocol = entry.protocol;
+            this.code = entry.code;
+            this.message = entry.message;
+            this.responseHeaders = responseHeaders;
+            this.handshake = entry.handshake;
+            this.sentRequestMillis = entry.sentRequestMillis;
+            this.receivedResponseMillis = entry.receivedResponseMillis;
+            this.legacy = false;
+            this.bodyCodec = bodyCodec;
+            this.bodyLength = bodyLength;
+        }
+
+        Entry withContentHash(String contentHash) {
+            return new Entry(this, responseHeaders.newBuilder()
+                    .set(CONTENT_HASH_HEADER, contentHash)
+                    .build(), bodyCodec, bodyLength);
+        }
+
+        /** Returns this entry for a body stored with {@code bodyCodec}, which may be null. */
+        Entry withBody(String bodyCodec, long bodyLength) {
+            return new Entry(this, responseHeaders, bodyCodec, bodyLength);
         }
 
         public Entry(Response response) {
-            HttpUrl.Builder builder = response.request().url().newBuilder();
-            builder.removeAllQueryParameters("access_token");
-            this.url = builder.build().toString();
+            this(response, true);
+        }
+
+        Entry(Response response, boolean withCertificates) {
+            this(response, CacheKeys.normalizedUrl(response.request().url()), withCertificates);
+        }
+
+        Entry(Response response, String normalized, boolean withCertificates) {
+            this.url = CacheKeys.normalizedUrl(response.request().url());
+            this.normalized = normalized;
             this.varyHeaders = OkHeaders.varyHeaders(response);
             this.requestMethod = response.request().method();
             this.protocol = response.protocol();
             this.code = response.code();
             this.message = response.message();
             this.responseHeaders = response.headers();
-            this.handshake = response.handshake();
+            Handshake handshake = response.handshake();
+            this.handshake = handshake != null && !withCertificates
+                    ? Handshake.get(handshake.tlsVersion(), handshake.cipherSuite(),
+                            Collections.<Certificate>emptyList(),
+                            Collections.<Certificate>emptyList())
+                    : handshake;
             this.sentRequestMillis = response.sentRequestAtMillis();
             this.receivedResponseMillis = response.receivedResponseAtMillis();
+            this.legacy = false;
+            this.bodyCodec = null;
+            this.bodyLength = -1;
+        }
+
+        /** Returns true if this entry was read from the text format. */
+        boolean isLegacy() {
+            return legacy;
         }
 
         public void writeTo(DiskLruCache.Editor editor) throws IOException {
             BufferedSink sink = Okio.buffer(Okio.sink(editor.newOutputStream(ENTRY_METADATA)));
+            writeTo(sink);
+            sink.close();
+        }
 
-            sink.writeUtf8(url)
-                    .writeByte('\n');
-            sink.writeUtf8(requestMethod)
-                    .writeByte('\n');
-            sink.writeDecimalLong(varyHeaders.size())
-                    .writeByte('\n');
-            for (int i = 0, size = varyHeaders.size(); i < size; i++) {
-                sink.writeUtf8(varyHeaders.name(i))
-                        .writeUtf8(": ")
-                        .writeUtf8(varyHeaders.value(i))
-                        .writeByte('\n');
-            }
+        void writeTo(BufferedSink sink) throws IOException {
+            sink.write(BinaryMetadata.MAGIC);
+            BinaryMetadata.writeString(sink, url);
+            BinaryMetadata.writeString(sink, requestMethod);
+            writeHeaders(sink, varyHeaders);
+            BinaryMetadata.writeString(sink, protocol.toString());
+            BinaryMetadata.writeVarint(sink, code);
+            BinaryMetadata.writeString(sink, message);
+            sink.writeLong(sentRequestMillis);
+            sink.writeLong(receivedResponseMillis);
+            writeHeaders(sink, responseHeaders);
 
-            sink.writeUtf8(new StatusLine(protocol, code, message).toString())
-                    .writeByte('\n');
-            sink.writeDecimalLong(responseHeaders.size() + 2)
-                    .writeByte('\n');
-            for (int i = 0, size = responseHeaders.size(); i < size; i++) {
-                sink.writeUtf8(responseHeaders.name(i))
-                        .writeUtf8(": ")
-                        .writeUtf8(responseHeaders.value(i))
-                        .writeByte('\n');
-            }
-            sink.writeUtf8(SENT_MILLIS)
-                    .writeUtf8(": ")
-                    .writeDecimalLong(sentRequestMillis)
-                    .writeByte('\n');
-            sink.writeUtf8(RECEIVED_MILLIS)
-                    .writeUtf8(": ")
-                    .writeDecimalLong(receivedResponseMillis)
-                    .writeByte('\n');
-
-            if (isHttps()) {
-                sink.writeByte('\n');
-                sink.writeUtf8(handshake.cipherSuite().javaName())
-                        .writeByte('\n');
-                writeCertList(sink, handshake.peerCertificates());
-                writeCertList(sink, handshake.localCertificates());
+            if (handshake != null) {
+                sink.writeByte(1);
+                BinaryMetadata.writeString(sink, handshake.cipherSuite().javaName());
                 // The handshake’s TLS version is null on HttpsURLConnection and on older cached responses.
-                if (handshake.tlsVersion() != null) {
-                    sink.writeUtf8(handshake.tlsVersion().javaName())
-                            .writeByte('\n');
-                }
+                BinaryMetadata.writeString(sink, handshake.tlsVersion() != null
+                        ? handshake.tlsVersion().javaName()
+                        : "");
+                writeDerCertificates(sink, handshake.peerCertificates());
+                writeDerCertificates(sink, handshake.localCertificates());
+            } else {
+                sink.writeByte(0);
             }
-            sink.close();
+            BinaryMetadata.writeString(sink, bodyCodec != null ? bodyCodec : "");
+            BinaryMetadata.writeVarint(sink, bodyLength + 1);
+            BinaryMetadata.writeString(sink, normalized.equals(url) ? "" : normalized);
         }
 
-        private boolean isHttps() {
-            return url.startsWith("https://");
+        private static void writeHeaders(BufferedSink sink, Headers headers) throws IOException {
+            BinaryMetadata.writeVarint(sink, headers.size());
+            for (int i = 0, size = headers.size(); i < size; i++) {
+                BinaryMetadata.writeName(sink, headers.name(i));
+                BinaryMetadata.writeString(sink, headers.value(i));
+            }
         }
 
-        private List<Certificate> readCertificateList(BufferedSource source) throws IOException {
-            int length = readInt(source);
-            if (length == -1) return Collections.emptyList(); // OkHttp v1.2 used -1 to indicate null.
-
+        private static void writeDerCertificates(BufferedSink sink, List<Certificate> certificates)
+                throws IOException {
             try {
-                CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
-                List<Certificate> result = new ArrayList<>(length);
-                for (int i = 0; i < length; i++) {
-                    String line = source.readUtf8LineStrict();
-                    Buffer bytes = new Buffer();
-                    bytes.write(ByteString.decodeBase64(line));
-                    result.add(certificateFactory.generateCertificate(bytes.inputStream()));
+                BinaryMetadata.writeVarint(sink, certificates.size());
+                for (int i = 0, size = certificates.size(); i < size; i++) {
+                    BinaryMetadata.writeBytes(sink, certificates.get(i).getEncoded());
                 }
-                return result;
-            } catch (CertificateException e) {
+            } catch (CertificateEncodingException e) {
                 throw new IOException(e.getMessage());
             }
         }
 
-        private void writeCertList(BufferedSink sink, List<Certificate> certificates)
+        private static List<Certificate> readCertificateList(BufferedSource source)
                 throws IOException {
-            try {
-                sink.writeDecimalLong(certificates.size())
-                        .writeByte('\n');
-                for (int i = 0, size = certificates.size(); i < size; i++) {
-                    byte[] bytes = certificates.get(i).getEncoded();
-                    String line = ByteString.of(bytes).base64();
-                    sink.writeUtf8(line)
-                            .writeByte('\n');
+            int length = readInt(source);
+            if (length == -1) return Collections.emptyList(); // OkHttp v1.2 used -1 to indicate null.
+
+            List<Certificate> result = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) {
+                String line = source.readUtf8LineStrict();
+                ByteString bytes = ByteString.decodeBase64(line);
+                if (bytes == null) {
+                    throw new IOException("expected a base64 certificate but was \"" + line + "\"");
                 }
-            } catch (CertificateEncodingException e) {
-                throw new IOException(e.getMessage());
+                result.add(new LazyX509Certificate(bytes));
             }
+            return result;
         }
 
-        public boolean matches(Request request) {
-            return url.equals(request.url().toString())
-                    && requestMethod.equals(request.method());
-                    // && OkHeaders.varyMatches(response, varyHeaders, request);
+        /**
+         * Returns true if this entry can answer {@code request}, which the {@link CacheKeyStrategy}
+         * normalized to {@code normalized}. Volatile parameters like {@code access_token} may
+         * differ, but a request whose key only collides with this entry's doesn't match. With
+         * {@code matchVary}, the request headers named by the stored {@code Vary} header must
+         * also equal the ones this entry was fetched with.
+         */
+        boolean matches(Request request, String normalized, boolean matchVary) {
+            return this.normalized.equals(normalized)
+                    && requestMethod.equals(request.method())
+                    && (!matchVary || varyMatches(request));
+        }
+
+        private boolean varyMatches(Request request) {
+            for (String field : OkHeaders.varyFields(responseHeaders)) {
+                if (!varyHeaders.values(field).equals(request.headers(field))) return false;
+            }
+            return true;
         }
 
-        public Response response(DiskLruCache.Snapshot snapshot) {
-            String contentType = responseHeaders.get("Content-Type");
+        String contentType() {
+            return responseHeaders.get("Content-Type");
+        }
+
+        /** Returns the declared {@code Content-Length}, or -1. */
+        long contentLength() {
             String contentLength = responseHeaders.get("Content-Length");
+            try {
+                return contentLength != null ? Long.parseLong(contentLength) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        String contentEncoding() {
+            return responseHeaders.get("Content-Encoding");
+        }
+
+        /** Approximate heap footprint of this entry's metadata, used to weigh the memory tier. */
+        long weight() {
+            long weight = url.length() + requestMethod.length() + message.length();
+            if (!normalized.equals(url)) {
+                weight += normalized.length();
+            }
+            for (int i = 0, size = responseHeaders.size(); i < size; i++) {
+                weight += responseHeaders.name(i).length() + responseHeaders.value(i).length();
+            }
+            for (int i = 0, size = varyHeaders.size(); i < size; i++) {
+                weight += varyHeaders.name(i).length() + varyHeaders.value(i).length();
+            }
+            return weight * 2;
+        }
+
+        public Response response(ResponseBody body) {
             Request.Builder builder = new Request.Builder()
                     .url(url);
             if (requestMethod.equalsIgnoreCase("GET")) {
@@ -483,7 +1658,7 @@ public class ZanLocalCache {
                     .code(code)
                     .message(message)
                     .headers(responseHeaders)
-                    .body(new CacheResponseBody(snapshot, contentType, contentLength))
+                    .body(body)
                     .handshake(handshake)
                     .sentRequestAtMillis(sentRequestMillis)
                     .receivedResponseAtMillis(receivedResponseMillis)
@@ -516,19 +1691,19 @@ public class ZanLocalCache {
         }
     }
 
+    /** Streams a body from disk, decoding it while it is read. */
     private static class CacheResponseBody extends ResponseBody {
         private final DiskLruCache.Snapshot snapshot;
         private final BufferedSource bodySource;
         private final String contentType;
-        private final String contentLength;
+        private final long contentLength;
 
-        public CacheResponseBody(final DiskLruCache.Snapshot snapshot,
-                                 String contentType, String contentLength) {
+        public CacheResponseBody(final DiskLruCache.Snapshot snapshot, Source source,
+                                 String contentType, long contentLength) {
             this.snapshot = snapshot;
             this.contentType = contentType;
             this.contentLength = contentLength;
 
-            Source source = Okio.source(snapshot.getInputStream(ENTRY_BODY));
             bodySource = Okio.buffer(new ForwardingSource(source) {
                 @Override public void close() throws IOException {
                     snapshot.close();
@@ -542,11 +1717,7 @@ public class ZanLocalCache {
         }
 
         @Override public long contentLength() {
-            try {
-                return contentLength != null ? Long.parseLong(contentLength) : -1;
-            } catch (NumberFormatException e) {
-                return -1;
-            }
+            return contentLength;
         }
 
         @Override public BufferedSource source() {
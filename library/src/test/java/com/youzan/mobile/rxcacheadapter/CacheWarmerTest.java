@@ -0,0 +1,87 @@
+package com.youzan.mobile.rxcacheadapter;
+
+import com.youzan.mobile.rxcacheadapter.cache.ZanLocalCache;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+import rx.Observable;
+
+import static org.junit.Assert.assertEquals;
+
+public class CacheWarmerTest {
+    interface HomeService {
+        @ZanWarmUp
+        @GET("home/banners")
+        Observable<ResponseBody> banners();
+
+        @ZanWarmUp
+        @GET("home/feed")
+        Observable<retrofit2.Response<ResponseBody>> feed();
+
+        @GET("home/search")
+        Observable<ResponseBody> search();
+    }
+
+    private final Retrofit retrofit = new Retrofit.Builder()
+            .baseUrl("http://localhost/")
+            .addCallAdapterFactory(ZanRxJavaCallAdapterFactory.create())
+            .build();
+
+    @Test public void warmRequestsAreTheAnnotatedMethods() {
+        List<Request> requests = CacheWarmer.warmRequests(retrofit, HomeService.class);
+        Set<String> urls = new HashSet<>();
+        for (Request request : requests) {
+            urls.add(request.url().toString());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("http://localhost/home/banners",
+                "http://localhost/home/feed")), urls);
+    }
+
+    @Test public void warmUpLoadsEntriesIntoMemory() throws Exception {
+        File dir = File.createTempFile("zan-warm", "");
+        dir.delete();
+        ZanLocalCache written = new ZanLocalCache.Builder(dir).build();
+        for (Request request : CacheWarmer.warmRequests(retrofit, HomeService.class)) {
+            written.put(response(request, "cached"));
+        }
+        written.close();
+        ZanLocalCache cache = new ZanLocalCache.Builder(dir).build();
+
+        int loaded = CacheWarmer.warmUp(cache, retrofit, HomeService.class)
+                .toBlocking()
+                .single();
+        assertEquals(2, loaded);
+
+        int diskHits = cache.diskHitCount();
+        Request banners = new Request.Builder().url("http://localhost/home/banners").build();
+        assertEquals("cached", cache.get(banners).body().string());
+        assertEquals(diskHits, cache.diskHitCount());
+        cache.close();
+    }
+
+    private static Response response(Request request, String body) {
+        Response networkResponse = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .build();
+        return networkResponse.newBuilder()
+                .networkResponse(networkResponse)
+                .body(ResponseBody.create(MediaType.parse("text/plain"), body))
+                .build();
+    }
+}
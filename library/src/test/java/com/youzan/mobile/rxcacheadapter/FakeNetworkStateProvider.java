@@ -0,0 +1,16 @@
+package com.youzan.mobile.rxcacheadapter;
+
+/** A connection class that tests set directly. */
+final class FakeNetworkStateProvider implements NetworkStateProvider {
+    volatile int state;
+    int readCount;
+
+    FakeNetworkStateProvider(int state) {
+        this.state = state;
+    }
+
+    @Override public int getState() {
+        readCount++;
+        return state;
+    }
+}
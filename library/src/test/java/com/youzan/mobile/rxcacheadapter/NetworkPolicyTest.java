@@ -0,0 +1,61 @@
+package com.youzan.mobile.rxcacheadapter;
+
+import org.junit.Test;
+
+import okhttp3.Headers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkPolicyTest {
+    private static final long NOW = 1000000000L;
+
+    @Test public void defaultPolicyChangesNothing() {
+        ZanCacheControl control = control("cache-before, max-age=60");
+        for (int state = NetworkUtils.NETWORK_NONE; state <= NetworkUtils.NETWORK_MOBILE; state++) {
+            assertFalse(NetworkPolicy.DEFAULT.skipsNetwork(state));
+            assertEquals(ZanCacheControl.EXPIRED,
+                    NetworkPolicy.DEFAULT.freshness(control, state, NOW - 90000, NOW));
+        }
+    }
+
+    @Test public void cacheOnlyBelowThreshold() {
+        NetworkPolicy policy = new NetworkPolicy.Builder()
+                .cacheOnlyBelow(NetworkUtils.NETWORK_4G)
+                .build();
+        assertTrue(policy.skipsNetwork(NetworkUtils.NETWORK_NONE));
+        assertTrue(policy.skipsNetwork(NetworkUtils.NETWORK_2G));
+        assertTrue(policy.skipsNetwork(NetworkUtils.NETWORK_3G));
+        assertFalse(policy.skipsNetwork(NetworkUtils.NETWORK_4G));
+        assertFalse(policy.skipsNetwork(NetworkUtils.NETWORK_MOBILE));
+        assertFalse(policy.skipsNetwork(NetworkUtils.NETWORK_WIFI));
+    }
+
+    @Test public void staleIsRevalidatedOn2G() {
+        NetworkPolicy policy = new NetworkPolicy.Builder().serveStaleOn2G(true).build();
+        assertEquals(ZanCacheControl.STALE_WHILE_REVALIDATE, policy.freshness(
+                control("cache-before"), NetworkUtils.NETWORK_2G, NOW, NOW));
+        assertEquals(ZanCacheControl.STALE_WHILE_REVALIDATE, policy.freshness(
+                control("cache-before, max-age=60"), NetworkUtils.NETWORK_2G, NOW - 90000, NOW));
+        assertEquals(ZanCacheControl.FRESH, policy.freshness(
+                control("cache-before, max-age=60"), NetworkUtils.NETWORK_2G, NOW - 30000, NOW));
+        assertEquals(ZanCacheControl.STALE, policy.freshness(
+                control("cache-before"), NetworkUtils.NETWORK_3G, NOW, NOW));
+    }
+
+    @Test public void maxAgeIsScaledOn3G() {
+        NetworkPolicy policy = new NetworkPolicy.Builder().maxAgeFactorOn3G(1.5f).build();
+        ZanCacheControl control = control("cache-before, max-age=60");
+        assertEquals(ZanCacheControl.FRESH,
+                policy.freshness(control, NetworkUtils.NETWORK_3G, NOW - 90000, NOW));
+        assertEquals(ZanCacheControl.EXPIRED,
+                policy.freshness(control, NetworkUtils.NETWORK_3G, NOW - 91000, NOW));
+        assertEquals(ZanCacheControl.EXPIRED,
+                policy.freshness(control, NetworkUtils.NETWORK_4G, NOW - 90000, NOW));
+    }
+
+    private static ZanCacheControl control(String value) {
+        return ZanCacheControl.parse(Headers.of(ZanCacheControl.CACHE_HEADER, value));
+    }
+}
@@ -0,0 +1,102 @@
+package com.youzan.mobile.rxcacheadapter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static org.junit.Assert.assertEquals;
+
+public class PrefetcherTest {
+    private final List<Request> fetched = new ArrayList<>();
+    private final OkHttpClient client = new OkHttpClient.Builder()
+            .addInterceptor(new Interceptor() {
+                @Override public Response intercept(Chain chain) throws IOException {
+                    synchronized (fetched) {
+                        fetched.add(chain.request());
+                    }
+                    if (chain.request().url().encodedPath().equals("/failing")) {
+                        throw new IllegalStateException("interceptor bug");
+                    }
+                    return new Response.Builder()
+                            .request(chain.request())
+                            .protocol(Protocol.HTTP_1_1)
+                            .code(200)
+                            .message("OK")
+                            .body(ResponseBody.create(MediaType.parse("text/plain"), "body"))
+                            .build();
+                }
+            })
+            .build();
+
+    @Test public void waitsForCondition() {
+        FakeNetworkStateProvider networkState =
+                new FakeNetworkStateProvider(NetworkUtils.NETWORK_4G);
+        final Prefetcher.Condition unmetered = Prefetcher.unmetered(networkState);
+        final Thread testThread = Thread.currentThread();
+        Prefetcher prefetcher = new Prefetcher.Builder(client)
+                .condition(new Prefetcher.Condition() {
+                    // Keeps the background run from racing the runs of this test.
+                    @Override public boolean canPrefetch() {
+                        return Thread.currentThread() == testThread && unmetered.canPrefetch();
+                    }
+                })
+                .build();
+        prefetcher.prefetch(Arrays.asList(request("http://localhost/a"),
+                request("http://localhost/b"), request("http://localhost/a")));
+        assertEquals(2, prefetcher.pendingCount());
+        assertEquals(0, prefetcher.runPending());
+
+        networkState.state = NetworkUtils.NETWORK_WIFI;
+        assertEquals(2, prefetcher.runPending());
+        assertEquals(0, prefetcher.pendingCount());
+        assertEquals(2, fetched.size());
+        assertEquals("http://localhost/a", fetched.get(0).url().toString());
+        assertEquals("refresh_cache", fetched.get(0).header(ZanCacheControl.CACHE_HEADER));
+        prefetcher.shutdown();
+    }
+
+    @Test public void runsInBackground() throws InterruptedException {
+        Prefetcher prefetcher = new Prefetcher.Builder(client).build();
+        prefetcher.prefetch(request("http://localhost/background"));
+        for (int i = 0; i < 100 && prefetcher.pendingCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, prefetcher.pendingCount());
+        prefetcher.shutdown();
+    }
+
+    @Test public void failingRequestDoesNotStopPrefetching() throws InterruptedException {
+        Prefetcher prefetcher = new Prefetcher.Builder(client).build();
+        prefetcher.prefetch(request("http://localhost/failing"));
+        awaitFetched(1);
+        prefetcher.prefetch(request("http://localhost/after-failing"));
+        awaitFetched(2);
+        assertEquals("http://localhost/after-failing", fetched.get(1).url().toString());
+        assertEquals(0, prefetcher.pendingCount());
+        prefetcher.shutdown();
+    }
+
+    private void awaitFetched(int count) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            synchronized (fetched) {
+                if (fetched.size() >= count) return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static Request request(String url) {
+        return new Request.Builder().url(url).build();
+    }
+}
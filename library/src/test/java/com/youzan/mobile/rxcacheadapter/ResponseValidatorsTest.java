@@ -0,0 +1,62 @@
+package com.youzan.mobile.rxcacheadapter;
+
+import com.youzan.mobile.rxcacheadapter.ZanCacheInterceptor.ResponseValidator;
+
+import org.junit.Test;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseValidatorsTest {
+    private final ResponseValidator codeZero = ResponseValidators.jsonField("code", "0");
+
+    @Test public void jsonFieldMatchesTopLevelField() {
+        assertTrue(validate(codeZero, "{\"code\":0,\"data\":[1,2]}"));
+        assertTrue(validate(codeZero, " {\n \"data\" : {\"a\":1} , \"code\" : 0 }"));
+        assertFalse(validate(codeZero, "{\"code\":10}"));
+        assertFalse(validate(codeZero, "{\"code\":1}"));
+        assertFalse(validate(codeZero, "[{\"code\":0}]"));
+    }
+
+    @Test public void jsonFieldIgnoresNestedAndQuotedFields() {
+        assertFalse(validate(codeZero, "{\"data\":{\"code\":0},\"code\":1}"));
+        assertFalse(validate(codeZero, "{\"msg\":\"\\\"code\\\":0\",\"code\":2}"));
+        assertTrue(validate(codeZero, "{\"msg\":\"a,\\\"code\\\":1\",\"code\":0}"));
+        assertFalse(validate(codeZero, "{\"data\":[\"code\",0],\"code\":3}"));
+    }
+
+    @Test public void jsonFieldComparesStringValues() {
+        ResponseValidator ok = ResponseValidators.jsonField("status", "\"ok\"");
+        assertTrue(validate(ok, "{\"status\":\"ok\"}"));
+        assertFalse(validate(ok, "{\"status\":\"okay\"}"));
+        assertFalse(validate(ok, "{\"status\":0}"));
+    }
+
+    @Test public void jsonFieldStopsAtScanLimit() {
+        ResponseValidator limited = ResponseValidators.jsonField("code", "0", 16);
+        assertTrue(validate(limited, "{\"code\":0,\"data\":\"abcdefghijklmnop\"}"));
+        assertFalse(validate(limited, "{\"data\":\"abcdefghijklmnop\",\"code\":0}"));
+    }
+
+    @Test public void allOfRunsEveryValidatorOnWholeBody() {
+        ResponseValidator both = ResponseValidators.allOf(ResponseValidators.httpSuccess(),
+                codeZero, ResponseValidators.jsonField("ok", "true"));
+        assertTrue(validate(both, "{\"code\":0,\"ok\":true}"));
+        assertFalse(validate(both, "{\"code\":0,\"ok\":false}"));
+    }
+
+    private static boolean validate(ResponseValidator validator, String body) {
+        Response response = new Response.Builder()
+                .request(new Request.Builder().url("http://localhost/").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .build();
+        return validator.isResponseAvailable(response, new Buffer().writeUtf8(body));
+    }
+}
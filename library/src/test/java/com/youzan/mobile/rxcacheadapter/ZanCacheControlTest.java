@@ -0,0 +1,82 @@
+package com.youzan.mobile.rxcacheadapter;
+
+import org.junit.Test;
+
+import okhttp3.Headers;
+
+import static com.youzan.mobile.rxcacheadapter.ZanCache.Policy.CACHE_BEFORE;
+import static com.youzan.mobile.rxcacheadapter.ZanCache.Policy.ONLY_IF_CACHED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ZanCacheControlTest {
+    interface Service {
+        @ZanCache(policy = CACHE_BEFORE, maxAge = 300, staleWhileRevalidate = 60)
+        void cacheBefore();
+
+        @ZanCache(policy = ONLY_IF_CACHED)
+        void onlyIfCached();
+
+        void plain();
+    }
+
+    @Test public void annotationIsResolved() throws Exception {
+        ZanCacheControl control = annotated("cacheBefore");
+        assertTrue(control.cacheBefore());
+        assertTrue(control.isWriteCacheOpen());
+        assertEquals(300, control.maxAgeSeconds());
+        assertEquals(60, control.staleWhileRevalidateSeconds());
+        assertEquals("cache-before, max-age=300, stale-while-revalidate=60", control.headerValue);
+
+        control = annotated("onlyIfCached");
+        assertTrue(control.onlyIfCached());
+        assertFalse(control.isWriteCacheOpen());
+        assertEquals(-1, control.maxAgeSeconds());
+
+        assertNull(annotated("plain"));
+    }
+
+    @Test public void headerOverridesAnnotation() throws Exception {
+        ZanCacheControl annotated = annotated("cacheBefore");
+        assertSame(annotated, ZanCacheControl.forRequest(Headers.of(), annotated));
+
+        ZanCacheControl control = ZanCacheControl.forRequest(
+                Headers.of(ZanCacheControl.CACHE_HEADER, "refresh_cache"), annotated);
+        assertTrue(control.refreshCache());
+        assertFalse(control.cacheBefore());
+    }
+
+    @Test public void repeatedHeaderValueIsParsedOnce() {
+        Headers headers = Headers.of(ZanCacheControl.CACHE_HEADER, "cache-before, max-age=60");
+        ZanCacheControl first = ZanCacheControl.parse(headers);
+        assertEquals(60, first.maxAgeSeconds());
+        assertSame(first, ZanCacheControl.parse(
+                Headers.of(ZanCacheControl.CACHE_HEADER, "cache-before, max-age=60")));
+    }
+
+    @Test public void onlyCacheHeaderIsParsed() {
+        ZanCacheControl control = ZanCacheControl.parse(
+                Headers.of("Cache-Control", "max-age=60, only-if-cached"));
+        assertEquals(-1, control.maxAgeSeconds());
+        assertFalse(control.onlyIfCached());
+        assertNull(control.headerValue);
+    }
+
+    @Test public void multipleHeadersAreCombined() {
+        ZanCacheControl control = ZanCacheControl.parse(new Headers.Builder()
+                .add(ZanCacheControl.CACHE_HEADER, "cache-before")
+                .add(ZanCacheControl.CACHE_HEADER, "max-age=30")
+                .build());
+        assertTrue(control.cacheBefore());
+        assertEquals(30, control.maxAgeSeconds());
+        assertNull(control.headerValue);
+    }
+
+    private static ZanCacheControl annotated(String name) throws NoSuchMethodException {
+        return ZanCacheControl.fromAnnotations(
+                Service.class.getDeclaredMethod(name).getAnnotations());
+    }
+}
@@ -0,0 +1,155 @@
+package com.youzan.mobile.rxcacheadapter;
+
+import com.youzan.mobile.rxcacheadapter.cache.CacheStats;
+import com.youzan.mobile.rxcacheadapter.cache.ZanLocalCache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import okhttp3.Connection;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static com.youzan.mobile.rxcacheadapter.cache.CacheEventListener.TIER_MEMORY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ZanCacheInterceptorTest {
+    private static final MediaType TEXT = MediaType.parse("text/plain");
+
+    private final CacheStats stats = new CacheStats();
+    private ZanLocalCache cache;
+    private final FakeNetworkStateProvider networkState =
+            new FakeNetworkStateProvider(NetworkUtils.NETWORK_WIFI);
+    private ZanCacheInterceptor interceptor;
+
+    @Before public void setUp() throws IOException {
+        File dir = File.createTempFile("zan-interceptor", "");
+        dir.delete();
+        cache = new ZanLocalCache.Builder(dir).eventListener(stats).build();
+        interceptor = new ZanCacheInterceptor(networkState, cache,
+                ResponseValidators.httpSuccess(), false);
+    }
+
+    @Test public void cacheBeforeResponseIsStored() throws IOException {
+        Request request = request("http://localhost/stored");
+        assertEquals("network", interceptor.intercept(new FakeChain(request)).body().string());
+        assertNotNull(cache.get(request));
+        assertEquals(1, networkState.readCount);
+    }
+
+    @Test public void nothingIsStoredWithoutNetwork() throws IOException {
+        networkState.state = NetworkUtils.NETWORK_NONE;
+        Request request = request("http://localhost/offline");
+        interceptor.intercept(new FakeChain(request)).body().close();
+        assertNull(cache.get(request));
+
+        networkState.state = NetworkUtils.NETWORK_4G;
+        interceptor.intercept(new FakeChain(request)).body().close();
+        assertNotNull(cache.get(request));
+    }
+
+    @Test public void tagsMoveFromRequestToCachedResponse() throws IOException {
+        Request request = request("http://localhost/tagged").newBuilder()
+                .header(ZanLocalCache.TAGS_HEADER, "items")
+                .build();
+        FakeChain chain = new FakeChain(request);
+        interceptor.intercept(chain).body().close();
+        assertNull(chain.proceeded.header(ZanLocalCache.TAGS_HEADER));
+
+        assertEquals(1, cache.invalidateByTag("items"));
+        assertNull(cache.get(request));
+
+        // Not sent to the server when nothing is stored either.
+        networkState.state = NetworkUtils.NETWORK_NONE;
+        chain = new FakeChain(request);
+        interceptor.intercept(chain).body().close();
+        assertNull(chain.proceeded.header(ZanLocalCache.TAGS_HEADER));
+    }
+
+    @Test public void validatorsAreReadWithoutCountingAHit() throws IOException {
+        Request request = request("http://localhost/validated");
+        interceptor.intercept(new FakeChain(request)).body().close();
+
+        // A changed body: the lookup of the validators is neither a hit nor a miss.
+        FakeChain chain = new FakeChain(request);
+        interceptor.intercept(chain).body().close();
+        assertEquals("v1", chain.proceeded.header("If-None-Match"));
+        CacheStats.Endpoint endpoint = stats.get("/validated");
+        assertEquals(0, endpoint.hitCount(TIER_MEMORY) + endpoint.missCount());
+        assertEquals(0, cache.memoryHitCount() + cache.memoryMissCount());
+
+        // Serving the stored body after a 304 is one hit.
+        chain = new FakeChain(request);
+        chain.notModified = true;
+        assertEquals("network", interceptor.intercept(chain).body().string());
+        endpoint = stats.get("/validated");
+        assertEquals(1, endpoint.hitCount(TIER_MEMORY));
+        assertEquals(0, endpoint.missCount());
+        assertEquals(1, cache.memoryHitCount());
+    }
+
+    @Test public void requestPolicyAppliesToEveryIntercept() throws IOException {
+        Request request = new Request.Builder().url("http://localhost/annotated").build();
+        ZanCacheControl.setRequestPolicy(request, ZanCacheControl.createCacheBefore());
+        interceptor.intercept(new FakeChain(request)).body().close();
+
+        // Not used up by the first intercept, a retry or a second interceptor sees it as well.
+        FakeChain chain = new FakeChain(request);
+        interceptor.intercept(chain).body().close();
+        assertEquals("v1", chain.proceeded.header("If-None-Match"));
+    }
+
+    private static Request request(String url) {
+        return new Request.Builder()
+                .url(url)
+                .header(ZanCacheControl.CACHE_HEADER, "cache-before")
+                .build();
+    }
+
+    /**
+     * Answers every request with a 200 "network" body tagged {@code ETag: v1}, or with a 304 to
+     * conditional requests if {@link #notModified} is set.
+     */
+    static final class FakeChain implements Interceptor.Chain {
+        private final Request request;
+        Request proceeded;
+        boolean notModified;
+
+        FakeChain(Request request) {
+            this.request = request;
+        }
+
+        @Override public Request request() {
+            return request;
+        }
+
+        @Override public Response proceed(Request request) {
+            proceeded = request;
+            boolean conditional = notModified && request.header("If-None-Match") != null;
+            Response networkResponse = new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(conditional ? 304 : 200)
+                    .message(conditional ? "Not Modified" : "OK")
+                    .header("ETag", "v1")
+                    .build();
+            return networkResponse.newBuilder()
+                    .networkResponse(networkResponse)
+                    .body(ResponseBody.create(TEXT, conditional ? "" : "network"))
+                    .build();
+        }
+
+        @Override public Connection connection() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,584 @@
+package com.youzan.mobile.rxcacheadapter;
+
+import com.youzan.mobile.rxcacheadapter.cache.CacheEventListener;
+import com.youzan.mobile.rxcacheadapter.cache.CacheStats;
+import com.youzan.mobile.rxcacheadapter.cache.ZanLocalCache;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import okio.ByteString;
+import retrofit2.Call;
+import retrofit2.CallAdapter;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+import rx.Observable;
+import rx.Single;
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
+
+import static com.youzan.mobile.rxcacheadapter.ZanCache.Policy.CACHE_BEFORE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZanRxJavaCallAdapterFactoryTest {
+    private static final MediaType TEXT = MediaType.parse("text/plain");
+
+    interface Service {
+        Observable<Response<ResponseBody>> get();
+
+        Observable<ResponseBody> body();
+
+        Observable<Result<ResponseBody>> result();
+
+        Single<ResponseBody> single();
+
+        @ZanCache(policy = CACHE_BEFORE, maxAge = 60)
+        Observable<ResponseBody> annotated();
+
+        @GET("image/avatar")
+        Observable<Response<ResponseBody>> image();
+
+        @GET("user/me")
+        Observable<Response<ResponseBody>> user();
+
+        Observable<Response<String>> text();
+    }
+
+    private final Retrofit retrofit = new Retrofit.Builder()
+            .baseUrl("http://localhost/")
+            .build();
+
+    @BeforeClass public static void setUpCache() throws IOException {
+        File dir = File.createTempFile("zan-cache", "");
+        dir.delete();
+        ZanLocalCache.init(dir.getAbsolutePath());
+    }
+
+    @Test public void adaptDefersRequestAndCacheLookup() throws Exception {
+        FakeCall call = new FakeCall(request("http://localhost/deferred", "cache-before"));
+        Observable<?> observable = adapter().adapt(call);
+        assertEquals(0, call.requestCount);
+
+        TestSubscriber<Object> subscriber = new TestSubscriber<>();
+        observable.subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        assertEquals(1, call.requestCount);
+    }
+
+    @Test public void cacheBeforeEmitsCacheThenNetwork() throws Exception {
+        Request request = request("http://localhost/before", "cache-before");
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached"));
+
+        List<String> bodies = bodies(adapter().adapt(new FakeCall(request)));
+        assertEquals(2, bodies.size());
+        assertEquals("cached", bodies.get(0));
+        assertEquals("network", bodies.get(1));
+    }
+
+    @Test public void onlyIfCachedFallsBackToNetworkOnMiss() throws Exception {
+        Request request = request("http://localhost/miss", "only-if-cached");
+
+        List<String> bodies = bodies(adapter().adapt(new FakeCall(request)));
+        assertEquals(1, bodies.size());
+        assertEquals("network", bodies.get(0));
+    }
+
+    /** adapt() runs on the caller's thread, so it must not touch the cache, however large. */
+    @Test public void adaptDoesNotReadCachedPayload() throws Exception {
+        StringBuilder payload = new StringBuilder();
+        while (payload.length() < 512 * 1024) {
+            payload.append("{\"code\":0,\"data\":\"abcdefghijklmnopqrstuvwxyz\"},");
+        }
+        File dir = File.createTempFile("zan-cache", "");
+        dir.delete();
+        CacheStats stats = new CacheStats();
+        ZanLocalCache own = new ZanLocalCache.Builder(dir).eventListener(stats).build();
+        Request request = request("http://localhost/large", "cache-before");
+        own.put(rawResponse(request, payload.toString()));
+        own.flush();
+
+        CallAdapter<Observable<?>> adapter = adapter(new ZanRxJavaCallAdapterFactory.Builder()
+                .cacheScheduler(Schedulers.immediate())
+                .cache(own)
+                .build());
+        FakeCall call = new FakeCall(request);
+        Observable<?> observable = null;
+        for (int i = 0; i < 100; i++) {
+            observable = adapter.adapt(call);
+        }
+        CacheStats.Endpoint large = stats.get("/large");
+        assertEquals(0, large.missCount() + large.hitCount(CacheEventListener.TIER_MEMORY)
+                + large.hitCount(CacheEventListener.TIER_DISK));
+        assertEquals(0, large.parseTimes().count());
+        assertEquals(0, call.requestCount);
+
+        // The lookup happens on subscription.
+        assertEquals(Arrays.asList(payload.toString(), "network"), bodies(observable));
+        assertEquals(1, stats.get("/large").hitCount(CacheEventListener.TIER_MEMORY));
+        own.close();
+    }
+
+    @Test public void freshEntryIsServedWithoutNetwork() throws Exception {
+        Request request = request("http://localhost/fresh", "cache-before, max-age=60");
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached"));
+
+        FakeCall call = new FakeCall(request);
+        assertEquals(Arrays.asList("cached"), bodies(adapter().adapt(call)));
+        assertEquals(0, call.executeCount.get());
+    }
+
+    @Test public void staleEntryIsServedAndRevalidated() throws Exception {
+        Request request = request("http://localhost/stale",
+                "cache-before, max-age=60, stale-while-revalidate=60");
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached",
+                System.currentTimeMillis() - 90 * 1000));
+
+        FakeCall call = new FakeCall(request);
+        assertEquals(Arrays.asList("cached"), bodies(adapter().adapt(call)));
+        assertEquals(1, call.executeCount.get());
+    }
+
+    @Test public void expiredEntryGoesToNetwork() throws Exception {
+        Request request = request("http://localhost/expired",
+                "cache-before, max-age=60, stale-while-revalidate=60");
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached",
+                System.currentTimeMillis() - 150 * 1000));
+
+        FakeCall call = new FakeCall(request);
+        assertEquals(Arrays.asList("network"), bodies(adapter().adapt(call)));
+        assertEquals(1, call.executeCount.get());
+    }
+
+    @Test public void notModifiedNetworkResponseIsNotEmittedAgain() throws Exception {
+        final Request request = request("http://localhost/not-modified", "cache-before");
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached"));
+
+        FakeCall call = new FakeCall(request) {
+            @Override public Response<ResponseBody> execute() throws IOException {
+                okhttp3.Response notModified = new okhttp3.Response.Builder()
+                        .request(request)
+                        .protocol(Protocol.HTTP_1_1)
+                        .code(304)
+                        .message("Not Modified")
+                        .build();
+                return Response.success(ResponseBody.create(TEXT, "cached"),
+                        rawResponse(request, "").newBuilder()
+                                .body(null)
+                                .networkResponse(notModified)
+                                .build());
+            }
+        };
+        assertEquals(Arrays.asList("cached"), bodies(adapter().adapt(call)));
+    }
+
+    @Test public void unchangedNetworkResponseIsFlaggedOrDropped() throws Exception {
+        final Request request = request("http://localhost/unchanged", "cache-before");
+        ZanLocalCache.getInstance().put(rawResponse(request, "same"));
+
+        FakeCall call = new FakeCall(request) {
+            @Override public Response<ResponseBody> execute() throws IOException {
+                return Response.success(ResponseBody.create(TEXT, "same"),
+                        rawResponse(request, "").newBuilder()
+                                .body(null)
+                                .header(ZanLocalCache.CONTENT_HASH_HEADER,
+                                        ByteString.encodeUtf8("same").md5().hex())
+                                .build());
+            }
+        };
+        TestSubscriber<Response<ResponseBody>> subscriber = new TestSubscriber<>();
+        subscribe(adapter().adapt(call), subscriber);
+        subscriber.awaitTerminalEvent();
+        subscriber.assertValueCount(2);
+        assertFalse(ZanCacheControl.isUnchanged(subscriber.getOnNextEvents().get(0)));
+        assertTrue(ZanCacheControl.isUnchanged(subscriber.getOnNextEvents().get(1)));
+
+        CallAdapter<Observable<?>> dropping = adapter(new ZanRxJavaCallAdapterFactory.Builder()
+                .cacheScheduler(Schedulers.immediate())
+                .dropUnchanged(true)
+                .build());
+        assertEquals(Arrays.asList("same"), bodies(dropping.adapt(call)));
+    }
+
+    @Test public void factoryReadsItsOwnCache() throws Exception {
+        File dir = File.createTempFile("zan-cache", "");
+        dir.delete();
+        ZanLocalCache own = new ZanLocalCache.Builder(dir).build();
+        Request request = request("http://localhost/own", "only-if-cached");
+        own.put(rawResponse(request, "own"));
+
+        CallAdapter<Observable<?>> adapter = adapter(new ZanRxJavaCallAdapterFactory.Builder()
+                .cacheScheduler(Schedulers.immediate())
+                .cache(own)
+                .build());
+        assertEquals(Arrays.asList("own"), bodies(adapter.adapt(new FakeCall(request))));
+        assertEquals(Arrays.asList("network"), bodies(adapter().adapt(new FakeCall(request))));
+        own.close();
+    }
+
+    @Test public void eventsAreGroupedByUrlTemplate() throws Exception {
+        File dir = File.createTempFile("zan-cache", "");
+        dir.delete();
+        CacheStats stats = new CacheStats();
+        ZanLocalCache own = new ZanLocalCache.Builder(dir).eventListener(stats).build();
+        Request request = request("http://localhost/user/me", "cache-before");
+        own.put(rawResponse(request, "cached"));
+        ZanRxJavaCallAdapterFactory factory = new ZanRxJavaCallAdapterFactory.Builder()
+                .cacheScheduler(Schedulers.immediate())
+                .cache(own)
+                .build();
+
+        List<String> bodies = bodies(this.<Observable<Response<ResponseBody>>>adapt(
+                factory, "user", new FakeCall(request)));
+        assertEquals(Arrays.asList("cached", "network"), bodies);
+        CacheStats.Endpoint user = stats.get("user/me");
+        assertEquals(1, user.hitCount(CacheEventListener.TIER_MEMORY));
+        assertEquals(1, user.staleHitCount());
+        own.close();
+    }
+
+    @Test public void singleFlightSharesOneNetworkCall() throws Exception {
+        final CountDownLatch executing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        FakeCall call = new FakeCall(request("http://localhost/shared?access_token=a",
+                "refresh_cache")) {
+            @Override public Response<ResponseBody> execute() throws IOException {
+                executing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return super.execute();
+            }
+        };
+        FakeCall otherToken = new FakeCall(request("http://localhost/shared?access_token=b",
+                "refresh_cache"));
+        ZanRxJavaCallAdapterFactory factory = new ZanRxJavaCallAdapterFactory.Builder()
+                .cacheScheduler(Schedulers.immediate())
+                .singleFlight(true)
+                .build();
+
+        TestSubscriber<Object> first = new TestSubscriber<>();
+        this.<Observable<?>>adapt(factory, "text", call).subscribeOn(Schedulers.io())
+                .subscribe(first);
+        executing.await();
+        TestSubscriber<Object> second = new TestSubscriber<>();
+        this.<Observable<?>>adapt(factory, "text", call).subscribe(second);
+        // Shares the cache entry but not the call: the response is for another user.
+        TestSubscriber<Object> third = new TestSubscriber<>();
+        this.<Observable<?>>adapt(factory, "text", otherToken).subscribe(third);
+        third.awaitTerminalEvent();
+        release.countDown();
+
+        first.awaitTerminalEvent();
+        second.awaitTerminalEvent();
+        first.assertValueCount(1);
+        second.assertValueCount(1);
+        third.assertValueCount(1);
+        assertEquals(1, call.executeCount.get());
+        assertEquals(1, otherToken.executeCount.get());
+    }
+
+    @Test public void singleFlightDoesNotShareRawBodies() throws Exception {
+        final CountDownLatch executing = new CountDownLatch(2);
+        FakeCall call = new FakeCall(request("http://localhost/shared-raw", "refresh_cache")) {
+            @Override public Response<ResponseBody> execute() throws IOException {
+                // Both calls are in flight at once, unless they were shared.
+                executing.countDown();
+                try {
+                    executing.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return super.execute();
+            }
+        };
+        CallAdapter<Observable<?>> adapter = adapter(new ZanRxJavaCallAdapterFactory.Builder()
+                .cacheScheduler(Schedulers.immediate())
+                .singleFlight(true)
+                .build());
+
+        TestSubscriber<Response<ResponseBody>> first = new TestSubscriber<>();
+        subscribe(adapter.adapt(call).subscribeOn(Schedulers.io()), first);
+        TestSubscriber<Response<ResponseBody>> second = new TestSubscriber<>();
+        subscribe(adapter.adapt(call).subscribeOn(Schedulers.io()), second);
+
+        first.awaitTerminalEvent();
+        second.awaitTerminalEvent();
+        first.assertNoErrors();
+        second.assertNoErrors();
+        assertEquals("network", first.getOnNextEvents().get(0).body().string());
+        assertEquals("network", second.getOnNextEvents().get(0).body().string());
+        assertEquals(2, call.executeCount.get());
+    }
+
+    @Test public void bodyObservableReadsCache() throws Exception {
+        Request request = request("http://localhost/body", "cache-before");
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached"));
+
+        TestSubscriber<ResponseBody> subscriber = new TestSubscriber<>();
+        this.<Observable<ResponseBody>>adapt("body", new FakeCall(request)).subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        subscriber.assertNoErrors();
+        List<ResponseBody> bodies = subscriber.getOnNextEvents();
+        assertEquals(2, bodies.size());
+        assertEquals("cached", bodies.get(0).string());
+        assertEquals("network", bodies.get(1).string());
+    }
+
+    @Test public void resultObservableReadsCache() throws Exception {
+        Request request = request("http://localhost/result", "only-if-cached");
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached"));
+
+        FakeCall call = new FakeCall(request);
+        TestSubscriber<Result<ResponseBody>> subscriber = new TestSubscriber<>();
+        this.<Observable<Result<ResponseBody>>>adapt("result", call).subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        subscriber.assertNoErrors();
+        subscriber.assertValueCount(1);
+        assertEquals("cached", subscriber.getOnNextEvents().get(0).response().body().string());
+        assertEquals(0, call.executeCount.get());
+    }
+
+    @Test public void singleServesStaleEntryOnce() throws Exception {
+        // Without max-age an Observable gets the cached and the network response.
+        Request request = request("http://localhost/single", "cache-before");
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached"));
+
+        FakeCall call = new FakeCall(request);
+        TestSubscriber<ResponseBody> subscriber = new TestSubscriber<>();
+        this.<Single<ResponseBody>>adapt("single", call).subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        subscriber.assertNoErrors();
+        subscriber.assertValueCount(1);
+        assertEquals("cached", subscriber.getOnNextEvents().get(0).string());
+    }
+
+    @Test public void singleFallsBackToNetworkOnMiss() throws Exception {
+        Request request = request("http://localhost/single-miss", "cache-before");
+
+        TestSubscriber<ResponseBody> subscriber = new TestSubscriber<>();
+        this.<Single<ResponseBody>>adapt("single", new FakeCall(request)).subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        subscriber.assertNoErrors();
+        assertEquals("network", subscriber.getOnNextEvents().get(0).string());
+    }
+
+    @Test public void annotatedPolicyAppliesWithoutHeader() throws Exception {
+        Request request = new Request.Builder().url("http://localhost/annotated").build();
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached"));
+
+        FakeCall call = new FakeCall(request);
+        TestSubscriber<ResponseBody> subscriber = new TestSubscriber<>();
+        this.<Observable<ResponseBody>>adapt("annotated", call).subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        subscriber.assertNoErrors();
+        subscriber.assertValueCount(1);
+        assertEquals("cached", subscriber.getOnNextEvents().get(0).string());
+        assertEquals(0, call.executeCount.get());
+    }
+
+    @Test public void headerOverridesAnnotatedPolicy() throws Exception {
+        Request request = request("http://localhost/annotated-override", "refresh_cache");
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached"));
+
+        FakeCall call = new FakeCall(request);
+        TestSubscriber<ResponseBody> subscriber = new TestSubscriber<>();
+        this.<Observable<ResponseBody>>adapt("annotated", call).subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        subscriber.assertNoErrors();
+        assertEquals("network", subscriber.getOnNextEvents().get(0).string());
+        // The interceptor still sees the annotated policy and leaves it to the header.
+        assertTrue(call.executedPolicy.cacheBefore());
+    }
+
+    @Test public void staleEntryIsServedOnceOn2G() throws Exception {
+        Request request = request("http://localhost/2g", "cache-before");
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached"));
+        ZanRxJavaCallAdapterFactory factory = networkAwareFactory(NetworkUtils.NETWORK_2G);
+
+        FakeCall call = new FakeCall(request);
+        assertEquals(Arrays.asList("cached"), bodies(adapter(factory).adapt(call)));
+        assertEquals(1, call.executeCount.get()); // Refreshed in the background.
+
+        factory = networkAwareFactory(NetworkUtils.NETWORK_4G);
+        assertEquals(Arrays.asList("cached", "network"),
+                bodies(adapter(factory).adapt(new FakeCall(request))));
+    }
+
+    @Test public void maxAgeIsExtendedOn3G() throws Exception {
+        Request request = request("http://localhost/3g", "cache-before, max-age=60");
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached",
+                System.currentTimeMillis() - 90 * 1000));
+
+        FakeCall call = new FakeCall(request);
+        ZanRxJavaCallAdapterFactory factory = networkAwareFactory(NetworkUtils.NETWORK_3G);
+        assertEquals(Arrays.asList("cached"), bodies(adapter(factory).adapt(call)));
+        assertEquals(0, call.executeCount.get());
+
+        factory = networkAwareFactory(NetworkUtils.NETWORK_WIFI);
+        assertEquals(Arrays.asList("network"),
+                bodies(adapter(factory).adapt(new FakeCall(request))));
+    }
+
+    @Test public void endpointPolicySkipsNetworkBelowThreshold() throws Exception {
+        Request request = request("http://localhost/endpoint", "cache-before");
+        ZanLocalCache.getInstance().put(rawResponse(request, "cached"));
+        ZanRxJavaCallAdapterFactory factory = networkAwareFactory(NetworkUtils.NETWORK_2G);
+
+        FakeCall imageCall = new FakeCall(request);
+        assertEquals(Arrays.asList("cached"),
+                bodies(this.<Observable<?>>adapt(factory, "image", imageCall)));
+        assertEquals(0, imageCall.executeCount.get());
+
+        FakeCall userCall = new FakeCall(request);
+        bodies(this.<Observable<?>>adapt(factory, "user", userCall));
+        assertEquals(1, userCall.executeCount.get());
+    }
+
+    private static ZanRxJavaCallAdapterFactory networkAwareFactory(int networkState) {
+        return new ZanRxJavaCallAdapterFactory.Builder()
+                .cacheScheduler(Schedulers.immediate())
+                .networkState(new FakeNetworkStateProvider(networkState))
+                .networkPolicy(new NetworkPolicy.Builder()
+                        .serveStaleOn2G(true)
+                        .maxAgeFactorOn3G(2f)
+                        .build())
+                .networkPolicy("image/", new NetworkPolicy.Builder()
+                        .cacheOnlyBelow(NetworkUtils.NETWORK_3G)
+                        .build())
+                .build();
+    }
+
+    /** Adapts {@code call} for the {@link Service} method called {@code name}. */
+    private <T> T adapt(String name, FakeCall call) throws NoSuchMethodException {
+        return adapt(ZanRxJavaCallAdapterFactory.createWithScheduler(null, Schedulers.immediate()),
+                name, call);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T adapt(ZanRxJavaCallAdapterFactory factory, String name, FakeCall call)
+            throws NoSuchMethodException {
+        Method method = Service.class.getDeclaredMethod(name);
+        CallAdapter<?> adapter = factory
+                .get(method.getGenericReturnType(), method.getAnnotations(), retrofit);
+        return (T) adapter.adapt(call);
+    }
+
+    private CallAdapter<Observable<?>> adapter() throws NoSuchMethodException {
+        return adapter(ZanRxJavaCallAdapterFactory.createWithScheduler(null, Schedulers.immediate()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private CallAdapter<Observable<?>> adapter(ZanRxJavaCallAdapterFactory factory)
+            throws NoSuchMethodException {
+        Type returnType = Service.class.getDeclaredMethod("get").getGenericReturnType();
+        return (CallAdapter<Observable<?>>) factory.get(returnType, new Annotation[0], retrofit);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void subscribe(Observable<?> observable,
+                                  TestSubscriber<Response<ResponseBody>> subscriber) {
+        ((Observable<Response<ResponseBody>>) observable).subscribe(subscriber);
+    }
+
+    private static List<String> bodies(Observable<?> observable) throws IOException {
+        TestSubscriber<Response<ResponseBody>> subscriber = new TestSubscriber<>();
+        subscribe(observable, subscriber);
+        subscriber.awaitTerminalEvent();
+        subscriber.assertNoErrors();
+        List<Response<ResponseBody>> responses = subscriber.getOnNextEvents();
+        String[] bodies = new String[responses.size()];
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = responses.get(i).body().string();
+        }
+        return Arrays.asList(bodies);
+    }
+
+    private static Request request(String url, String cacheHeader) {
+        return new Request.Builder()
+                .url(url)
+                .header(ZanCacheControl.CACHE_HEADER, cacheHeader)
+                .build();
+    }
+
+    private static okhttp3.Response rawResponse(Request request, String body) {
+        return rawResponse(request, body, System.currentTimeMillis());
+    }
+
+    private static okhttp3.Response rawResponse(Request request, String body,
+                                                long receivedMillis) {
+        okhttp3.Response networkResponse = new okhttp3.Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .sentRequestAtMillis(receivedMillis)
+                .receivedResponseAtMillis(receivedMillis)
+                .build();
+        return networkResponse.newBuilder()
+                .networkResponse(networkResponse)
+                .body(ResponseBody.create(TEXT, body))
+                .build();
+    }
+
+    static class FakeCall implements Call<ResponseBody> {
+        private final Request request;
+        final AtomicInteger executeCount = new AtomicInteger();
+        int requestCount;
+        ZanCacheControl executedPolicy;
+
+        FakeCall(Request request) {
+            this.request = request;
+        }
+
+        @Override public Response<ResponseBody> execute() throws IOException {
+            executeCount.incrementAndGet();
+            executedPolicy = ZanCacheControl.requestPolicy(request);
+            return Response.success(ResponseBody.create(TEXT, "network"));
+        }
+
+        @Override public void enqueue(Callback<ResponseBody> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override public boolean isExecuted() {
+            return false;
+        }
+
+        @Override public void cancel() {
+        }
+
+        @Override public boolean isCanceled() {
+            return false;
+        }
+
+        @Override public Call<ResponseBody> clone() {
+            return this;
+        }
+
+        @Override public Request request() {
+            requestCount++;
+            return request;
+        }
+    }
+}
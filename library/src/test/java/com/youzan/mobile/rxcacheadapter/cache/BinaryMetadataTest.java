@@ -0,0 +1,185 @@
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Collections;
+
+import okhttp3.CipherSuite;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.TlsVersion;
+import okio.Buffer;
+import okio.ByteString;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryMetadataTest {
+    /** A self-signed EC certificate for CN=localhost. */
+    private static final String CERTIFICATE = "MIIBPzCB56ADAgECAggyUpqZkfxOSTAKBggqhkjOPQQDAjAUMRIwEAYDVQQD"
+            + "Ewlsb2NhbGhvc3QwIBcNMjYxMDE3MjAzMjEzWhgPMjEyNjA5MjMyMDMyMTNaMBQxEjAQBgNVBAMTCWxvY2Fs"
+            + "aG9zdDBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABO+FQxNsSwJdjNhKHkQbLxefd04e+UcWoa6t0ucS+BkZ"
+            + "KskzUC161meZemo8XptV9ABcKNbi75uvBFk9c5ket+6jITAfMB0GA1UdDgQWBBR3jr2AthNdiXd6uWOUHWcf"
+            + "QrnqezAKBggqhkjOPQQDAgNHADBEAiAelFAdlb9SNPKZpalWbkhyB8fEj9iQ6KlUkcXC1WApzAIgdfAb9lvx"
+            + "uuQGBNkv/CTy1CkgVYfX7mEu78aramHgnEE=";
+
+    @Test public void varintRoundTrips() throws IOException {
+        Buffer buffer = new Buffer();
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE};
+        for (int value : values) {
+            BinaryMetadata.writeVarint(buffer, value);
+        }
+        for (int value : values) {
+            assertEquals(value, BinaryMetadata.readVarint(buffer));
+        }
+        assertEquals(1 + 1 + 1 + 2 + 2 + 3 + 5, totalVarintSize(values));
+    }
+
+    @Test public void entryRoundTripsThroughBinaryFormat() throws IOException {
+        Response response = response();
+        ZanLocalCache.Entry entry = new ZanLocalCache.Entry(response);
+        Buffer buffer = new Buffer();
+        entry.writeTo(buffer);
+        assertEquals(BinaryMetadata.MAGIC, buffer.snapshot().substring(0, 4));
+
+        ZanLocalCache.Entry read = ZanLocalCache.Entry.read(buffer);
+        assertFalse(read.isLegacy());
+        Response cached = read.response(ResponseBody.create(null, ""));
+        assertEquals(response.request().url(), cached.request().url());
+        assertEquals(Protocol.HTTP_1_1, cached.protocol());
+        assertEquals(200, cached.code());
+        assertEquals("OK", cached.message());
+        assertEquals(response.headers(), cached.headers());
+        assertEquals(1000L, cached.sentRequestAtMillis());
+        assertEquals(2000L, cached.receivedResponseAtMillis());
+    }
+
+    @Test public void readsVersion1Format() throws IOException {
+        Buffer buffer = new Buffer();
+        new ZanLocalCache.Entry(response()).writeTo(buffer);
+        // Version 1 ended right before the body codec and length.
+        ByteString version2 = buffer.readByteString();
+        assertEquals(0, version2.getByte(version2.size() - 2));
+        assertEquals(0, version2.getByte(version2.size() - 1));
+        Buffer version1 = new Buffer()
+                .write(version2.substring(0, 3))
+                .writeByte(1)
+                .write(version2.substring(4, version2.size() - 2));
+
+        ZanLocalCache.Entry read = ZanLocalCache.Entry.read(version1);
+        assertEquals(null, read.bodyCodec);
+        assertEquals(-1, read.bodyLength);
+        assertEquals(response().headers(), read.response(ResponseBody.create(null, "")).headers());
+    }
+
+    @Test public void readsLegacyTextFormat() throws IOException {
+        ZanLocalCache.Entry read = ZanLocalCache.Entry.read(legacyText());
+        assertTrue(read.isLegacy());
+        Response cached = read.response(ResponseBody.create(null, ""));
+        assertEquals("http://localhost/entry", cached.request().url().toString());
+        assertEquals(200, cached.code());
+        assertEquals(response().headers(), cached.headers());
+        assertEquals(1000L, cached.sentRequestAtMillis());
+        assertEquals(2000L, cached.receivedResponseAtMillis());
+    }
+
+    @Test public void certificatesAreParsedOnFirstAccess() throws Exception {
+        Buffer buffer = new Buffer();
+        new ZanLocalCache.Entry(httpsResponse()).writeTo(buffer);
+
+        Handshake handshake = ZanLocalCache.Entry.read(buffer)
+                .response(ResponseBody.create(null, "")).handshake();
+        assertEquals(CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256, handshake.cipherSuite());
+        assertEquals(TlsVersion.TLS_1_2, handshake.tlsVersion());
+        LazyX509Certificate certificate = (LazyX509Certificate) handshake.peerCertificates().get(0);
+        assertFalse(certificate.isParsed());
+        assertEquals(ByteString.decodeBase64(CERTIFICATE), ByteString.of(certificate.getEncoded()));
+        assertFalse(certificate.isParsed());
+
+        assertEquals("CN=localhost", certificate.getSubjectX500Principal().getName());
+        assertTrue(certificate.isParsed());
+    }
+
+    @Test public void certificatesCanBeLeftOut() throws Exception {
+        Buffer withCertificates = new Buffer();
+        new ZanLocalCache.Entry(httpsResponse(), true).writeTo(withCertificates);
+        Buffer withoutCertificates = new Buffer();
+        new ZanLocalCache.Entry(httpsResponse(), false).writeTo(withoutCertificates);
+        assertTrue(withoutCertificates.size() < withCertificates.size() - 300);
+
+        Handshake handshake = ZanLocalCache.Entry.read(withoutCertificates)
+                .response(ResponseBody.create(null, "")).handshake();
+        assertEquals(CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256, handshake.cipherSuite());
+        assertTrue(handshake.peerCertificates().isEmpty());
+    }
+
+    private static int totalVarintSize(int[] values) throws IOException {
+        Buffer buffer = new Buffer();
+        for (int value : values) {
+            BinaryMetadata.writeVarint(buffer, value);
+        }
+        return (int) buffer.size();
+    }
+
+    private static Buffer legacyText() {
+        return new Buffer()
+                .writeUtf8("http://localhost/entry\n")
+                .writeUtf8("GET\n")
+                .writeUtf8("0\n")
+                .writeUtf8("HTTP/1.1 200 OK\n")
+                .writeUtf8("7\n")
+                .writeUtf8("Content-Type: application/json\n")
+                .writeUtf8("Cache-Control: max-age=600\n")
+                .writeUtf8("ETag: \"abc\"\n")
+                .writeUtf8("X-Request-Id: 42\n")
+                .writeUtf8("ZanCache-Content-Hash: 0123456789abcdef0123456789abcdef\n")
+                .writeUtf8("OkHttp-Sent-Millis: 1000\n")
+                .writeUtf8("OkHttp-Received-Millis: 2000\n");
+    }
+
+    private static Response httpsResponse() throws Exception {
+        Certificate certificate = CertificateFactory.getInstance("X.509").generateCertificate(
+                new Buffer().write(ByteString.decodeBase64(CERTIFICATE)).inputStream());
+        Request request = new Request.Builder().url("https://localhost/entry").build();
+        Response networkResponse = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .handshake(Handshake.get(TlsVersion.TLS_1_2,
+                        CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,
+                        Collections.singletonList(certificate),
+                        Collections.<Certificate>emptyList()))
+                .build();
+        return networkResponse.newBuilder()
+                .networkResponse(networkResponse)
+                .build();
+    }
+
+    private static Response response() {
+        Request request = new Request.Builder().url("http://localhost/entry").build();
+        Response networkResponse = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .header("Content-Type", "application/json")
+                .header("Cache-Control", "max-age=600")
+                .header("ETag", "\"abc\"")
+                .header("X-Request-Id", "42")
+                .header(ZanLocalCache.CONTENT_HASH_HEADER, "0123456789abcdef0123456789abcdef")
+                .sentRequestAtMillis(1000L)
+                .receivedResponseAtMillis(2000L)
+                .build();
+        return networkResponse.newBuilder()
+                .networkResponse(networkResponse)
+                .build();
+    }
+}
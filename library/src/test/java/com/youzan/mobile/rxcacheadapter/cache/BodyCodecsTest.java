@@ -0,0 +1,100 @@
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BodyCodecsTest {
+    @Test public void codecsRoundTrip() throws IOException {
+        String json = ZanLocalCacheTest.json(100);
+        for (BodyCodec codec : new BodyCodec[] {BodyCodecs.gzip(), BodyCodecs.deflate()}) {
+            Buffer encoded = new Buffer();
+            BufferedSink sink = Okio.buffer(codec.encode(encoded));
+            sink.writeUtf8(json);
+            sink.close();
+            assertTrue(encoded.size() < json.length() / 4);
+
+            Source decoded = codec.decode(encoded);
+            assertEquals(json, Okio.buffer(decoded).readUtf8());
+            decoded.close();
+        }
+    }
+
+    @Test public void codecsAreFoundByName() {
+        assertSame(BodyCodecs.gzip(), BodyCodecs.forName("gzip", null));
+        assertSame(BodyCodecs.deflate(), BodyCodecs.forName("deflate", BodyCodecs.gzip()));
+        assertNull(BodyCodecs.forName("br", BodyCodecs.gzip()));
+    }
+
+    @Test public void compressedTypesAreSkipped() {
+        assertTrue(BodyCodecs.isCompressible("application/json; charset=utf-8", null));
+        assertTrue(BodyCodecs.isCompressible("text/html", "identity"));
+        assertTrue(BodyCodecs.isCompressible("image/svg+xml", null));
+        assertTrue(BodyCodecs.isCompressible(null, null));
+        assertFalse(BodyCodecs.isCompressible("image/webp", null));
+        assertFalse(BodyCodecs.isCompressible("video/mp4", null));
+        assertFalse(BodyCodecs.isCompressible("application/zip", null));
+        assertFalse(BodyCodecs.isCompressible("application/json", "gzip"));
+    }
+
+    /** A 1 MB disk cache holds more of a corpus of JSON list responses with encoding. */
+    @Test public void codecsFitMoreEntries() throws Exception {
+        Random random = new Random(0);
+        String[] corpus = new String[200];
+        for (int i = 0; i < corpus.length; i++) {
+            corpus[i] = ZanLocalCacheTest.json(20 + random.nextInt(80));
+        }
+        int plain = storedEntries(null, corpus);
+        assertTrue(plain < corpus.length);
+        assertTrue(storedEntries(BodyCodecs.gzip(), corpus) > plain);
+        assertTrue(storedEntries(BodyCodecs.deflate(), corpus) > plain);
+    }
+
+    /** Returns how many entries of {@code corpus} can still be read after storing all of them. */
+    private static int storedEntries(BodyCodec codec, String[] corpus) throws Exception {
+        File dir = File.createTempFile("zan-codec", "");
+        dir.delete();
+        ZanLocalCache cache = new ZanLocalCache.Builder(dir)
+                .maxSize(1024 * 1024)
+                .memoryCacheSize(0)
+                .bodyCodec(codec)
+                .build();
+        for (int i = 0; i < corpus.length; i++) {
+            cache.put(ZanLocalCacheTest.response(request(i), corpus[i]));
+            if (i % 32 == 31) {
+                cache.flush(); // Keeps the write-behind queue from dropping writes.
+            }
+        }
+        cache.flush();
+
+        int stored = 0;
+        for (int i = 0; i < corpus.length; i++) {
+            Response response = cache.get(request(i));
+            if (response != null) {
+                assertEquals(corpus[i], response.body().string());
+                stored++;
+            }
+        }
+        cache.close();
+        return stored;
+    }
+
+    private static Request request(int i) {
+        return ZanLocalCacheTest.request("http://localhost/corpus/" + i);
+    }
+}
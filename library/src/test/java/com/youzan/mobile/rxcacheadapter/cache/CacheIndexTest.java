@@ -0,0 +1,82 @@
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import okio.BufferedSink;
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CacheIndexTest {
+    private File dir;
+
+    @Before public void setUp() throws IOException {
+        dir = File.createTempFile("zan-index", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Test public void findsKeysByTagAndPrefix() throws IOException {
+        CacheIndex index = new CacheIndex(dir);
+        index.put("a", "/v1/items", Arrays.asList("items"));
+        index.put("b", "/v1/items/42", Arrays.asList("items", "item:42"));
+        index.put("c", "/v1/users", Collections.<String>emptyList());
+
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")),
+                new HashSet<>(index.keysForTag("items")));
+        assertEquals(Arrays.asList("b"), index.keysForTag("item:42"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")),
+                new HashSet<>(index.keysForPathPrefix("/v1/items")));
+        assertEquals(3, index.keysForPathPrefix("/v1/").size());
+
+        index.put("b", "/v1/items/42", Arrays.asList("item:42"));
+        assertEquals(Arrays.asList("a"), index.keysForTag("items"));
+        index.remove("a");
+        assertTrue(index.keysForTag("items").isEmpty());
+        assertEquals(Arrays.asList("b"), index.keysForPathPrefix("/v1/items"));
+    }
+
+    @Test public void isReadBackWithoutEvictedKeys() throws IOException {
+        entryFile("a");
+        entryFile("b");
+        CacheIndex index = new CacheIndex(dir);
+        index.put("a", "/v1/items", Arrays.asList("items"));
+        index.put("b", "/v1/items/42", Arrays.asList("items"));
+        index.put("gone", "/v1/items/7", Arrays.asList("items"));
+        index.put("c", "/v1/users", Arrays.asList("users"));
+        index.remove("c");
+        index.writeLog();
+
+        CacheIndex reopened = new CacheIndex(dir);
+        assertEquals(2, reopened.size());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")),
+                new HashSet<>(reopened.keysForTag("items")));
+
+        // The compacted log holds the live keys only.
+        reopened.writeLog();
+        assertEquals(3 + 2, Okio.buffer(Okio.source(new File(dir, CacheIndex.FILE_NAME)))
+                .readUtf8().split("\n").length);
+    }
+
+    @Test public void tornLogKeepsCompleteLines() throws IOException {
+        entryFile("a");
+        BufferedSink sink = Okio.buffer(Okio.sink(new File(dir, CacheIndex.FILE_NAME)));
+        sink.writeUtf8("zan-index\n1\n\nPUT a /v1/items items\nPU");
+        sink.close();
+
+        CacheIndex index = new CacheIndex(dir);
+        assertEquals(Arrays.asList("a"), index.keysForTag("items"));
+    }
+
+    private void entryFile(String key) throws IOException {
+        new File(dir, key + ".0").createNewFile();
+    }
+}
@@ -0,0 +1,79 @@
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import org.junit.Test;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CacheKeyStrategiesTest {
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    @Test public void builderWithoutOptionsIsUrlStrategy() {
+        assertSame(CacheKeyStrategies.url(), new CacheKeyStrategies.Builder().build());
+        assertEquals(Utils.md5Hex("http://localhost/a?b=1"),
+                CacheKeyStrategies.url().key(get("http://localhost/a?b=1&access_token=x")));
+    }
+
+    @Test public void bodySelectsEntry() {
+        CacheKeyStrategy strategy = new CacheKeyStrategies.Builder().includeBody(true).build();
+
+        String first = strategy.key(post("http://localhost/search", "{\"q\":\"a\"}"));
+        assertNotEquals(first, strategy.key(post("http://localhost/search", "{\"q\":\"b\"}")));
+        assertEquals(first, strategy.key(post("http://localhost/search", "{\"q\":\"a\"}")));
+        assertNotEquals(first, strategy.key(get("http://localhost/search")));
+        assertTrue(first.matches("[a-z0-9_-]{1,64}"));
+    }
+
+    @Test public void queryParametersCanBeSorted() {
+        CacheKeyStrategy sorted = new CacheKeyStrategies.Builder()
+                .sortQueryParameters(true)
+                .build();
+        CacheKeyStrategy unsorted = new CacheKeyStrategies.Builder()
+                .volatileParameters("access_token", "t")
+                .build();
+
+        assertEquals(sorted.key(get("http://localhost/a?x=1&y=2")),
+                sorted.key(get("http://localhost/a?y=2&x=1")));
+        assertNotEquals(unsorted.key(get("http://localhost/a?x=1&y=2")),
+                unsorted.key(get("http://localhost/a?y=2&x=1")));
+    }
+
+    @Test public void volatileParametersAreIgnored() {
+        CacheKeyStrategy strategy = new CacheKeyStrategies.Builder()
+                .volatileParameters("timestamp", "sign")
+                .build();
+
+        String key = strategy.key(get("http://localhost/a?id=1"));
+        assertEquals(key, strategy.key(get("http://localhost/a?timestamp=1&id=1&sign=abc")));
+        assertNotEquals(key, strategy.key(get("http://localhost/a?id=1&access_token=x")));
+    }
+
+    @Test public void selectedHeadersSelectEntry() {
+        CacheKeyStrategy strategy = new CacheKeyStrategies.Builder()
+                .includeHeaders("Shop-Id")
+                .build();
+
+        Request shop1 = new Request.Builder().url("http://localhost/a").header("Shop-Id", "1")
+                .header("User-Agent", "a").build();
+        Request shop1OtherAgent = shop1.newBuilder().header("User-Agent", "b").build();
+        Request shop2 = shop1.newBuilder().header("Shop-Id", "2").build();
+
+        assertEquals(strategy.key(shop1), strategy.key(shop1OtherAgent));
+        assertNotEquals(strategy.key(shop1), strategy.key(shop2));
+        assertNotEquals(strategy.key(shop1), strategy.key(get("http://localhost/a")));
+    }
+
+    private static Request get(String url) {
+        return new Request.Builder().url(url).build();
+    }
+
+    private static Request post(String url, String body) {
+        return new Request.Builder().url(url).post(RequestBody.create(JSON, body)).build();
+    }
+}
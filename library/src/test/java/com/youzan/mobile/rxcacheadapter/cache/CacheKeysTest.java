@@ -0,0 +1,45 @@
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import org.junit.Test;
+
+import okhttp3.HttpUrl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CacheKeysTest {
+    private static final String[] URLS = {
+            "http://localhost/",
+            "https://api.example.com/v2/items?page=1&size=20",
+            "https://api.example.com/v2/items?access_token=abc",
+            "https://api.example.com/v2/items?access_token=abc&page=1",
+            "https://api.example.com/v2/items?page=1&access_token=abc&size=20",
+            "https://api.example.com/v2/items?page=1&access_token",
+            "https://api.example.com/v2/items?access_tokens=1&access_token=2&x_access_token=3",
+            "https://api.example.com/v2/items?page=1&&access_token=abc&",
+            "https://api.example.com/v2/items?access_token=abc#top",
+            "https://api.example.com/v2/items?q=%E4%B8%AD&access_token=abc#中",
+            "https://api.example.com:8443/v2/%E4%B8%AD?q=a+b&access_token=abc",
+    };
+
+    @Test public void keysMatchRebuiltUrl() {
+        for (String url : URLS) {
+            HttpUrl httpUrl = HttpUrl.parse(url);
+            String expected = httpUrl.newBuilder()
+                    .removeAllQueryParameters("access_token").build().toString();
+            assertEquals(url, expected, CacheKeys.normalizedUrl(httpUrl));
+            assertEquals(url, Utils.md5Hex(expected), CacheKeys.key(HttpUrl.parse(url)));
+        }
+    }
+
+    @Test public void md5HexMatchesUtils() {
+        for (String s : new String[] {"", "GET\nhttp://localhost/?q=a", "q=中"}) {
+            assertEquals(s, Utils.md5Hex(s), CacheKeys.md5Hex(s));
+        }
+    }
+
+    @Test public void keyIsMemoizedPerUrlInstance() {
+        HttpUrl url = HttpUrl.parse("https://api.example.com/v2/items?page=1&access_token=abc");
+        assertSame(CacheKeys.key(url), CacheKeys.key(url));
+    }
+}
@@ -0,0 +1,55 @@
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import org.junit.Test;
+
+import static com.youzan.mobile.rxcacheadapter.cache.CacheEventListener.TIER_DISK;
+import static com.youzan.mobile.rxcacheadapter.cache.CacheEventListener.TIER_MEMORY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CacheStatsTest {
+    @Test public void eventsAreAddedUpPerEndpoint() {
+        CacheStats stats = new CacheStats();
+        stats.cacheHit("user/{id}", TIER_MEMORY, 100, 1000);
+        stats.cacheHit("user/{id}", TIER_DISK, 200, 50000);
+        stats.cacheMiss("user/{id}", 2000);
+        stats.writeSuccess("user/{id}", 300, -1);
+        stats.writeAbort("user/{id}");
+        stats.cacheMiss("items", 1000);
+        stats.evicted(TIER_MEMORY, 64);
+
+        CacheStats.Endpoint user = stats.get("user/{id}");
+        assertEquals(1, user.hitCount(TIER_MEMORY));
+        assertEquals(1, user.hitCount(TIER_DISK));
+        assertEquals(1, user.missCount());
+        assertEquals(2 / 3d, user.hitRate(), 0.001);
+        assertEquals(300, user.bytesRead());
+        assertEquals(300, user.bytesWritten());
+        assertEquals(1, user.writeSuccessCount());
+        assertEquals(1, user.writeAbortCount());
+        assertEquals(3, user.getTimes().count());
+        assertEquals(0, user.putTimes().count()); // Streamed writes aren't timed.
+        assertEquals(0, stats.get("items").hitRate(), 0);
+        assertEquals(64, stats.evictedBytes());
+
+        String dump = stats.dump();
+        assertTrue(dump, dump.contains("user/{id}: hit rate 67%"));
+        stats.reset();
+        assertEquals(0, stats.get("user/{id}").missCount());
+    }
+
+    @Test public void percentilesAreBucketUpperBounds() {
+        CacheStats stats = new CacheStats();
+        for (int i = 0; i < 98; i++) {
+            stats.parsed("feed", 3000); // 3us, in the bucket below 4us.
+        }
+        stats.parsed("feed", 1000000);
+        stats.parsed("feed", 1500000);
+
+        CacheStats.Histogram times = stats.get("feed").parseTimes();
+        assertEquals(100, times.count());
+        assertEquals(4000, times.percentile(0.5));
+        assertEquals(1024000, times.percentile(0.99)); // 1ms, in the bucket below 1024us.
+        assertEquals(1500000, times.maxNanos());
+    }
+}
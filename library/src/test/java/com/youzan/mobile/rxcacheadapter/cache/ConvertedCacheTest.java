@@ -0,0 +1,75 @@
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import org.junit.Test;
+
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConvertedCacheTest {
+    private final ConvertedCache cache = new ConvertedCache(2);
+
+    @Test public void keyedByCacheKeyAndType() {
+        cache.put("a", String.class, value("string"), cache.generation());
+        cache.put("a", Integer.class, value(1), cache.generation());
+
+        assertEquals("string", cache.get("a", String.class).converted);
+        assertEquals(1, cache.get("a", Integer.class).converted);
+        assertNull(cache.get("b", String.class));
+    }
+
+    @Test public void invalidateDropsAllTypesOfKey() {
+        cache.put("a", String.class, value("string"), cache.generation());
+        cache.put("a", Integer.class, value(1), cache.generation());
+        cache.invalidate("a");
+
+        assertNull(cache.get("a", String.class));
+        assertNull(cache.get("a", Integer.class));
+    }
+
+    @Test public void conversionStartedBeforeInvalidationIsDropped() {
+        long generation = cache.generation();
+        cache.invalidate("a");
+        cache.put("a", String.class, value("stale"), generation);
+
+        assertNull(cache.get("a", String.class));
+    }
+
+    @Test public void evictsLeastRecentlyUsedKey() {
+        cache.put("a", String.class, value("a"), cache.generation());
+        cache.put("b", String.class, value("b"), cache.generation());
+        cache.get("a", String.class);
+        cache.put("c", String.class, value("c"), cache.generation());
+
+        assertNull(cache.get("b", String.class));
+        assertEquals("a", cache.get("a", String.class).converted);
+        assertEquals("c", cache.get("c", String.class).converted);
+    }
+
+    @Test public void valueOnlyMatchesRequestsOfItsEntry() {
+        Request french = new Request.Builder().url("http://localhost/vary")
+                .header("Accept-Language", "fr").build();
+        Request english = french.newBuilder().header("Accept-Language", "en").build();
+        Response cached = ZanLocalCacheTest.response(french, "bonjour").newBuilder()
+                .header("Vary", "Accept-Language")
+                .build();
+        ConvertedCache.Value value = new ConvertedCache.Value("bonjour", cached, "normalized");
+
+        assertTrue(value.matches(french, "normalized", true));
+        assertFalse(value.matches(english, "normalized", true));
+        assertTrue(value.matches(english, "normalized", false));
+        assertFalse(value.matches(french, "other", false));
+        assertFalse(value.matches(french.newBuilder()
+                .post(RequestBody.create(null, "")).build(), "normalized", false));
+    }
+
+    private static ConvertedCache.Value value(Object converted) {
+        Request request = ZanLocalCacheTest.request("http://localhost/value");
+        return new ConvertedCache.Value(converted, ZanLocalCacheTest.response(request, ""), "");
+    }
+}
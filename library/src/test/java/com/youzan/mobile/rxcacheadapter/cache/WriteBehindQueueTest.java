@@ -0,0 +1,63 @@
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import okio.ByteString;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindQueueTest {
+    private final List<String> written = new ArrayList<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final WriteBehindQueue queue = new WriteBehindQueue(new WriteBehindQueue.DiskWriter() {
+        @Override public void write(String key, WriteBehindQueue.Write write) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            synchronized (written) {
+                written.add(key + "=" + (write.isRemoval() ? "removed" : write.body.utf8()));
+            }
+        }
+    }, 2);
+
+    @Test public void coalescesQueuedWritesToSameKey() throws Exception {
+        queue.enqueue("a", write("1"));
+        queue.enqueue("b", write("1"));
+        queue.enqueue("b", write("2"));
+        queue.enqueue("b", write("3"));
+        release.countDown();
+        queue.flush();
+
+        // "a" may have been in flight before the replacements of "b" arrived.
+        assertEquals("b=3", written.get(written.size() - 1));
+        assertFalse(written.contains("b=2"));
+    }
+
+    @Test public void dropsNewKeysWhenFull() throws Exception {
+        assertTrue(queue.enqueue("a", write("1")));
+        assertTrue(queue.enqueue("b", write("1")));
+        assertFalse(queue.enqueue("c", write("1")));
+        assertTrue(queue.enqueue("b", write("2")));
+        assertTrue(queue.enqueue("c", WriteBehindQueue.Write.removal()));
+        assertEquals(1, queue.droppedCount());
+        release.countDown();
+        queue.close();
+
+        assertEquals("c=removed", written.get(written.size() - 1));
+    }
+
+    private static WriteBehindQueue.Write write(String body) {
+        ZanLocalCache.Entry entry = new ZanLocalCache.Entry(ZanLocalCacheTest.response(
+                ZanLocalCacheTest.request("http://localhost/queued"), body));
+        return new WriteBehindQueue.Write(entry, ByteString.encodeUtf8(body));
+    }
+}
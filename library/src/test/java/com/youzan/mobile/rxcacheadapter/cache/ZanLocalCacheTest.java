@@ -0,0 +1,564 @@
+package com.youzan.mobile.rxcacheadapter.cache;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import okhttp3.CipherSuite;
+import okhttp3.Handshake;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.TlsVersion;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+import retrofit2.Retrofit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ZanLocalCacheTest {
+    private static final MediaType TEXT = MediaType.parse("text/plain");
+
+    private static final ZanLocalCache.CommitCheck ACCEPT_CODE = new ZanLocalCache.CommitCheck() {
+        @Override public boolean shouldCommit(BufferedSource prefix) {
+            return prefix.buffer().readUtf8().equals("{\"co");
+        }
+    };
+
+    private static final ZanLocalCache.CommitCheck REJECT = new ZanLocalCache.CommitCheck() {
+        @Override public boolean shouldCommit(BufferedSource prefix) {
+            return false;
+        }
+    };
+
+    private static ZanLocalCache cache;
+
+    @BeforeClass public static void setUpCache() throws IOException {
+        File dir = File.createTempFile("zan-cache", "");
+        dir.delete();
+        ZanLocalCache.init(dir.getAbsolutePath());
+        cache = ZanLocalCache.getInstance();
+    }
+
+    @Test public void putFillsMemoryTier() throws Exception {
+        Request request = request("http://localhost/memory");
+        cache.put(response(request, "hot"));
+
+        int memoryHits = cache.memoryHitCount();
+        int diskHits = cache.diskHitCount();
+        assertEquals("hot", cache.get(request).body().string());
+        assertEquals("hot", cache.get(request).body().string());
+        assertEquals(memoryHits + 2, cache.memoryHitCount());
+        assertEquals(diskHits, cache.diskHitCount());
+    }
+
+    @Test public void diskHitIsPromotedToMemoryTier() throws Exception {
+        Request request = request("http://localhost/disk");
+        cache.put(response(request, "cold"));
+        cache.flush();
+        cache.memoryCache().evictAll();
+
+        int memoryHits = cache.memoryHitCount();
+        int diskHits = cache.diskHitCount();
+        assertEquals("cold", cache.get(request).body().string());
+        assertEquals(diskHits + 1, cache.diskHitCount());
+        assertEquals("cold", cache.get(request).body().string());
+        assertEquals(memoryHits + 1, cache.memoryHitCount());
+        assertEquals(diskHits + 1, cache.diskHitCount());
+    }
+
+    @Test public void preloadFillsMemoryTier() throws Exception {
+        Request first = request("http://localhost/preload/1");
+        Request second = request("http://localhost/preload/2");
+        cache.put(response(first, "one"));
+        cache.put(response(second, "two"));
+        cache.flush();
+        cache.memoryCache().evictAll();
+
+        assertEquals(2, cache.preload(Arrays.asList(first, second,
+                request("http://localhost/preload/missing"))));
+        assertEquals(0, cache.preload(Arrays.asList(first, second)));
+
+        int diskHits = cache.diskHitCount();
+        assertEquals("one", cache.get(first).body().string());
+        assertEquals("two", cache.get(second).body().string());
+        assertEquals(diskHits, cache.diskHitCount());
+    }
+
+    @Test public void requestsWithOtherAccessTokenHitBothTiers() throws Exception {
+        cache.put(response(request("http://localhost/token?id=1&access_token=a"), "mine"));
+        Request request = request("http://localhost/token?access_token=b&id=1");
+
+        assertEquals("mine", cache.get(request).body().string());
+        cache.flush();
+        cache.memoryCache().evictAll();
+        int diskHits = cache.diskHitCount();
+        assertEquals("mine", cache.get(request).body().string());
+        assertEquals(diskHits + 1, cache.diskHitCount());
+    }
+
+    @Test public void varyIsOnlyCheckedWhenEnabled() {
+        Request french = new Request.Builder().url("http://localhost/vary")
+                .header("Accept-Language", "fr").build();
+        Request english = french.newBuilder().header("Accept-Language", "en").build();
+        Response response = response(french, "bonjour");
+        response = response.newBuilder()
+                .header("Vary", "Accept-Language")
+                .networkResponse(response.networkResponse().newBuilder()
+                        .header("Vary", "Accept-Language")
+                        .build())
+                .build();
+        ZanLocalCache.Entry entry = new ZanLocalCache.Entry(response);
+
+        String normalized = "http://localhost/vary";
+        assertTrue(entry.matches(french, normalized, true));
+        assertFalse(entry.matches(english, normalized, true));
+        assertTrue(entry.matches(english, normalized, false));
+        assertFalse(entry.matches(new Request.Builder().url("http://localhost/vary")
+                .post(RequestBody.create(TEXT, "")).build(), normalized, false));
+    }
+
+    @Test public void collidingKeysDoNotMatch() throws Exception {
+        ZanLocalCache local = new ZanLocalCache.Builder(tempDir())
+                .keyStrategy(new CacheKeyStrategy() {
+                    @Override public String key(Request request) {
+                        return "collision";
+                    }
+
+                    @Override public String normalize(Request request) {
+                        return request.url().toString();
+                    }
+                })
+                .build();
+        Request first = request("http://localhost/collision/1");
+        Request second = request("http://localhost/collision/2");
+        local.put(response(first, "first"));
+
+        assertNull(local.get(second));
+        local.flush();
+        local.memoryCache().evictAll();
+        assertNull(local.get(second));
+        assertEquals("first", local.get(first).body().string());
+        local.close();
+    }
+
+    @Test public void normalizedRequestIsStored() throws Exception {
+        File dir = tempDir();
+        CacheKeyStrategy strategy = new CacheKeyStrategies.Builder()
+                .volatileParameters("access_token", "timestamp")
+                .build();
+        ZanLocalCache local = new ZanLocalCache.Builder(dir).keyStrategy(strategy).build();
+        local.put(response(request("http://localhost/normalized?id=1&timestamp=1"), "one"));
+        local.close();
+
+        // Read back from disk, where the stored url still has the first timestamp.
+        local = new ZanLocalCache.Builder(dir).keyStrategy(strategy).build();
+        assertEquals("one", local.get(request("http://localhost/normalized?id=1&timestamp=2"))
+                .body().string());
+        assertNull(local.get(request("http://localhost/normalized?id=2&timestamp=2")));
+        local.close();
+    }
+
+    @Test public void convertedValueOnlyAnswersMatchingRequests() throws Exception {
+        ZanLocalCache local = new ZanLocalCache.Builder(tempDir()).convertedCacheSize(8).build();
+        CacheResponse<ResponseBody> parser = new CacheResponse<>(new Retrofit.Builder()
+                .baseUrl("http://localhost/")
+                .build());
+        Request post = new Request.Builder().url("http://localhost/converted")
+                .post(RequestBody.create(TEXT, "query"))
+                .build();
+        local.put(response(post, "posted"));
+
+        retrofit2.Response<ResponseBody> converted =
+                local.getConverted(post, parser, new Annotation[0], ResponseBody.class);
+        assertSame(converted,
+                local.getConverted(post, parser, new Annotation[0], ResponseBody.class));
+        // Same key under the URL strategy, but the entry was stored for a POST.
+        assertNull(local.getConverted(request("http://localhost/converted"), parser,
+                new Annotation[0], ResponseBody.class));
+        local.close();
+    }
+
+    @Test public void mismatchInMemoryCountsAsMiss() throws Exception {
+        ZanLocalCache local = new ZanLocalCache.Builder(tempDir())
+                .memoryCacheSize(64 * 1024)
+                .build();
+        Request post = new Request.Builder().url("http://localhost/mismatch")
+                .post(RequestBody.create(TEXT, "query"))
+                .build();
+        local.put(response(post, "posted"));
+
+        assertNull(local.get(request("http://localhost/mismatch")));
+        assertEquals(0, local.memoryHitCount());
+        assertEquals(1, local.memoryMissCount());
+        local.close();
+    }
+
+    @Test public void instancesDoNotShareEntries() throws Exception {
+        ZanLocalCache feed = new ZanLocalCache.Builder(tempDir()).build();
+        ZanLocalCache config = new ZanLocalCache.Builder(tempDir()).build();
+        Request request = request("http://localhost/instances");
+        feed.put(response(request, "feed"));
+
+        assertEquals("feed", feed.get(request).body().string());
+        assertNull(config.get(request));
+        feed.close();
+        config.close();
+    }
+
+    @Test public void otherAppVersionDiscardsEntries() throws Exception {
+        File dir = tempDir();
+        Request request = request("http://localhost/versioned");
+        ZanLocalCache v1 = new ZanLocalCache.Builder(dir).appVersion(1).build();
+        v1.put(response(request, "v1"));
+        v1.close();
+
+        ZanLocalCache reopened = new ZanLocalCache.Builder(dir).appVersion(1).build();
+        assertEquals("v1", reopened.get(request).body().string());
+        reopened.close();
+
+        ZanLocalCache v2 = new ZanLocalCache.Builder(dir).appVersion(2).build();
+        assertNull(v2.get(request));
+        v2.close();
+    }
+
+    @Test public void sizeFromFreeSpaceIsClamped() throws Exception {
+        File parent = tempDir(); // Doesn't exist either.
+        File dir = new File(parent, "not/created/yet");
+        long free = parent.getParentFile().getUsableSpace();
+
+        assertEquals(1024, new ZanLocalCache.Builder(dir)
+                .maxSizeFromFreeSpace(0.5f, 1, 1024).maxSize());
+        assertEquals(Math.max(1, (long) (free * 0.01f)), new ZanLocalCache.Builder(dir)
+                .maxSizeFromFreeSpace(0.01f, 1, Long.MAX_VALUE).maxSize());
+    }
+
+    @Test public void removeRequestDropsBothTiers() throws Exception {
+        Request request = request("http://localhost/removed");
+        cache.put(response(request, "gone"));
+        cache.removeRequest(request);
+        cache.flush();
+
+        int diskMisses = cache.diskMissCount();
+        assertNull(cache.get(request));
+        assertEquals(diskMisses + 1, cache.diskMissCount());
+    }
+
+    @Test public void pendingWriteIsVisibleBeforeItReachesDisk() throws Exception {
+        Request request = request("http://localhost/pending");
+        cache.put(response(request, "first"));
+        cache.put(response(request, "second"));
+        cache.memoryCache().evictAll();
+
+        assertEquals("second", cache.get(request).body().string());
+        cache.flush();
+        cache.memoryCache().evictAll();
+        assertEquals("second", cache.get(request).body().string());
+    }
+
+    @Test public void streamedBodyIsCommittedWhenReadCompletely() throws Exception {
+        Request request = request("http://localhost/streamed");
+        Response response = cache.putStreaming(response(request, "{\"code\":0}"), 4, ACCEPT_CODE);
+
+        assertNull(cache.get(request));
+        assertEquals("{\"code\":0}", response.body().string());
+        Response cached = cache.get(request);
+        assertEquals(ByteString.encodeUtf8("{\"code\":0}").md5().hex(),
+                cached.header(ZanLocalCache.CONTENT_HASH_HEADER));
+        assertEquals("{\"code\":0}", cached.body().string());
+    }
+
+    @Test public void streamedBodyIsAbortedWhenCheckFails() throws Exception {
+        Request request = request("http://localhost/rejected");
+        Response response = cache.putStreaming(response(request, "{\"code\":1}"), 4, REJECT);
+
+        assertEquals("{\"code\":1}", response.body().string());
+        assertNull(cache.get(request));
+    }
+
+    @Test public void streamedBodyIsAbortedWhenSourceFails() throws Exception {
+        Request request = request("http://localhost/truncated");
+        Source failing = new ForwardingSource(new Buffer().writeUtf8("{\"code\":0")) {
+            @Override public long read(Buffer sink, long byteCount) throws IOException {
+                long read = super.read(sink, byteCount);
+                if (read == -1) throw new IOException("connection reset");
+                return read;
+            }
+        };
+        Response response = cache.putStreaming(response(request, "").newBuilder()
+                .body(ResponseBody.create(TEXT, -1, Okio.buffer(failing)))
+                .build(), 4, ACCEPT_CODE);
+
+        try {
+            response.body().string();
+            fail();
+        } catch (IOException expected) {
+        }
+        response.body().close();
+        assertNull(cache.get(request));
+    }
+
+    @Test public void streamedBodyIsAbortedWhenMetadataRewriteFails() throws Exception {
+        CacheStats stats = new CacheStats();
+        ZanLocalCache local = new ZanLocalCache.Builder(tempDir()).eventListener(stats).build();
+        Request request = request("https://localhost/rewrite");
+        // Encodes for the first metadata write only, so the rewrite at the end of the body fails.
+        Certificate certificate = new Certificate("X.509") {
+            private int encoded;
+
+            @Override public byte[] getEncoded() throws CertificateEncodingException {
+                if (encoded++ > 0) throw new CertificateEncodingException("disk full");
+                return new byte[] {1, 2, 3};
+            }
+
+            @Override public void verify(PublicKey key) {
+            }
+
+            @Override public void verify(PublicKey key, String sigProvider) {
+            }
+
+            @Override public String toString() {
+                return "fake";
+            }
+
+            @Override public PublicKey getPublicKey() {
+                return null;
+            }
+        };
+        Response https = response(request, "{\"code\":0}").newBuilder()
+                .handshake(Handshake.get(TlsVersion.TLS_1_2,
+                        CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,
+                        Collections.singletonList(certificate),
+                        Collections.<Certificate>emptyList()))
+                .build();
+
+        Response response = local.putStreaming(https, 4, ACCEPT_CODE);
+        assertEquals("{\"code\":0}", response.body().string());
+        assertNull(local.get(request));
+        assertEquals(1, stats.get("/rewrite").writeAbortCount());
+
+        // The key was released, so the next response can be stored.
+        local.put(response(request, "{\"code\":1}"));
+        local.flush();
+        assertEquals("{\"code\":1}", local.get(request).body().string());
+        local.close();
+    }
+
+    @Test public void updateReplacesMetadataAndKeepsBody() throws Exception {
+        Request request = request("http://localhost/revalidated");
+        cache.put(response(request, "body"));
+        cache.flush();
+
+        Response notModified = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(304)
+                .message("Not Modified")
+                .header("ETag", "\"v2\"")
+                .receivedResponseAtMillis(42)
+                .build();
+        cache.update(response(request, "ignored").newBuilder()
+                .header("ETag", "\"v2\"")
+                .receivedResponseAtMillis(42)
+                .networkResponse(notModified)
+                .build());
+        cache.flush();
+        cache.memoryCache().evictAll();
+
+        Response cached = cache.get(request);
+        assertEquals("\"v2\"", cached.header("ETag"));
+        assertEquals(42, cached.receivedResponseAtMillis());
+        assertEquals("body", cached.body().string());
+    }
+
+    @Test public void bodiesAreStoredEncoded() throws Exception {
+        File dir = tempDir();
+        ZanLocalCache gzipCache = new ZanLocalCache.Builder(dir)
+                .memoryCacheSize(0)
+                .bodyCodec(BodyCodecs.gzip())
+                .build();
+        Request request = request("http://localhost/gzip");
+        String json = json(200);
+        gzipCache.put(response(request, json));
+        gzipCache.flush();
+
+        long stored = new File(dir, gzipCache.cacheKey(request) + ".1").length();
+        assertTrue(stored < json.length() / 4);
+        Response cached = gzipCache.get(request);
+        assertEquals(json.length(), cached.body().contentLength());
+        assertEquals(json, cached.body().string());
+
+        // A cache without a codec still reads the entry, and update() keeps its encoding.
+        gzipCache.close();
+        ZanLocalCache plainCache = new ZanLocalCache.Builder(dir).memoryCacheSize(0).build();
+        plainCache.update(response(request, "ignored").newBuilder()
+                .header("ETag", "\"v2\"")
+                .build());
+        plainCache.flush();
+        cached = plainCache.get(request);
+        assertEquals("\"v2\"", cached.header("ETag"));
+        assertEquals(json, cached.body().string());
+    }
+
+    @Test public void streamedBodiesAreStoredEncoded() throws Exception {
+        File dir = tempDir();
+        ZanLocalCache deflateCache = new ZanLocalCache.Builder(dir)
+                .memoryCacheSize(0)
+                .bodyCodec(BodyCodecs.deflate())
+                .build();
+        Request request = request("http://localhost/deflate");
+        String json = json(200);
+        Response response = deflateCache.putStreaming(response(request, json), 4, ACCEPT_CODE);
+        assertEquals(json, response.body().string());
+
+        assertTrue(new File(dir, deflateCache.cacheKey(request) + ".1").length()
+                < json.length() / 4);
+        Response cached = deflateCache.get(request);
+        assertEquals(json.length(), cached.body().contentLength());
+        assertEquals(json, cached.body().string());
+    }
+
+    @Test public void compressedTypesAndSmallBodiesAreStoredAsIs() throws Exception {
+        File dir = tempDir();
+        ZanLocalCache gzipCache = new ZanLocalCache.Builder(dir)
+                .bodyCodec(BodyCodecs.gzip())
+                .build();
+        Request image = request("http://localhost/image");
+        byte[] png = new byte[4096];
+        gzipCache.put(response(image, "").newBuilder()
+                .header("Content-Type", "image/png")
+                .body(ResponseBody.create(MediaType.parse("image/png"), png))
+                .build());
+        Request small = request("http://localhost/small");
+        gzipCache.put(response(small, "{\"code\":0}"));
+        gzipCache.flush();
+
+        assertEquals(png.length, new File(dir, gzipCache.cacheKey(image) + ".1").length());
+        assertEquals(10, new File(dir, gzipCache.cacheKey(small) + ".1").length());
+    }
+
+    @Test public void invalidateByTagAndPrefix() throws Exception {
+        File dir = tempDir();
+        ZanLocalCache local = new ZanLocalCache.Builder(dir).build();
+        Request list = request("http://localhost/v1/items?page=1");
+        Request item = request("http://localhost/v1/items/42");
+        Request user = request("http://localhost/v1/users/me");
+        local.put(tagged(response(list, "list"), "items"));
+        local.put(tagged(response(item, "item"), "items, item:42"));
+        local.put(response(user, "user"));
+
+        assertEquals(1, local.invalidateByTag("item:42"));
+        assertNull(local.get(item));
+        assertEquals("list", local.get(list).body().string());
+        local.close();
+
+        // The index is read back with the cache.
+        local = new ZanLocalCache.Builder(dir).build();
+        assertEquals(1, local.invalidateByPrefix("/v1/items"));
+        assertNull(local.get(list));
+        assertEquals(0, local.invalidateByTag("items"));
+        assertEquals("user", local.get(user).body().string());
+        local.close();
+    }
+
+    @Test public void eventListenerSeesLookupsAndWrites() throws Exception {
+        CacheStats stats = new CacheStats();
+        ZanLocalCache local = new ZanLocalCache.Builder(tempDir())
+                .memoryCacheSize(600)
+                .eventListener(stats)
+                .build();
+        Request request = request("http://localhost/events/1");
+        assertNull(local.get(request));
+        local.put(response(request, "one"));
+        local.get(request);
+        local.put(response(request("http://localhost/events/2"),
+                new String(new char[400]).replace('\0', 'x')));
+        local.flush();
+        assertEquals(1, stats.evictionCount()); // The larger entry pushed out the first.
+        local.get(request);
+
+        CacheStats.Endpoint endpoint = stats.get("/events/1");
+        assertEquals(1, endpoint.missCount());
+        assertEquals(1, endpoint.hitCount(CacheEventListener.TIER_MEMORY));
+        assertEquals(1, endpoint.hitCount(CacheEventListener.TIER_DISK));
+        assertEquals(1, endpoint.parseTimes().count());
+        assertEquals(1, endpoint.writeSuccessCount());
+        assertEquals(3, endpoint.bytesWritten());
+        local.close();
+    }
+
+    @Test public void memoryTierEvictsByByteWeight() {
+        MemoryCache memoryCache = new MemoryCache(1024);
+        Request request = request("http://localhost/weight");
+        ZanLocalCache.Entry entry = new ZanLocalCache.Entry(response(request, ""));
+        memoryCache.put("a", new MemoryCache.Item(entry, ByteString.of(new byte[400])));
+        memoryCache.put("b", new MemoryCache.Item(entry, ByteString.of(new byte[400])));
+        memoryCache.get("a");
+        memoryCache.put("c", new MemoryCache.Item(entry, ByteString.of(new byte[400])));
+
+        assertNull(memoryCache.get("b"));
+        assertEquals(400, memoryCache.get("a").body.size());
+        assertEquals(400, memoryCache.get("c").body.size());
+    }
+
+    private static File tempDir() throws IOException {
+        File dir = File.createTempFile("zan-cache", "");
+        dir.delete();
+        return dir;
+    }
+
+    /** Returns a JSON array of {@code count} records, like a typical list response. */
+    static String json(int count) {
+        StringBuilder json = new StringBuilder("{\"code\":0,\"data\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"id\":").append(100000 + i * 7)
+                    .append(",\"title\":\"Item ").append(i)
+                    .append("\",\"price\":").append(i * 13 % 1000)
+                    .append(",\"image\":\"https://img.example.com/").append(i * 31 % 997)
+                    .append(".jpg\",\"tags\":[\"sale\",\"new\"]}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static Response tagged(Response response, String tags) {
+        return response.newBuilder().header(ZanLocalCache.TAGS_HEADER, tags).build();
+    }
+
+    static Request request(String url) {
+        return new Request.Builder().url(url).build();
+    }
+
+    static Response response(Request request, String body) {
+        Response networkResponse = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .build();
+        return networkResponse.newBuilder()
+                .networkResponse(networkResponse)
+                .body(ResponseBody.create(TEXT, body))
+                .build();
+    }
+}